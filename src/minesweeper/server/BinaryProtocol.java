@@ -0,0 +1,375 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A compact binary protocol, which a client can switch to from the text
+ * protocol by sending the line "binary" (or "binary rle"). The server
+ * answers with the line "BINARY 1", and from then on both sides only send
+ * the messages below.
+ *
+ * Numbers are unsigned varints: 7 bits per byte, least significant first,
+ * with the high bit set on every byte but the last.
+ *
+ * Requests, each an opcode byte followed by its arguments:
+ *   LOOK        0x01
+ *   DIG         0x02 x y
+ *   FLAG        0x03 x y
+ *   DEFLAG      0x04 x y
+ *   BYE         0x05
+ *   DELTA_ON    0x06
+ *   DELTA_OFF   0x07
+ *   BATCH       0x08 n, then n times one of DIG, FLAG or DEFLAG with
+ *               its arguments; 1 <= n <= MAX_BATCH_LENGTH
+ *   SUBSCRIBE   0x09
+ *   UNSUBSCRIBE 0x0A
+ *
+ * Answers, each a type byte followed by its fields:
+ *   BOARD     0x81 version size encoding squares, also pushed to a
+ *             subscribed client that fell too far behind
+ *   DELTA     0x82 version n, then n times: x y square (one byte), also
+ *             pushed to a subscribed client
+ *   BOOM      0x83, followed by a DELTA in delta mode
+ *   ERROR     0x84, after which the server closes the connection, since
+ *             the rest of the input can't be decoded
+ *
+ * Every square is a 4 bit code: 0-8 for a dug square with that many
+ * neighboring bombs, UNTOUCHED_CODE or FLAGGED_CODE. The squares of a BOARD
+ * are in row-major order. With the PACKED encoding, two squares are packed
+ * per byte, the first in the high 4 bits, and the last byte is padded with
+ * 0 if there are an odd # of squares. With the RUN_LENGTH encoding, they are
+ * runs of equal squares, each a byte with the code followed by the length
+ * of the run.
+ *
+ * Requests and answers otherwise mean the same as in the text protocol: in
+ * delta mode moves are answered with a DELTA, otherwise with a BOARD.
+ *
+ * Thread Safety: a BinaryProtocol is mutable, and must only be used by one
+ * thread at a time, like the Command it decodes into.
+ * @author jains
+ *
+ */
+class BinaryProtocol {
+
+    /**
+     * Version of the protocol, sent in the answer to the handshake.
+     */
+    static final int VERSION = 1;
+
+    // Request opcodes
+    static final int LOOK = 0x01;
+    static final int DIG = 0x02;
+    static final int FLAG = 0x03;
+    static final int DEFLAG = 0x04;
+    static final int BYE = 0x05;
+    static final int DELTA_ON = 0x06;
+    static final int DELTA_OFF = 0x07;
+    static final int BATCH = 0x08;
+    static final int SUBSCRIBE = 0x09;
+    static final int UNSUBSCRIBE = 0x0A;
+
+    // Answer types
+    static final int BOARD = 0x81;
+    static final int DELTA = 0x82;
+    static final int BOOM = 0x83;
+    static final int ERROR = 0x84;
+
+    // Encodings of the squares of a BOARD
+    static final int PACKED = 0;
+    static final int RUN_LENGTH = 1;
+
+    // Square codes, besides 0-8 for dug squares
+    static final int UNTOUCHED_CODE = 9;
+    static final int FLAGGED_CODE = 10;
+
+    /**
+     * Maximum # of moves of a BATCH, about what fits in a text line.
+     */
+    static final int MAX_BATCH_LENGTH = 1024;
+
+    // Coordinates are ints, which take at most 5 varint bytes
+    private static final int MAX_VARINT_BYTES = 5;
+
+    // What the next byte received is part of
+    private static final int OPCODE = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int BATCH_LENGTH = 3;
+    private static final int MOVE_OPCODE = 4;
+
+    private final Command command;
+    private int state = OPCODE;
+    // true while in a BATCH
+    private boolean batch = false;
+    private int movesLeft;
+    private Board.Move move;
+    // true right after the handshake, if a '\n' ending it must be skipped
+    private boolean skipLineFeed;
+
+    // The varint being read, and the # of its bytes read so far
+    private long value = 0;
+    private int valueBytes = 0;
+
+    /**
+     * Makes a decoder of binary requests.
+     * @param command Command to decode each request into
+     * @param skipLineFeed true if the handshake line ended with '\r', so
+     *  that a '\n' right after it is still part of the handshake
+     */
+    BinaryProtocol(Command command, boolean skipLineFeed) {
+        this.command = command;
+        this.skipLineFeed = skipLineFeed;
+    }
+
+    /**
+     * Adds a byte received from the client.
+     * @param c the byte
+     * @return true if c ended a request. The request is then described by
+     *  the fields of the command, whose opcode is null if the request is
+     *  invalid; nothing after it can be decoded.
+     */
+    boolean add(byte c) {
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if (c == '\n')
+                return false;
+        }
+        switch (state) {
+        case OPCODE:
+            return opcode(c & 0xff);
+        case MOVE_OPCODE:
+            move = move(c & 0xff);
+            if (move == null)
+                return invalid();
+            state = X;
+            return false;
+        case X:
+            if ( ! varint(c))
+                return valueBytes > MAX_VARINT_BYTES && invalid();
+            command.x = coordinate();
+            state = Y;
+            return false;
+        case Y:
+            if ( ! varint(c))
+                return valueBytes > MAX_VARINT_BYTES && invalid();
+            command.y = coordinate();
+            if ( ! batch)
+                return done(opcode(move));
+            command.addBatchMove(move, command.x, command.y);
+            if (--movesLeft > 0) {
+                state = MOVE_OPCODE;
+                return false;
+            }
+            return done(Command.Opcode.BATCH);
+        case BATCH_LENGTH:
+            if ( ! varint(c))
+                return valueBytes > MAX_VARINT_BYTES && invalid();
+            if (value < 1 || value > MAX_BATCH_LENGTH)
+                return invalid();
+            movesLeft = (int) value;
+            state = MOVE_OPCODE;
+            return false;
+        default:
+            throw new IllegalStateException("invalid state " + state);
+        }
+    }
+
+    /**
+     * Starts a request with its opcode.
+     * @return true if the request is already complete
+     */
+    private boolean opcode(int opcode) {
+        switch (opcode) {
+        case LOOK:
+            return done(Command.Opcode.LOOK);
+        case BYE:
+            return done(Command.Opcode.BYE);
+        case DELTA_ON:
+            return done(Command.Opcode.DELTA_ON);
+        case DELTA_OFF:
+            return done(Command.Opcode.DELTA_OFF);
+        case SUBSCRIBE:
+            return done(Command.Opcode.SUBSCRIBE);
+        case UNSUBSCRIBE:
+            return done(Command.Opcode.UNSUBSCRIBE);
+        case BATCH:
+            batch = true;
+            command.batchLength = 0;
+            state = BATCH_LENGTH;
+            return false;
+        default:
+            move = move(opcode);
+            if (move == null)
+                return invalid();
+            batch = false;
+            state = X;
+            return false;
+        }
+    }
+
+    /**
+     * @return the Move of a DIG, FLAG or DEFLAG opcode, or null for any
+     *  other opcode
+     */
+    private static Board.Move move(int opcode) {
+        switch (opcode) {
+        case DIG:
+            return Board.Move.DIG;
+        case FLAG:
+            return Board.Move.FLAG;
+        case DEFLAG:
+            return Board.Move.DEFLAG;
+        default:
+            return null;
+        }
+    }
+
+    private static Command.Opcode opcode(Board.Move move) {
+        switch (move) {
+        case DIG:
+            return Command.Opcode.DIG;
+        case FLAG:
+            return Command.Opcode.FLAG;
+        default:
+            return Command.Opcode.DEFLAG;
+        }
+    }
+
+    /**
+     * Adds c to the varint being read.
+     * @return true if c was its last byte; the varint is then in value
+     */
+    private boolean varint(byte c) {
+        if (valueBytes == 0)
+            value = 0;
+        if (valueBytes < MAX_VARINT_BYTES)
+            value |= (long) (c & 0x7f) << (7 * valueBytes);
+        valueBytes++;
+        if ((c & 0x80) != 0)
+            return false;
+        if (valueBytes > MAX_VARINT_BYTES)
+            return false;
+        valueBytes = 0;
+        return true;
+    }
+
+    /**
+     * @return value clamped to the range of an int. Larger coordinates are
+     *  out of bounds of any board anyway.
+     */
+    private int coordinate() {
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    private boolean done(Command.Opcode opcode) {
+        command.opcode = opcode;
+        state = OPCODE;
+        return true;
+    }
+
+    private boolean invalid() {
+        command.opcode = null;
+        state = OPCODE;
+        valueBytes = 0;
+        return true;
+    }
+
+    /**
+     * Writes a BOARD answer.
+     * @param out stream to write to
+     * @param snapshot state of the board to send
+     * @param runLength true for the RUN_LENGTH encoding, false for PACKED
+     * @throws IOException if out can't be written to
+     */
+    static void writeBoard(OutputStream out, Board.Snapshot snapshot, boolean runLength) throws IOException {
+        int size = snapshot.getSize();
+        out.write(BOARD);
+        writeVarint(out, snapshot.getVersion());
+        writeVarint(out, size);
+        out.write(runLength ? RUN_LENGTH : PACKED);
+
+        // The squares are every other character of the rows of look()
+        int rowLength = 2 * size + 1;
+        int square = 0;
+        int runCode = -1;
+        int run = 0;
+        // the first square of a PACKED byte, written with the second one
+        int high = 0;
+        for (byte[] tile : snapshot.tiles()) {
+            for (int rowStart = 0; rowStart < tile.length; rowStart += rowLength) {
+                for (int x = 0; x < size; x++) {
+                    int code = code(tile[rowStart + 2 * x]);
+                    if ( ! runLength) {
+                        if ((square & 1) == 0)
+                            high = code;
+                        else
+                            out.write(high << 4 | code);
+                    } else if (code == runCode) {
+                        run++;
+                    } else {
+                        if (run > 0) {
+                            out.write(runCode);
+                            writeVarint(out, run);
+                        }
+                        runCode = code;
+                        run = 1;
+                    }
+                    square++;
+                }
+            }
+        }
+        if (runLength && run > 0) {
+            out.write(runCode);
+            writeVarint(out, run);
+        }
+        if ( ! runLength && (square & 1) != 0)
+            out.write(high << 4);
+    }
+
+    /**
+     * Writes a DELTA answer.
+     * @param out stream to write to
+     * @param changes Board.Delta listing the changed squares
+     * @throws IOException if out can't be written to
+     */
+    static void writeDelta(OutputStream out, Board.Delta changes) throws IOException {
+        out.write(DELTA);
+        writeVarint(out, changes.getVersion());
+        int n = changes.getCount();
+        writeVarint(out, n);
+        for (int i = 0; i < n; i++) {
+            writeVarint(out, changes.getX(i));
+            writeVarint(out, changes.getY(i));
+            out.write(code(changes.getSquare(i)));
+        }
+    }
+
+    /**
+     * @return the square code of a character drawn by look()
+     */
+    private static int code(int c) {
+        switch (c) {
+        case '-':
+            return UNTOUCHED_CODE;
+        case 'F':
+            return FLAGGED_CODE;
+        case ' ':
+            return 0;
+        default:
+            return c - '0';
+        }
+    }
+
+    /**
+     * Writes value as an unsigned varint.
+     * @param value long >= 0
+     */
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
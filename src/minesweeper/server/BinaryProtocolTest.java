@@ -0,0 +1,97 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import autograder.TestUtil;
+
+public class BinaryProtocolTest {
+
+    /**
+     * Testing Strategy:
+     *  - decode requests with and without arguments, a batch, a varint of
+     *      several bytes, and a '\n' left over from the handshake
+     *  - an unknown opcode and a too long varint are invalid
+     *  - encode a board packed and run-length encoded, and a delta
+     */
+
+    /**
+     * @return the # of requests completed by adding bytes, the last one
+     *  being decoded into command
+     */
+    private static int add(BinaryProtocol decoder, int... bytes) {
+        int requests = 0;
+        for (int b : bytes) {
+            if (decoder.add((byte) b))
+                requests++;
+        }
+        return requests;
+    }
+
+    @Test
+    public void decodeTest() {
+        Command command = new Command();
+        BinaryProtocol decoder = new BinaryProtocol(command, true);
+        assertEquals(1, add(decoder, '\n', BinaryProtocol.LOOK));
+        assertEquals(Command.Opcode.LOOK, command.opcode);
+
+        assertEquals(0, add(decoder, BinaryProtocol.FLAG, 0x96));
+        assertEquals(1, add(decoder, 0x01, 0x03));
+        assertEquals(Command.Opcode.FLAG, command.opcode);
+        assertEquals(150, command.x);
+        assertEquals(3, command.y);
+
+        assertEquals(1, add(decoder, BinaryProtocol.BATCH, 2, BinaryProtocol.DIG, 1, 2,
+                BinaryProtocol.DEFLAG, 3, 4));
+        assertEquals(Command.Opcode.BATCH, command.opcode);
+        assertEquals(2, command.batchLength);
+        assertEquals(Board.Move.DEFLAG, command.batchMoves[1]);
+        assertEquals(3, command.batchX[1]);
+        assertEquals(4, command.batchY[1]);
+
+        assertEquals(1, add(decoder, BinaryProtocol.DIG, 0xff, 0xff, 0xff, 0xff, 0x7f, 0));
+        assertEquals(Integer.MAX_VALUE, command.x);
+    }
+
+    @Test
+    public void invalidTest() {
+        Command command = new Command();
+        assertEquals(1, add(new BinaryProtocol(command, false), 0x00));
+        assertNull(command.opcode);
+        assertEquals(1, add(new BinaryProtocol(command, false), BinaryProtocol.DIG, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80));
+        assertNull(command.opcode);
+        assertEquals(1, add(new BinaryProtocol(command, false), BinaryProtocol.BATCH, 0));
+        assertNull(command.opcode);
+    }
+
+    @Test
+    public void encodeTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            b.flag(0, 0);
+            Board.Delta changes = b.makeMove(Board.Move.DIG, 1, 1, true);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryProtocol.writeBoard(out, b.getSnapshot(), false);
+            byte[] packed = { (byte) 0x81, 2, 3, 0, (byte) 0xa9, (byte) 0x99, 0x39, (byte) 0x99, (byte) 0x90 };
+            assertTrue(Arrays.equals(packed, out.toByteArray()));
+
+            out.reset();
+            BinaryProtocol.writeBoard(out, b.getSnapshot(), true);
+            byte[] runLength = { (byte) 0x81, 2, 3, 1, 10, 1, 9, 3, 3, 1, 9, 4 };
+            assertTrue(Arrays.equals(runLength, out.toByteArray()));
+
+            out.reset();
+            BinaryProtocol.writeDelta(out, changes);
+            byte[] delta = { (byte) 0x82, 2, 1, 1, 1, 3 };
+            assertTrue(Arrays.equals(delta, out.toByteArray()));
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+}
@@ -1,14 +1,17 @@
 package minesweeper.server;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Representation of the Minesweeper board. 
@@ -19,21 +22,53 @@ import java.util.Queue;
  *      - Untouched
  *      - Flagged
  *      - Dug, for squares with no neighbors with bombs.
- *      - Dug, integer 1-8 (as String), the integer representing 
+ *      - Dug, integer 1-8, the integer representing 
  *          the # of neighbors with bombs
  *  - A new board must start out in all untouched squares
  *  - A board cannot have a bomb in a location the user has already
  *      dug. If he digs a bomb, he looses and is disconnected. 
  *      
  * Thread Safety:
- *  - The mutator methods need to be synchronized since we can't 
- *      have multiple mutations occuring in parallel, since we risk
- *      violating the rep invariant of the board
- *  - The accessor methods need to be synchronized so we don't return
- *      a false state of the board - they need to be atomic operations
- *  - We only need to lock on this (instance of Board) and not its
- *      attributes since they are all private, and are only accessed
- *      via the class methods.  
+ *  - The rows of the board are split into stripes of stripeRows rows,
+ *      each guarded by its own lock in STRIPE_LOCKS. A square, its
+ *      tile and its COUNT bits are only read or written while holding
+ *      the lock of the stripe of its row.
+ *  - Every public mutator is one Operation, which holds an interval of
+ *      stripes: flag and deflag hold the stripe of their square, and dig
+ *      holds the stripes of the rows around its square (removeBomb
+ *      updates them), and batch holds every stripe. Mutations in
+ *      different stripes run in parallel.
+ *  - Before releasing its stripes, an Operation publishes a new immutable
+ *      Snapshot of the board with the tiles it redrew. look and
+ *      getSnapshot only read the latest Snapshot, so they never block,
+ *      and mutators never wait for them.
+ *  - Stripes are always locked in ascending order, so operations can't
+ *      deadlock. A recursive dig that grows upwards into a lower stripe
+ *      only tries its lock; if it is busy, the dig releases all of its
+ *      stripes and takes them again in order. The squares it already dug
+ *      may then be seen before the rest, which is safe: a square is never
+ *      un-dug and a bomb count never grows, so the squares left in its
+ *      queue still need to be expanded afterwards.
+ *  - By default a single stripe covers the whole board, which makes every
+ *      public method atomic with respect to the others, as if they were
+ *      synchronized on the board.
+ *  - Listeners are called by the thread of an Operation after it released
+ *      its stripes, so they can't deadlock with the board.
+ *  - The journal is called by the thread of a move while it still holds
+ *      the stripes it changed, so moves changing the same squares are
+ *      journaled in the order they changed them. While there is a journal,
+ *      a recursive dig first takes every stripe above its square, so it
+ *      never backs off once it changed the board: no other move sees part
+ *      of a dig, and replaying the journal in order rebuilds the same
+ *      board. checkpoint() holds every stripe, and waits for the digs that
+ *      backed off to be done, so the state it copies holds exactly the
+ *      moves journaled so far.
+ *  - The metrics are threadsafe. An Operation reads them once, so a board
+ *      given metrics while it is played records the later operations only.
+ *  - The number of players is an AtomicInteger.
+ *  - Board has no synchronized methods, so a virtual thread waiting for it
+ *      never pins its carrier thread: ReentrantLocks unmount the waiting
+ *      virtual thread.
  *  - Every ConnectionHandler is assigned to a client. Since all the 
  *      ConnectionHandlers work on a single instance of the Board, as
  *      long as the Board is threadsafe, the whole server is threadsafe. 
@@ -44,30 +79,134 @@ import java.util.Queue;
 public class Board {
     
     /**
-     * Internally, the board is represented by two boards.
-     * USER_BOARD represents the state of the board to the clients.
-     * It contains only user relevant states - Untouched, Flagged,
-     * and Dug. This is because if a user clicks a bomb, it is removed 
-     * and all the Dug squares are updated.
-     * 
-     * BOMB_BOARD represents the bombs on the board. It must be the same 
-     * dimensions as USER_BOARD. Every position on the USER_BOARD corresponds 
-     * to the same position on USER_BOARD.  
+     * stripeRows value making a single stripe cover the whole board
+     */
+    public static final int WHOLE_BOARD = Integer.MAX_VALUE;
+    
+    /**
+     * Probability of a square of a random board having a bomb, unless
+     * told otherwise
+     */
+    public static final double DEFAULT_DENSITY = 0.25;
+    
+    /**
+     * Largest # of squares on one edge of a board, whose size * size
+     * squares fit in an array
+     */
+    public static final int MAX_SIZE = 46340;
+    
+    /**
+     * The kinds of moves of a batch().
      */
+    public enum Move { DIG, FLAG, DEFLAG }
     
-    private final List<List<String>> USER_BOARD = new ArrayList<List<String>>();
-    private final List<List<String>> BOMB_BOARD = new ArrayList<List<String>>();
+    /**
+     * Observer of the changes of the board.
+     */
+    public interface Listener {
+        /**
+         * Called by a mutator once it has published its changes and released
+         * its locks, on its own thread. Must be quick and must not block,
+         * since the player who made the move waits for it.
+         * @param squares array holding the index y * size + x of every square
+         *  the mutator changed, maybe more than once. Only valid during the
+         *  call, and must not be modified.
+         * @param count the # of entries of squares
+         */
+        void changed(int[] squares, int count);
+    }
     
-    // USER_BOARD SPACE STATES:
-    private final String UNTOUCHED = "-";
-    private final String FLAGGED = "F";
-    private final String DUG_NO_NEIGHBORS = " ";
+    /**
+     * Recorder of the moves that change the board, e.g. a MoveLog.
+     */
+    interface Journal {
+        /**
+         * Called by a move that changed the board, once it made its changes
+         * and while it still holds the stripes it made them in. Must be
+         * quick, since the moves of other players may wait for it.
+         * @param move the kind of move
+         * @param x int x coord of the move, on the board
+         * @param y int y coord of the move, on the board
+         */
+        void moved(Move move, int x, int y);
         
-    // BOMB_BOARD SPACE STATES:
-    private final String NO_BOMB = "E";
-    private final String BOMB = "B";
+        /**
+         * @return long the # of moves recorded so far
+         */
+        long moves();
+    }
+    
+    /**
+     * Internally, the board is a single flat byte array, CELLS, holding one
+     * byte per square in row-major order: the square at x,y lives at 
+     * index y * size + x. 
+     * 
+     * The low two bits of every byte hold the user state of the square, 
+     * i.e. what the clients see - Untouched, Flagged or Dug. 
+     * 
+     * The BOMB bit marks the squares holding a bomb. 
+     * 
+     * The COUNT bits hold the number of bombs among the square's 8 
+     * neighbors, i.e. the number shown once it is dug. They are computed 
+     * once when the board is built, and removeBomb keeps them up to date 
+     * by decrementing the neighbors of the removed bomb. 
+     * 
+     * The output of look() is kept as US-ASCII bytes, split in TILES of at
+     * most TILE_ROWS rows. A tile never spans two stripes. Every line is
+     * ROW_LENGTH bytes long (size squares separated by spaces, plus "\r\n"),
+     * so the square at x,y is always drawn at the same offset of its tile.
+     * 
+     * Tiles are copy on write: the latest Snapshot shares every tile for
+     * which TILE_SHARED is true. The first Operation to redraw a square of
+     * a shared tile replaces it with a private copy, and shares it again
+     * when it publishes the next Snapshot.
+     */
     
-    private int numberOfPlayers;
+    private final int size;
+    private final byte[] CELLS;
+    private final int ROW_LENGTH;
+    private final byte[][] TILES;
+    private final boolean[] TILE_SHARED;
+    private final AtomicReference<Snapshot> latest;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile Journal journal = null;
+    // Where the locks and digs are recorded, or null if they aren't
+    private volatile Metrics metrics = null;
+    
+    private final int stripeRows;
+    private final ReentrantLock[] STRIPE_LOCKS;
+    
+    // Maximum # of rows of a tile, i.e. copied by the first change to it
+    private static final int TILE_ROWS = 16;
+    private final int tilesPerStripe;
+    
+    // USER STATES (low two bits of a cell):
+    private static final byte USER_MASK = 0x03;
+    private static final byte UNTOUCHED = 0x00;
+    private static final byte FLAGGED = 0x01;
+    private static final byte DUG = 0x02;
+    
+    // BOMB BIT:
+    private static final byte BOMB = 0x04;
+    
+    // ADJACENT BOMB COUNT (bits 3-6 of a cell, 0-8):
+    private static final int COUNT_SHIFT = 3;
+    private static final byte COUNT_MASK = 0x78;
+    private static final byte COUNT_ONE = 1 << COUNT_SHIFT;
+    
+    // Characters used by look() for the user states
+    private static final char UNTOUCHED_CHAR = '-';
+    private static final char FLAGGED_CHAR = 'F';
+    private static final char DUG_NO_NEIGHBORS_CHAR = ' ';
+    
+    private final AtomicInteger numberOfPlayers = new AtomicInteger();
+    
+    // # of Operations between backing off and being done, see checkpoint()
+    private final AtomicInteger backedOff = new AtomicInteger();
+    
+    // Boards with fewer squares are generated by the calling thread, and
+    // the threads generating larger ones are given at least this many
+    private static final int PARALLEL_SQUARES = 1 << 16;
     
     /**
      * Constructor for a random board. Every square has a 25% 
@@ -76,23 +215,63 @@ public class Board {
      *  the board.
      */
     public Board(int size) {
-        // Initialize the USER_BAORD to all UNTOUCHED squares
-        // Initialize BOMB_BOARD squares with bombs with 25% probability
-        for (int i = 0; i < size; i++) {
-            List<String> newUserLine = new ArrayList<String>();
-            List<String> newBombLine = new ArrayList<String>();
-            for (int j = 0; j < size; j++){
-                newUserLine.add(UNTOUCHED);
-                int probability = (int) (Math.random() * 4);
-                if (probability == 0)
-                    newBombLine.add(BOMB);
-                else
-                    newBombLine.add(NO_BOMB);
+        this(size, WHOLE_BOARD);
+    }
+    
+    /**
+     * Constructor for a random board, locked in stripes of stripeRows rows.
+     * Every square has a 25% probability of having a bomb
+     * @param size int representing the # of squares on one edge of
+     *  the board.
+     * @param stripeRows int >= 1, the # of rows guarded by each lock,
+     *  or WHOLE_BOARD
+     */
+    public Board(int size, int stripeRows) {
+        this(size, stripeRows, ThreadLocalRandom.current().nextLong(), DEFAULT_DENSITY);
+    }
+    
+    /**
+     * Constructor for a board generated from seed, locked in stripes of
+     * stripeRows rows. The same size, seed and density always give the
+     * same bombs (see Bombs). Large boards are generated in parallel,
+     * rows at a time, on a fork-join pool.
+     * @param size int representing the # of squares on one edge of
+     *  the board, 0 <= size <= MAX_SIZE
+     * @param stripeRows int >= 1, the # of rows guarded by each lock,
+     *  or WHOLE_BOARD
+     * @param seed the bombs of the board
+     * @param density 0 <= density <= 1, the probability of a square
+     *  having a bomb
+     */
+    public Board(int size, int stripeRows, long seed, double density) {
+        if (size < 0 || size > MAX_SIZE)
+            throw new IllegalArgumentException("size must be between 0 and " + MAX_SIZE + ": " + size);
+        // All squares start UNTOUCHED (0)
+        this.size = size;
+        this.CELLS = new byte[size * size];
+        long threshold = Bombs.threshold(density);
+        if (CELLS.length < PARALLEL_SQUARES) {
+            generateRows(0, size, seed, threshold);
+            countRows(0, size);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(new Rows(0, size, seed, threshold, false));
+                // counting reads the bombs of the rows around, so it
+                // starts once they are all placed
+                pool.invoke(new Rows(0, size, seed, threshold, true));
+            } finally {
+                pool.shutdown();
             }
-            USER_BOARD.add(newUserLine);
-            BOMB_BOARD.add(newBombLine);
         }
-        System.out.println(BOMB_BOARD);
+        this.ROW_LENGTH = 2 * size + 1;
+        this.stripeRows = checkStripeRows(stripeRows);
+        this.STRIPE_LOCKS = newStripeLocks();
+        this.tilesPerStripe = (this.stripeRows + TILE_ROWS - 1) / TILE_ROWS;
+        this.TILES = newTiles();
+        this.TILE_SHARED = new boolean[TILES.length];
+        Arrays.fill(TILE_SHARED, true);
+        this.latest = new AtomicReference<Snapshot>(new Snapshot(0, size, TILES.clone()));
         assert checkRep();
     }
     
@@ -102,30 +281,585 @@ public class Board {
      * @throws IOException In case file is invalid, or contains malformed input
      */
     public Board(File file) throws IOException{
-        Charset charset = Charset.forName("US-ASCII");
-        BufferedReader reader = Files.newBufferedReader(file.toPath(), charset);
-        String line = null; 
-        while ((line = reader.readLine()) != null) {
-            List<String> bombLine = new ArrayList<String>();
-            for (char c : line.toCharArray()){
-                if (c == '0')
-                    bombLine.add(NO_BOMB);
-                if (c == '1')
-                    bombLine.add(BOMB);
-                // do nothing if the char is a space
+        this(file, WHOLE_BOARD);
+    }
+    
+    /**
+     * Constructor for a board from a file, locked in stripes of
+     * stripeRows rows.
+     * @param file to read into a board
+     * @param stripeRows int >= 1, the # of rows guarded by each lock,
+     *  or WHOLE_BOARD
+     * @throws IOException In case file is invalid, or contains malformed input
+     */
+    public Board(File file, int stripeRows) throws IOException{
+        this(file, stripeRows, 1);
+    }
+        
+    /**
+     * Constructor for a board from a file, locked in stripes of
+     * stripeRows rows, whose rows are parsed by loadThreads threads.
+     * See BoardFile for the loading of the file.
+     * @param file to read into a board
+     * @param stripeRows int >= 1, the # of rows guarded by each lock,
+     *  or WHOLE_BOARD
+     * @param loadThreads int >= 1, the # of threads parsing the file
+     * @throws IOException In case file is invalid, contains malformed input,
+     *  or isn't square
+     */
+    public Board(File file, int stripeRows, int loadThreads) throws IOException{
+        BoardFile loaded = BoardFile.read(file, BOMB, loadThreads);
+        this.size = loaded.size;
+        this.CELLS = loaded.cells;
+        countRows(0, size);
+        this.ROW_LENGTH = 2 * size + 1;
+        this.stripeRows = checkStripeRows(stripeRows);
+        this.STRIPE_LOCKS = newStripeLocks();
+        this.tilesPerStripe = (this.stripeRows + TILE_ROWS - 1) / TILE_ROWS;
+        this.TILES = newTiles();
+        this.TILE_SHARED = new boolean[TILES.length];
+        Arrays.fill(TILE_SHARED, true);
+        this.latest = new AtomicReference<Snapshot>(new Snapshot(0, size, TILES.clone()));
+        assert checkRep();
+    }
+    
+    /**
+     * Constructor for a board restored from a Checkpoint, locked in stripes
+     * of stripeRows rows.
+     * @param size int representing the # of squares on one edge of
+     *  the board.
+     * @param squares array of the size * size squares of the board in
+     *  row-major order, as given by Checkpoint.square(). Taken over by the
+     *  board.
+     * @param stripeRows int >= 1, the # of rows guarded by each lock,
+     *  or WHOLE_BOARD
+     */
+    Board(int size, byte[] squares, int stripeRows) {
+        if (squares.length != size * size)
+            throw new IllegalArgumentException("expected " + size * size + " squares, got "
+                    + squares.length);
+        for (byte square : squares){
+            if ((square & ~(USER_MASK | BOMB)) != 0 || (square & USER_MASK) > DUG
+                    || square == (DUG | BOMB))
+                throw new IllegalArgumentException("invalid square: " + square);
+        }
+        this.size = size;
+        this.CELLS = squares;
+        countRows(0, size);
+        this.ROW_LENGTH = 2 * size + 1;
+        this.stripeRows = checkStripeRows(stripeRows);
+        this.STRIPE_LOCKS = newStripeLocks();
+        this.tilesPerStripe = (this.stripeRows + TILE_ROWS - 1) / TILE_ROWS;
+        this.TILES = newTiles();
+        for (int y = 0; y < size; y++){
+            for (int x = 0; x < size; x++){
+                if ((CELLS[y * size + x] & USER_MASK) != UNTOUCHED)
+                    TILES[tileOf(y)][tileOffset(x, y)] = (byte) squareChar(x, y);
             }
-            BOMB_BOARD.add(bombLine);
         }
+        this.TILE_SHARED = new boolean[TILES.length];
+        Arrays.fill(TILE_SHARED, true);
+        this.latest = new AtomicReference<Snapshot>(new Snapshot(0, size, TILES.clone()));
+        assert checkRep();
+    }
+    
+    /**
+     * @param stripeRows int >= 1, the # of rows guarded by each lock
+     * @return stripeRows, or size if the board has fewer rows
+     */
+    private int checkStripeRows(int stripeRows) {
+        if (stripeRows < 1)
+            throw new IllegalArgumentException("stripeRows must be positive: " + stripeRows);
+        return Math.max(1, Math.min(size, stripeRows));
+    }
+    
+    /**
+     * @return ReentrantLock[] one lock per stripe of the board
+     */
+    private ReentrantLock[] newStripeLocks() {
+        ReentrantLock[] locks = new ReentrantLock[(size + stripeRows - 1) / stripeRows];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new ReentrantLock();
+        return locks;
+    }
+    
+    /**
+     * A single call to a public method of the board. Keeps track of the
+     * stripes it holds, and of the squares it changed.
+     * 
+     * The held stripes are always the interval lowStripe..highStripe
+     * (empty if highStripe < lowStripe): a recursive dig only ever grows
+     * into the rows next to those it already holds.
+     * 
+     * changed holds the index of every square redrawn so far (the first
+     * changedCount entries), so the mutators can answer with just the
+     * squares they touched instead of the whole board.
+     * 
+     * dirtyTiles holds the tiles copied since the last publish (the first
+     * dirtyCount entries), and version the version of the last Snapshot
+     * this operation published.
+     * 
+     * An Operation that backs off counts in backedOff until it is done().
+     * 
+     * With metrics, an Operation records the total time it waited for
+     * busy stripes once done(), and how long it held its stripes each time
+     * it releases them. A free stripe costs no clock reading.
+     */
+    private class Operation {
+        private int lowStripe = 0;
+        private int highStripe = -1;
+        private boolean backedOff = false;
+        
+        private final Metrics metrics = Board.this.metrics;
+        private boolean locked = false;
+        private long waitedNanos = 0;
+        private long lockedAt;
         
-        // initialize USER_BOARD
-        for (int i = 0; i < BOMB_BOARD.size(); i++){
-            List<String> userLine = new ArrayList<String>();
-            for (int j = 0; j < BOMB_BOARD.size(); j++){
-                userLine.add(UNTOUCHED);
+        // false if nobody needs the changed squares, e.g. while replaying
+        private final boolean recordChanges;
+        private int[] changed = new int[16];
+        private int changedCount = 0;
+        
+        private int[] dirtyTiles = new int[4];
+        private int dirtyCount = 0;
+        private long version = -1;
+        
+        Operation() {
+            this(true);
+        }
+        
+        /**
+         * @param recordChanges false if neither the listeners nor changes()
+         *  need the squares this operation changes
+         */
+        Operation(boolean recordChanges) {
+            this.recordChanges = recordChanges;
+        }
+        
+        /**
+         * Makes sure the stripes of rows firstRow..lastRow are held,
+         * together with every stripe in between them and those already
+         * held. Rows outside the board are ignored.
+         * @param firstRow int first row to hold
+         * @param lastRow int last row to hold, >= firstRow
+         */
+        void lockRows(int firstRow, int lastRow) {
+            if (size == 0)
+                return;
+            int low = Math.max(0, firstRow) / stripeRows;
+            int high = Math.min(size - 1, lastRow) / stripeRows;
+            if (highStripe < lowStripe){
+                lockStripes(low, high);
+                return;
+            }
+            
+            // Stripes after the held ones keep the ascending order,
+            // so just wait for them
+            for (int s = highStripe + 1; s <= high; s++){
+                lock(s);
+                highStripe = s;
+            }
+            
+            // Stripes before the held ones would break the order. Take them
+            // if they are free, otherwise back off and take them all in order
+            for (int s = lowStripe - 1; s >= low; s--){
+                if (STRIPE_LOCKS[s].tryLock()){
+                    lowStripe = s;
+                } else {
+                    if (! backedOff){
+                        backedOff = true;
+                        Board.this.backedOff.incrementAndGet();
+                    }
+                    int held = highStripe;
+                    unlockAll();
+                    lockStripes(low, held);
+                    return;
+                }
             }
-            USER_BOARD.add(userLine);
         }
-        assert checkRep();
+        
+        /**
+         * Locks stripes low..high in ascending order. Requires that no
+         * stripe is held.
+         */
+        private void lockStripes(int low, int high) {
+            for (int s = low; s <= high; s++)
+                lock(s);
+            lowStripe = low;
+            highStripe = high;
+            if (metrics != null){
+                locked = true;
+                lockedAt = System.nanoTime();
+            }
+        }
+        
+        /**
+         * Locks a stripe, adding the time it waits to waitedNanos if the
+         * stripe is busy and there are metrics.
+         */
+        private void lock(int stripe) {
+            ReentrantLock lock = STRIPE_LOCKS[stripe];
+            if (metrics == null){
+                lock.lock();
+            } else if (! lock.tryLock()){
+                long start = System.nanoTime();
+                lock.lock();
+                waitedNanos += System.nanoTime() - start;
+            }
+        }
+        
+        /**
+         * Records that tile was copied, and must be published.
+         * @param tile int index of the tile in TILES
+         */
+        void dirty(int tile) {
+            if (dirtyCount == dirtyTiles.length)
+                dirtyTiles = Arrays.copyOf(dirtyTiles, 2 * dirtyCount);
+            dirtyTiles[dirtyCount++] = tile;
+        }
+        
+        /**
+         * Publishes a new Snapshot with the dirty tiles, if there are any.
+         * Requires the stripes of the dirty tiles to be held.
+         */
+        void publish() {
+            if (dirtyCount == 0)
+                return;
+            // Operations in other stripes may publish at the same time.
+            // Each one only replaces the tiles of the stripes it holds.
+            Snapshot current;
+            Snapshot next;
+            do {
+                current = latest.get();
+                byte[][] tiles = current.tiles.clone();
+                for (int i = 0; i < dirtyCount; i++)
+                    tiles[dirtyTiles[i]] = TILES[dirtyTiles[i]];
+                next = new Snapshot(current.version + 1, size, tiles);
+            } while (! latest.compareAndSet(current, next));
+            
+            for (int i = 0; i < dirtyCount; i++)
+                TILE_SHARED[dirtyTiles[i]] = true;
+            dirtyCount = 0;
+            version = next.version;
+        }
+        
+        /**
+         * @return long the version of the board right after this operation
+         */
+        long version() {
+            return version >= 0 ? version : latest.get().version;
+        }
+        
+        /**
+         * Publishes the changes made so far, releases every held stripe, and
+         * tells the listeners which squares changed.
+         */
+        void unlockAll() {
+            publish();
+            if (metrics != null && highStripe >= lowStripe)
+                metrics.lockHeld(System.nanoTime() - lockedAt);
+            for (int s = highStripe; s >= lowStripe; s--)
+                STRIPE_LOCKS[s].unlock();
+            lowStripe = 0;
+            highStripe = -1;
+            // After a back off, the squares changed before it are told again
+            if (changedCount > 0){
+                for (Listener listener : listeners)
+                    listener.changed(changed, changedCount);
+            }
+        }
+        
+        /**
+         * Ends the operation: publishes its changes, releases its stripes
+         * and tells the listeners, like unlockAll().
+         */
+        void done() {
+            unlockAll();
+            if (locked){
+                metrics.lockWaited(waitedNanos);
+                locked = false;
+            }
+            if (backedOff){
+                backedOff = false;
+                Board.this.backedOff.decrementAndGet();
+            }
+        }
+        
+        /**
+         * Records that the square at index was redrawn.
+         * @param index int index of the square in CELLS
+         */
+        void changed(int index) {
+            if (! recordChanges)
+                return;
+            if (changedCount == changed.length)
+                changed = Arrays.copyOf(changed, 2 * changedCount);
+            changed[changedCount++] = index;
+        }
+        
+        /**
+         * Requires the changed squares' stripes to be held, and the changes
+         * to be published.
+         * @param boom true if a dig of this operation hit a bomb
+         * @param list false if the squares changed aren't needed
+         * @return Delta listing the squares changed by this operation, or
+         *  none unless list, as of the version of the board after it
+         */
+        Delta changes(boolean boom, boolean list) {
+            if (! list)
+                return delta(version(), changed, 0, TILES, boom);
+            changedCount = distinct(changed, changedCount);
+            return delta(version(), changed, changedCount, TILES, boom);
+        }
+    }
+            
+    /**
+     * Sorts the first count entries of squares, and removes duplicates.
+     * @return int the # of distinct entries, now the first ones of squares
+     */
+    private static int distinct(int[] squares, int count) {
+        Arrays.sort(squares, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++){
+            if (i == 0 || squares[i] != squares[i-1])
+                squares[distinct++] = squares[i];
+        }
+        return distinct;
+    }
+    
+    /**
+     * @param version version of the board the squares are drawn from
+     * @param squares array whose first count entries are the distinct
+     *  indices of some squares, in ascending order
+     * @param count int >= 0
+     * @param tiles the tiles to draw the squares from
+     * @param boom true if the squares were changed by a dig that hit a bomb
+     * @return Delta listing the squares
+     */
+    private Delta delta(long version, int[] squares, int count, byte[][] tiles, boolean boom) {
+        byte[] drawn = new byte[count];
+        for (int i = 0; i < count; i++){
+            int x = squares[i] % size;
+            int y = squares[i] / size;
+            drawn[i] = tiles[tileOf(y)][tileOffset(x, y)];
+        }
+        return new Delta(version, size, boom, Arrays.copyOf(squares, count), drawn, null);
+    }
+    
+    /**
+     * Lists some squares as they are in a snapshot of this board. A square
+     *  listed more than once is listed once.
+     * @param snapshot Snapshot of this board
+     * @param squares array holding the index y * size + x of every square
+     *  to list, which gets sorted
+     * @param count the # of entries of squares to list
+     * @return Delta listing the squares, with the version of the snapshot
+     */
+    Delta delta(Snapshot snapshot, int[] squares, int count) {
+        return delta(snapshot.version, squares, distinct(squares, count), snapshot.tiles, false);
+    }
+    
+    /**
+     * Makes listener be told about every later change of the board.
+     * @param listener Listener to add
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Stops telling listener about the changes of the board.
+     * @param listener Listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * An immutable state of the board, as seen by the clients. Every
+     * mutation that changes the board publishes a Snapshot with the next
+     * version, starting from 0 for an all UNTOUCHED board.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final int size;
+        private final byte[][] tiles;
+        private volatile String look = null;
+        
+        private Snapshot(long version, int size, byte[][] tiles) {
+            this.version = version;
+            this.size = size;
+            this.tiles = tiles;
+        }
+        
+        /**
+         * @return long the version of the board this is a snapshot of
+         */
+        public long getVersion() {
+            return version;
+        }
+        
+        /**
+         * @return int the width and height of the board
+         */
+        public int getSize() {
+            return size;
+        }
+        
+        /**
+         * @return byte[][] pieces of the look() output, in order, each made
+         *  of whole rows. Must not be modified.
+         */
+        byte[][] tiles() {
+            return tiles;
+        }
+        
+        /**
+         * @return String representing this state of the board, as
+         *  Board.look() does
+         */
+        public String look() {
+            String result = look;
+            if (result == null){
+                int length = 0;
+                for (byte[] tile : tiles)
+                    length += tile.length;
+                byte[] render = new byte[length];
+                int offset = 0;
+                for (byte[] tile : tiles){
+                    System.arraycopy(tile, 0, render, offset, tile.length);
+                    offset += tile.length;
+                }
+                result = new String(render, StandardCharsets.US_ASCII);
+                look = result;
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Some squares of the board, as drawn by one of its versions: those a
+     * move changed, or those changed since a subscribed client last polled.
+     * The whole board may be drawn instead, if the squares weren't tracked.
+     * Immutable.
+     */
+    static class Delta {
+        private final long version;
+        private final int size;
+        private final boolean boom;
+        // The distinct indices y * size + x of the squares, in ascending
+        // order, and the character look() draws for each
+        private final int[] squares;
+        private final byte[] drawn;
+        // The whole board, drawn instead of the squares, or null
+        private final Snapshot snapshot;
+        
+        private Delta(long version, int size, boolean boom, int[] squares,
+                byte[] drawn, Snapshot snapshot) {
+            this.version = version;
+            this.size = size;
+            this.boom = boom;
+            this.squares = squares;
+            this.drawn = drawn;
+            this.snapshot = snapshot;
+        }
+        
+        /**
+         * Makes a Delta drawing a whole snapshot.
+         * @param snapshot Snapshot of the board to draw
+         */
+        Delta(Snapshot snapshot) {
+            this(snapshot.version, snapshot.size, false, new int[0], new byte[0], snapshot);
+        }
+        
+        /**
+         * @return long the version of the board the squares are drawn from
+         */
+        long getVersion() {
+            return version;
+        }
+        
+        /**
+         * @return boolean true if the squares were changed by a dig that
+         *  hit a bomb
+         */
+        boolean isBoom() {
+            return boom;
+        }
+        
+        /**
+         * @return Snapshot the whole board, which is drawn instead of the
+         *  squares, or null if the squares are listed
+         */
+        Snapshot getSnapshot() {
+            return snapshot;
+        }
+        
+        /**
+         * @return int the # of squares listed
+         */
+        int getCount() {
+            return squares.length;
+        }
+        
+        /**
+         * @param i int 0 <= i < getCount()
+         * @return int the x coord of the i-th square, in row-major order
+         */
+        int getX(int i) {
+            return squares[i] % size;
+        }
+        
+        /**
+         * @param i int 0 <= i < getCount()
+         * @return int the y coord of the i-th square, in row-major order
+         */
+        int getY(int i) {
+            return squares[i] / size;
+        }
+        
+        /**
+         * @param i int 0 <= i < getCount()
+         * @return char the character look() draws for the i-th square, so
+         *  it can be a space
+         */
+        char getSquare(int i) {
+            return (char) drawn[i];
+        }
+        
+        /**
+         * @return String listing the squares as "DELTA v n\r\n" followed by
+         *  n lines "x y c\r\n", in row-major order, v being the version
+         *  and c the character of each square. The whole board is drawn as
+         *  "BOARD v\r\n" followed by the board, as Board.look() draws it.
+         */
+        @Override
+        public String toString() {
+            if (snapshot != null)
+                return "BOARD " + version + "\r\n" + snapshot.look();
+            StringBuilder result = new StringBuilder(16 * (squares.length + 1));
+            result.append("DELTA ").append(version).append(' ')
+                .append(squares.length).append("\r\n");
+            for (int i = 0; i < squares.length; i++){
+                result.append(getX(i)).append(' ').append(getY(i)).append(' ')
+                    .append(getSquare(i)).append("\r\n");
+            }
+            return result.toString();
+        }
+    }
+    
+    /**
+     * @return Snapshot the latest state of the board. Never blocks.
+     */
+    public Snapshot getSnapshot() {
+        return latest.get();
+    }
+    
+    /**
+     * @return long the version of the latest state of the board
+     */
+    public long getVersion() {
+        return latest.get().version;
     }
     
     /**
@@ -133,30 +867,176 @@ public class Board {
      * '-' represents UNTOUCHED squares, ' ' represents dug squares
      * '[1-8]' represents a square with that number of neighboring bombs
      */
-    public synchronized String look() {
-        String result = "";
-        for (List<String> line : USER_BOARD){
-            for (String space : line){
-                if (space.equals(UNTOUCHED))
-                    result += UNTOUCHED;
-                else if (space.equals(FLAGGED))
-                    result += FLAGGED;
-                else if (space.equals(DUG_NO_NEIGHBORS))
-                    result += DUG_NO_NEIGHBORS;
-                // Must be a number at this point, otherwise rep invariant
-                // has been violated. Throws a NumberFormatException (unchecked)
-                else {
-                    Integer bombHint = Integer.parseInt(space);
-                    result += bombHint.toString();
+    public String look() {
+        return latest.get().look();
+    }
+    
+    /**
+     * Draws a region of the current state of the board, clipped to the
+     * board, like ChunkedBoard.look(x, y, width, height). Only the region
+     * is copied, so it takes time in the size of the region, whatever the
+     * size of the board.
+     * @param x int x coord of the left column of the region
+     * @param y int y coord of the top row of the region
+     * @param width int >= 0, the # of columns of the region
+     * @param height int >= 0, the # of rows of the region
+     * @return String drawing the squares of the region in the format of
+     *  look(), one line per row. Empty if the region is off the board.
+     */
+    public String look(int x, int y, int width, int height) {
+        return look(latest.get(), x, y, width, height);
+    }
+    
+    /**
+     * Draws a region of a snapshot of this board, as look(x, y, width,
+     * height) does.
+     * @param snapshot Snapshot of this board
+     */
+    String look(Snapshot snapshot, int x, int y, int width, int height) {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("negative region: " + width + " x " + height);
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = (int) Math.min(size, (long) x + width);
+        int y1 = (int) Math.min(size, (long) y + height);
+        if (x1 <= x0 || y1 <= y0)
+            return "";
+        // the squares and the spaces between them, then "\r\n"
+        int rowLength = 2 * (x1 - x0) + 1;
+        byte[] render = new byte[rowLength * (y1 - y0)];
+        int offset = 0;
+        for (int j = y0; j < y1; j++){
+            System.arraycopy(snapshot.tiles[tileOf(j)], tileOffset(x0, j), render, offset, rowLength - 2);
+            render[offset + rowLength - 2] = '\r';
+            render[offset + rowLength - 1] = '\n';
+            offset += rowLength;
+        }
+        return new String(render, StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * @return byte[][] the tiles of the look() output of an all UNTOUCHED
+     *  board
+     */
+    private byte[][] newTiles() {
+        byte[][] tiles = new byte[STRIPE_LOCKS.length * tilesPerStripe][];
+        int y = 0;
+        for (int tile = 0; tile < tiles.length; tile++){
+            // the last tiles of the last stripe may be short, or empty
+            int stripeEnd = Math.min(size, (tile / tilesPerStripe + 1) * stripeRows);
+            int rows = Math.max(0, Math.min(TILE_ROWS, stripeEnd - y));
+            byte[] render = new byte[rows * ROW_LENGTH];
+            for (int row = 0; row < rows; row++){
+                int rowStart = row * ROW_LENGTH;
+                for (int x = 0; x < size; x++){
+                    if (x > 0)
+                        render[rowStart + 2 * x - 1] = ' ';
+                    render[rowStart + 2 * x] = UNTOUCHED_CHAR;
                 }
-                result += " ";
+                render[rowStart + ROW_LENGTH - 2] = '\r';
+                render[rowStart + ROW_LENGTH - 1] = '\n';
             }
-            // Kill trailing whitespace before adding EOL
-            if (result.endsWith(" "))
-                result = result.substring(0, result.length()-1);
-            result += "\r\n";
+            tiles[tile] = render;
+            y += rows;
+        }
+        return tiles;
+    }
+    
+    /**
+     * @param y int y coord. 0 <= y < size
+     * @return int index in TILES of the tile holding row y
+     */
+    private int tileOf(int y) {
+        return (y / stripeRows) * tilesPerStripe + (y % stripeRows) / TILE_ROWS;
+    }
+    
+    /**
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return int offset of the square at x,y in its tile
+     */
+    private int tileOffset(int x, int y) {
+        return ((y % stripeRows) % TILE_ROWS) * ROW_LENGTH + 2 * x;
+    }
+    
+    /**
+     * Sets the user state of the square at x,y, and redraws it.
+     * @param op Operation holding the stripe of row y
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @param userState one of UNTOUCHED, FLAGGED or DUG
+     */
+    private void setUserState(Operation op, int x, int y, byte userState) {
+        int index = y * size + x;
+        CELLS[index] = (byte) ((CELLS[index] & ~USER_MASK) | userState);
+        redraw(op, x, y);
+    }
+    
+    /**
+     * Updates the tile of x,y with the current state of the square at x,y
+     * @param op Operation holding the stripe of row y
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     */
+    private void redraw(Operation op, int x, int y) {
+        draw(op, x, y, squareChar(x, y));
+    }
+    
+    /**
+     * Digs the square at x,y and redraws it. 
+     * @param op Operation holding the stripe of row y
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return int 0-8, the bomb hint number of the square
+     */
+    private int setDug(Operation op, int x, int y) {
+        int index = y * size + x;
+        CELLS[index] = (byte) ((CELLS[index] & ~USER_MASK) | DUG);
+        int bombHint = findAdjacentBombCount(x, y);
+        draw(op, x, y, bombHint == 0 ? DUG_NO_NEIGHBORS_CHAR : (char) ('0' + bombHint));
+        return bombHint;
+    }
+    
+    /**
+     * Draws c for the square at x,y in its tile, recording the change in
+     * op. A tile shared with the latest Snapshot is copied first.
+     * @param op Operation holding the stripe of row y
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @param c char look() shows for the square
+     */
+    private void draw(Operation op, int x, int y, char c) {
+        byte squareChar = (byte) c;
+        int tile = tileOf(y);
+        int offset = tileOffset(x, y);
+        if (TILES[tile][offset] == squareChar)
+            return;
+        if (TILE_SHARED[tile]){
+            TILES[tile] = TILES[tile].clone();
+            TILE_SHARED[tile] = false;
+            op.dirty(tile);
+        }
+        TILES[tile][offset] = squareChar;
+        op.changed(y * size + x);
+    }
+    
+    /**
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return char representing the square at x,y as shown by look()
+     */
+    private char squareChar(int x, int y) {
+        switch (CELLS[y * size + x] & USER_MASK) {
+        case UNTOUCHED:
+            return UNTOUCHED_CHAR;
+        case FLAGGED:
+            return FLAGGED_CHAR;
+        default:
+            int bombHint = findAdjacentBombCount(x, y);
+            if (bombHint == 0)
+                return DUG_NO_NEIGHBORS_CHAR;
+            return (char) ('0' + bombHint);
         }
-        return result;
     }
     
     /**
@@ -173,252 +1053,640 @@ public class Board {
      *  location is given, or a BOOM message if the user hit a bomb. If there
      *  was nothing at that location, then the state of the board is returned. 
      */
-    public synchronized String dig(int x, int y) {
-        // Get board at position x, y
-        String userSquare = USER_BOARD.get(y).get(x);
-        assert userSquare.equals(UNTOUCHED) || userSquare.equals(FLAGGED);
-        
-        if (x < 0 || y < 0 || userSquare.equals(FLAGGED))
-            return look();
-        
-        String bombSquare = BOMB_BOARD.get(y).get(x);
-        if (bombSquare.equals(BOMB)){
-            // also resets the square to DUG_NO_NEIGHBORS
-            // and updates the neighboring square's numbers. 
-            removeBomb(x, y); 
-            dig(x, y);
-            return "BOOM!" + "\n";
-        }
-        else if (bombSquare.equals(NO_BOMB)){
-            // Dig the square
-            String toSet = findAdjacentBombCount(x, y).toString();
-            if (toSet.equals("0")){
-                toSet = DUG_NO_NEIGHBORS;
-                USER_BOARD.get(y).set(x, toSet);
-                recursiveDig(x, y);
+    public String dig(int x, int y) {
+        return dig(x, y, false);
+    }
+    
+    /**
+     * Digs at the location x,y, exactly like dig(x, y). 
+     * @param x int x coord. x >= 0
+     * @param y int y coord. y >= 0
+     * @param delta if true, answer with only the squares this dig changed 
+     *  (see Delta.toString()) instead of the whole board. A BOOM message
+     *  is then followed by the changes, since the client stays on the board
+     *  in debug mode.
+     * @return a String, as described by dig(x, y) and delta
+     */
+    public String dig(int x, int y, boolean delta) {
+        return move(Move.DIG, x, y, delta);
+    }
+    
+    /**
+     * Makes a single move at x,y, as dig(), flag() or deflag() describe.
+     * @param move the kind of move
+     * @param x int x coord
+     * @param y int y coord
+     * @param delta if true, answer with only the squares that changed
+     * @return String representing the state of the board or its changes,
+     *  preceded by a BOOM message if a dig hit a bomb
+     */
+    private String move(Move move, int x, int y, boolean delta) {
+        return answer(makeMove(move, x, y, delta), delta);
+    }
+    
+    /**
+     * @param changes Delta of some moves
+     * @param delta if true, answer with only the squares that changed
+     * @return String representing the state of the board or its changes,
+     *  preceded by a BOOM message if a dig hit a bomb
+     */
+    private String answer(Delta changes, boolean delta) {
+        if (changes.isBoom())
+            return "BOOM!" + "\n" + (delta ? changes.toString() : "");
+        return delta ? changes.toString() : look();
+    }
+    
+    /**
+     * Makes a single move at x,y, as dig(), flag() or deflag() describe.
+     * @param move the kind of move
+     * @param x int x coord
+     * @param y int y coord
+     * @param list false if the squares that changed aren't needed
+     * @return Delta listing the squares the move changed, or none unless
+     *  list, and telling if a dig hit a bomb
+     */
+    Delta makeMove(Move move, int x, int y, boolean list) {
+        Operation op = new Operation();
+        boolean boom = false;
+        Delta changes;
+        try {
+            if (inBounds(x, y)){
+                // removeBomb updates the rows around x,y
+                if (move == Move.DIG){
+                    op.lockRows(y - 1, y + 1);
+                    // With a journal, a recursive dig takes every stripe
+                    // above it before changing anything, so it only ever
+                    // grows downwards and never backs off
+                    if (journal != null && floods(x, y))
+                        op.lockRows(0, y + 1);
+                } else {
+                    op.lockRows(y, y);
+                }
+                boom = move(op, move, x, y);
             }
-            else
-                USER_BOARD.get(y).set(x, toSet);
-            return look();
+            op.publish();
+            changes = op.changes(boom, list);
+        } finally {
+            op.done();
+        }
+        return changes;
+    }
+    
+    /**
+     * Makes a move at x,y, and tells the journal if it changed the board.
+     * @param op Operation holding the stripes of rows y-1..y+1 for a dig,
+     *  and of row y otherwise
+     * @param move the kind of move
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return boolean true if the move was a dig that hit a bomb
+     */
+    private boolean move(Operation op, Move move, int x, int y) {
+        int userState = CELLS[y * size + x] & USER_MASK;
+        boolean boom = false;
+        boolean changed;
+        switch (move){
+        case DIG:
+            boom = digSquare(op, x, y);
+            changed = userState == UNTOUCHED;
+            break;
+        case FLAG:
+            setUserState(op, x, y, UNTOUCHED, FLAGGED);
+            changed = userState == UNTOUCHED;
+            break;
+        default:
+            setUserState(op, x, y, FLAGGED, UNTOUCHED);
+            changed = userState == FLAGGED;
+            break;
         }
+        Journal recorder = journal;
+        if (changed && recorder != null)
+            recorder.moved(move, x, y);
+        return boom;
+    }
+    
+    /**
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return boolean true if digging x,y now would start a recursive dig,
+     *  i.e. it is untouched and has no adjacent bombs
+     */
+    private boolean floods(int x, int y) {
+        int index = y * size + x;
+        return (CELLS[index] & USER_MASK) == UNTOUCHED && findAdjacentBombCount(x, y) == 0;
+    }
+    
+    /**
+     * Does the work of dig(x, y). 
+     * @param op Operation holding the stripes of rows y-1..y+1
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return boolean true if the user hit a bomb, false otherwise
+     */
+    private boolean digSquare(Operation op, int x, int y) {
+        int index = y * size + x;
+        if ((CELLS[index] & USER_MASK) != UNTOUCHED)
+            return false;
         
-        // Should never reach here
-        throw new RuntimeException();
+        if ((CELLS[index] & BOMB) != 0){
+            // also sets the square to DUG and updates the 
+            // neighboring square's numbers. 
+            removeBomb(op, x, y);
+            if (findAdjacentBombCount(x, y) == 0)
+                recursiveDig(op, x, y);
+            return true;
+        }
         
+        // Dig the square
+        if (setDug(op, x, y) == 0)
+            recursiveDig(op, x, y);
+        return false;
     }
     
     /**
      * Does a recursive dig on all UNTOUCHED neighbor squares as long 
      * as they have no adjacent bombs. The space at x,y should already be 
-     * set to DUG_NO_NEIGHBORS.
-     * @param x int x coord. x >= 0
-     * @param y int y coord. y >= 0
+     * set to DUG, with no adjacent bombs.
+     * 
+     * This is a breadth first flood fill over a queue of square indices.
+     * A square is dug as soon as it is reached, so its DUG state marks it
+     * as visited and every square is looked at once: the fill runs in time
+     * linear in the number of squares it opens, without allocating per
+     * square. Before expanding a square, op takes the stripes of the rows
+     * around it.
+     * @param op Operation holding the stripe of row y
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
      */
-    private void recursiveDig(int x, int y) {
-        
-        Queue<IntPair> toCheck = new LinkedList<IntPair>();
-        List<IntPair> checked = new ArrayList<IntPair>();
+    private void recursiveDig(Operation op, int x, int y) {
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = y * size + x;
+        int opened = 1;
         
-        // add in children of x, y
-        for (IntPair childCoord : getChildren(x,y)){
-            toCheck.add(childCoord);
-        }
-        
-        // x,y already checked
-        checked.add(new IntPair(x, y));
-        
-        while(! toCheck.isEmpty()){
-            IntPair nextCoord = toCheck.poll();
-            int i = nextCoord.x; // first value
-            int j = nextCoord.y; // second value
+        while (head < tail){
+            int index = queue[head++];
+            int qx = index % size;
+            int qy = index / size;
+            op.lockRows(qy - 1, qy + 1);
             
-            // No bomb, not dug or flagged, and not already checked
-            if (BOMB_BOARD.get(j).get(i).equals(NO_BOMB) 
-                    && USER_BOARD.get(j).get(i).equals(UNTOUCHED)
-                    && ! checked.contains(new IntPair(i, j))) {
-                
-                checked.add(new IntPair(i, j));
-                // No adjacent bombs - add children
-                if ((findAdjacentBombCount(i, j) == 0)){
-                    USER_BOARD.get(j).set(i, DUG_NO_NEIGHBORS);
-                    for (IntPair childCoord : getChildren(i,j)){
-                        if (! checked.contains(childCoord))
-                            toCheck.add(childCoord);
+            int xMax = Math.min(size-1, qx+1);
+            int yMax = Math.min(size-1, qy+1);
+            for (int j = Math.max(0, qy-1); j <= yMax; j++){
+                for (int i = Math.max(0, qx-1); i <= xMax; i++){
+                    // No bomb, and not dug or flagged
+                    if ((CELLS[j * size + i] & (USER_MASK | BOMB)) != UNTOUCHED)
+                        continue;
+                    // No adjacent bombs - its children get dug too. 
+                    // Otherwise the square just shows its adjacentBombCount. 
+                    opened++;
+                    if (setDug(op, i, j) == 0){
+                        if (tail == queue.length)
+                            queue = Arrays.copyOf(queue, 2 * tail);
+                        queue[tail++] = j * size + i;
                     }
                 }
-                // don't add children since there are adjacent bombs. 
-                // just update the square to be dug with the adjancentBombCount. 
-                else
-                    USER_BOARD.get(j).set(i, findAdjacentBombCount(i, j).toString());
             }
         }
+        if (op.metrics != null)
+            op.metrics.floodFilled(opened);
     }
     
     /**
+     * Finds the space at x,y's bomb hint number
      * @param x int x coord. x >= 0
      * @param y int y coord. y >= 0
-     * @return List<IntPair> representing the coord. pairs that are children
-     *  of x,y. Includes x,y.
-     */
-    private List<IntPair> getChildren(int x, int y) {
-        List<IntPair> children = new ArrayList<IntPair>();
-        
-        int size = USER_BOARD.size();
-        int xC = x - 1;
-        int yC = y - 1;
-        if(xC >= 0 && yC >= 0) { // bounds ok
-        }else if (xC < 0 && yC < 0){
-            xC++;
-            yC++;
-        }else if (yC < 0){
-            yC++;
-        }else if (xC < 0) {
-            xC++;
+     * @return int 0-8 
+     */
+    private int findAdjacentBombCount(int x, int y) {
+        return (CELLS[y * size + x] & COUNT_MASK) >>> COUNT_SHIFT;
+    }
+    
+    /**
+     * Places the bombs of rows firstRow..lastRow-1 of a generated board.
+     * @param seed the seed of the board
+     * @param threshold the threshold of its density, see Bombs
+     */
+    private void generateRows(int firstRow, int lastRow, long seed, long threshold) {
+        for (int y = firstRow; y < lastRow; y++){
+            int rowStart = y * size;
+            for (int x = 0; x < size; x++){
+                if (Bombs.at(seed, threshold, x, y))
+                    CELLS[rowStart + x] = BOMB;
+            }
         }
-
-        // only check until x+1 or size-1, whichever is smaller
-        for (int i = xC; i <= Math.min(size-1, x+1); i++){ 
-            for (int j = yC; j <= Math.min(size-1, y+1); j++){
-                children.add(new IntPair(i, j));
+    }
+    
+    /**
+     * Fills in the COUNT bits of the squares of rows firstRow..lastRow-1
+     * from the BOMB bits of their neighbors. Only writes those rows, so
+     * separate rows can be counted in parallel.
+     * Requires their COUNT bits to be zero.
+     */
+    private void countRows(int firstRow, int lastRow) {
+        for (int y = firstRow; y < lastRow; y++){
+            int yMax = Math.min(size-1, y+1);
+            for (int x = 0; x < size; x++){
+                int xMax = Math.min(size-1, x+1);
+                int count = 0;
+                for (int j = Math.max(0, y-1); j <= yMax; j++){
+                    for (int i = Math.max(0, x-1); i <= xMax; i++){
+                        if ((i != x || j != y) && (CELLS[j * size + i] & BOMB) != 0)
+                            count++;
+                    }
+                }
+                CELLS[y * size + x] |= count << COUNT_SHIFT;
             }
         }
-        return children;
     }
     
     /**
-     * Finds the space at x,y's bomb hint number
-     * @param x int x coord. x >= 0
-     * @param y int y coord. y >= 0
-     * @return Integer 0-8 
+     * Generates or counts the bombs of rows firstRow..lastRow-1 of a new
+     * board, splitting them among the threads of a fork-join pool.
      */
-    private Integer findAdjacentBombCount(int x, int y) {
-        List<IntPair> children = getChildren(x, y);
+    private class Rows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
         
-        int bombCount = 0;
+        private final int firstRow;
+        private final int lastRow;
+        private final long seed;
+        private final long threshold;
+        // false to place the bombs, true to count them
+        private final boolean count;
         
-        for (IntPair child : children) {
-            int i = child.x;
-            int j = child.y;
-            
-            if (BOMB_BOARD.get(j).get(i).equals(BOMB))
-                bombCount++;
+        Rows(int firstRow, int lastRow, long seed, long threshold, boolean count) {
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.seed = seed;
+            this.threshold = threshold;
+            this.count = count;
         }
         
-        return bombCount;
+        @Override
+        protected void compute() {
+            if ((long) (lastRow - firstRow) * size <= PARALLEL_SQUARES){
+                if (count)
+                    countRows(firstRow, lastRow);
+                else
+                    generateRows(firstRow, lastRow, seed, threshold);
+                return;
+            }
+            int middle = (firstRow + lastRow) >>> 1;
+            invokeAll(new Rows(firstRow, middle, seed, threshold, count),
+                    new Rows(middle, lastRow, seed, threshold, count));
+        }
+    }
+    
+    /**
+     * Adds delta to the COUNT bits of the 8 neighbors of x,y. 
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @param delta COUNT_ONE or -COUNT_ONE
+     */
+    private void addToNeighborCounts(int x, int y, int delta) {
+        int xMax = Math.min(size-1, x+1);
+        int yMax = Math.min(size-1, y+1);
+        for (int j = Math.max(0, y-1); j <= yMax; j++){
+            int rowStart = j * size;
+            for (int i = Math.max(0, x-1); i <= xMax; i++){
+                if (i != x || j != y)
+                    CELLS[rowStart + i] += delta;
+            }
+        }
     }
 
     /**
-     * Flags the square at x,y. Requires that x,y be in an untouched state.
+     * Flags the square at x,y. Only UNTOUCHED squares can be flagged; 
+     *  any other location leaves the board as it is.
      * @param x int x coord. x >= 0
      * @param y int y coord. y >= 0
      * @return String representing the state of the board.
      */
-    public synchronized String flag(int x, int y) {
-        assert USER_BOARD.get(y).get(x).equals(UNTOUCHED);
-        USER_BOARD.get(y).set(x, FLAGGED);
-        return look();
+    public String flag(int x, int y) {
+        return flag(x, y, false);
+    }
+    
+    /**
+     * Flags the square at x,y, exactly like flag(x, y). 
+     * @param x int x coord. x >= 0
+     * @param y int y coord. y >= 0
+     * @param delta if true, answer with only the squares that changed
+     *  (see Delta.toString()) instead of the whole board.
+     * @return String representing the state of the board, or its changes.
+     */
+    public String flag(int x, int y, boolean delta) {
+        return move(Move.FLAG, x, y, delta);
     }
     
     /**
      * Deflags the square at x,y, returning it to the untouched state.
-     *  Requires that x,y already be flagged, and not be in a dug state.
+     *  Only FLAGGED squares can be deflagged; any other location leaves 
+     *  the board as it is. 
      * @param x int x coord. x >= 0
      * @param y int y coord. y >= 0
      * @return String representing the state of the board.
      */
-    public synchronized String deflag(int x, int y) {
-        assert USER_BOARD.get(y).get(x).equals(FLAGGED);
-        USER_BOARD.get(y).set(x, UNTOUCHED);
-        return look();
+    public String deflag(int x, int y) {
+        return deflag(x, y, false);
     }
     
     /**
-     * Removes the bomb from the location x,y, and updates all adjacent squares'
-     * 'bomb hint' number. Location x,y must have a bomb. 
+     * Deflags the square at x,y, exactly like deflag(x, y). 
      * @param x int x coord. x >= 0
      * @param y int y coord. y >= 0
+     * @param delta if true, answer with only the squares that changed
+     *  (see Delta.toString()) instead of the whole board.
+     * @return String representing the state of the board, or its changes.
+     */
+    public String deflag(int x, int y, boolean delta) {
+        return move(Move.DEFLAG, x, y, delta);
+    }
+    
+    /**
+     * Moves the square at x,y from user state from to user state to, if it
+     *  is in user state from.
+     * @param op Operation holding the stripe of row y
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     */
+    private void setUserState(Operation op, int x, int y, byte from, byte to) {
+        if ((CELLS[y * size + x] & USER_MASK) == from)
+            setUserState(op, x, y, to);
+    }
+    
+    /**
+     * Makes the first count moves of a batch, in order, as a single
+     *  operation: the whole board is locked once for all of them, and no
+     *  other player sees the board between two of them. Each move does
+     *  what dig(), flag() or deflag() would do. A move out of the board
+     *  leaves it as it is, and a dig that hits a bomb ends the batch: the
+     *  moves after it are not made.
+     * @param moves the kind of each move
+     * @param xs the x coord of each move
+     * @param ys the y coord of each move
+     * @param count int >= 0, the # of moves to make, at most the length of
+     *  moves, xs and ys
+     * @param delta if true, answer with only the squares the whole batch
+     *  changed (see Delta.toString()) instead of the whole board.
+     * @return String representing the state of the board or its changes,
+     *  preceded by a BOOM message if a dig hit a bomb, like dig()
      */
-    private synchronized void removeBomb(int x, int y){
-        assert BOMB_BOARD.get(y).get(x).equals(BOMB);
-        BOMB_BOARD.get(y).set(x, NO_BOMB);
+    public String batch(Move[] moves, int[] xs, int[] ys, int count, boolean delta) {
+        return answer(makeMoves(moves, xs, ys, count, delta), delta);
+    }
+    
+    /**
+     * Makes the first count moves of a batch, as batch() describes.
+     * @param moves the kind of each move
+     * @param xs the x coord of each move
+     * @param ys the y coord of each move
+     * @param count int >= 0, the # of moves to make, at most the length of
+     *  moves, xs and ys
+     * @param list false if the squares that changed aren't needed
+     * @return Delta listing the squares the whole batch changed, or none
+     *  unless list, and telling if a dig hit a bomb
+     */
+    Delta makeMoves(Move[] moves, int[] xs, int[] ys, int count, boolean list) {
+        Operation op = new Operation();
+        boolean boom = false;
+        Delta changes;
+        try {
+            // With every stripe held up front, recursive digs never back
+            // off, so nothing is published before the end of the batch
+            op.lockRows(0, size - 1);
+            for (int i = 0; i < count && ! boom; i++){
+                int x = xs[i];
+                int y = ys[i];
+                if (inBounds(x, y))
+                    boom = move(op, moves[i], x, y);
+            }
+            op.publish();
+            changes = op.changes(boom, list);
+        } finally {
+            op.done();
+        }
+        return changes;
+    }
+    
+    /**
+     * Makes the first count moves of a recorded game, in order, as a single
+     *  operation, e.g. to recover the moves made since a Checkpoint. Each
+     *  move does what dig(), flag() or deflag() would do, and a move out of
+     *  the board leaves it as it is. Unlike batch(), a dig that hits a bomb
+     *  doesn't end the moves, and the squares changed aren't tracked: the
+     *  listeners aren't told about them, and each tile is copied at most
+     *  once, so replaying is about as fast as the moves themselves.
+     * @param moves the kind of each move
+     * @param xs the x coord of each move
+     * @param ys the y coord of each move
+     * @param count int >= 0, the # of moves to make, at most the length of
+     *  moves, xs and ys
+     */
+    void replay(Move[] moves, int[] xs, int[] ys, int count) {
+        Operation op = new Operation(false);
+        try {
+            op.lockRows(0, size - 1);
+            for (int i = 0; i < count; i++){
+                if (inBounds(xs[i], ys[i]))
+                    move(op, moves[i], xs[i], ys[i]);
+            }
+            op.publish();
+        } finally {
+            op.done();
+        }
+    }
+    
+    /**
+     * Makes journal be told about every later move that changes the board.
+     * @param journal Journal to tell, or null to stop telling one
+     */
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Makes the later operations of this board record their locks and
+     * recursive digs in metrics.
+     * @param metrics Metrics to record in, or null to stop recording
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Copies the state of every square. Holds every stripe while copying,
+     * so no move can be made meanwhile, but the copy is only about a byte
+     * per square. If a dig that backed off made some of its changes without
+     * being done, the copy waits for it, since replaying it from the copy
+     * wouldn't dig the rest.
+     * @return Checkpoint of the board, made after exactly the moves told to
+     *  its journal so far, if it has one
+     */
+    Checkpoint checkpoint() {
+        Operation op = new Operation(false);
+        try {
+            while (true){
+                op.lockRows(0, size - 1);
+                if (backedOff.get() == 0)
+                    break;
+                op.unlockAll();
+                Thread.yield();
+            }
+            Journal recorder = journal;
+            return new Checkpoint(size, CELLS.clone(), recorder == null ? -1 : recorder.moves());
+        } finally {
+            op.done();
+        }
+    }
+    
+    /**
+     * The state of every square of a board at some point in its game,
+     * together with the # of moves its journal had recorded then. A board
+     * restored from it, which replays the moves recorded after it, is back
+     * in the same state as the original.
+     */
+    static class Checkpoint {
+        private final int size;
+        private final byte[] cells;
+        private final long moves;
         
-        String toSet = findAdjacentBombCount(x, y).toString();
-        if (toSet.equals("0")){
-            toSet = DUG_NO_NEIGHBORS;
+        private Checkpoint(int size, byte[] cells, long moves) {
+            this.size = size;
+            this.cells = cells;
+            this.moves = moves;
         }
-        USER_BOARD.get(y).set(x, toSet);
         
-        List<IntPair> children = getChildren(x, y);
+        /**
+         * @return int the width and height of the board
+         */
+        int getSize() {
+            return size;
+        }
         
-        for (IntPair child : children) {
-            int i = child.x;
-            int j = child.y;
-            
-            String toSet1 = findAdjacentBombCount(i, j).toString();
-            if (toSet1.equals("0"))
-                toSet1 = DUG_NO_NEIGHBORS;
-            // Only update the square if it's not untouched or flagged
-            if (! (USER_BOARD.get(j).get(i).equals(UNTOUCHED) 
-                    || USER_BOARD.get(j).get(i).equals(FLAGGED)))
-                USER_BOARD.get(j).set(i, toSet1);
+        /**
+         * @return long the # of moves the journal of the board had recorded,
+         *  or -1 if the board had no journal
+         */
+        long getMoves() {
+            return moves;
+        }
+        
+        /**
+         * @param index int y * size + x, for the square at x,y
+         * @return int the square at index: bits 0-1 hold its user state (0
+         *  untouched, 1 flagged, 2 dug), and bit 2 is set if it has a bomb
+         */
+        int square(int index) {
+            return cells[index] & (USER_MASK | BOMB);
+        }
+    }
+    
+    /**
+     * Removes the bomb from the location x,y and digs it,and updates all
+     * adjacent squares' 'bomb hint' number. Location x,y must have a bomb. 
+     * @param op Operation holding the stripes of rows y-1..y+1
+     * @param x int x coord. x >= 0
+     * @param y int y coord. y >= 0
+     */
+    private void removeBomb(Operation op, int x, int y){
+        int index = y * size + x;
+        assert (CELLS[index] & BOMB) != 0;
+        CELLS[index] &= ~BOMB;
+        addToNeighborCounts(x, y, -COUNT_ONE);
+        setUserState(op, x, y, DUG);
+        
+        int xMax = Math.min(size-1, x+1);
+        int yMax = Math.min(size-1, y+1);
+        for (int j = Math.max(0, y-1); j <= yMax; j++){
+            for (int i = Math.max(0, x-1); i <= xMax; i++){
+                // Only redraw the square if it's not untouched or flagged
+                if ((CELLS[j * size + i] & USER_MASK) == DUG)
+                    redraw(op, i, j);
+            }
         }
     }
     
     /**
-     * Checks rep invariants. 
-     *  - USER_BOARD Dimensions equal to BOMB_BOARD
-     *  - USER_BOARD and BOMB_BOARD contain appropriate states
+     * @param x int x coord
+     * @param y int y coord
+     * @return boolean true if x,y is a square on this board
+     */
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < size && y < size;
+    }
+    
+    /**
+     * Checks rep invariants. Only called while no other thread can
+     * reach the board.
+     *  - CELLS holds exactly size * size squares
+     *  - every square holds a valid user state
+     *  - no dug square holds a bomb
+     *  - every square's COUNT bits hold its number of adjacent bombs
+     *  - the tiles show the state of every square, and are all shared
+     *      with the latest Snapshot
+     *  - the stripes cover every row
      * @return boolean true if rep invariants hold, false otherwise. 
      */
-    private synchronized boolean checkRep() {
-        // Check boards have same # of lines. 
-        if (USER_BOARD.size() != BOMB_BOARD.size())
+    private boolean checkRep() {
+        if (CELLS.length != size * size)
             return false;
-        for (int i = 0; i < USER_BOARD.size(); i++){
-            // Check every line has same number of elements
-            if (USER_BOARD.get(i).size() != BOMB_BOARD.get(i).size())
+        for (byte cell : CELLS){
+            int userState = cell & USER_MASK;
+            if (userState != UNTOUCHED && userState != FLAGGED && userState != DUG)
                 return false;
-            
-            for (int j = 0; j < USER_BOARD.size(); j++){
-                // Check elements are valid for USER_BOARD
-                String userSpace = USER_BOARD.get(i).get(j);
-                if ( !(userSpace.equals(UNTOUCHED)) || !(userSpace.equals(FLAGGED)) 
-                        || !(userSpace.equals(DUG_NO_NEIGHBORS)) || !(Integer.parseInt(userSpace) < 9) )
-                    return false;
-                
-                // Check elements are valid for BOMB_BOARD
-                String bombSpace = BOMB_BOARD.get(i).get(j);
-                if( !(bombSpace.equals(BOMB)) || !(bombSpace.equals(NO_BOMB)) )
+            if ((cell & ~(USER_MASK | BOMB | COUNT_MASK)) != 0)
+                return false;
+            if (userState == DUG && (cell & BOMB) != 0)
+                return false;
+        }
+        for (int y = 0; y < size; y++){
+            for (int x = 0; x < size; x++){
+                int bombCount = 0;
+                for (int j = Math.max(0, y-1); j <= Math.min(size-1, y+1); j++){
+                    for (int i = Math.max(0, x-1); i <= Math.min(size-1, x+1); i++){
+                        if ((i != x || j != y) && (CELLS[j * size + i] & BOMB) != 0)
+                            bombCount++;
+                    }
+                }
+                if (findAdjacentBombCount(x, y) != bombCount)
                     return false;
-                
-                // Check there is no dug square with a bomb
-                if ( (!(userSpace.equals(DUG_NO_NEIGHBORS)) || !(Integer.parseInt(userSpace) < 9))
-                    && bombSpace.equals(BOMB) )
+            }
+        }
+        if (STRIPE_LOCKS.length * stripeRows < size)
+            return false;
+        byte[][] published = latest.get().tiles;
+        for (int tile = 0; tile < TILES.length; tile++){
+            if (! TILE_SHARED[tile] || published[tile] != TILES[tile])
+                return false;
+        }
+        for (int y = 0; y < size; y++){
+            for (int x = 0; x < size; x++){
+                if (TILES[tileOf(y)][tileOffset(x, y)] != squareChar(x, y))
                     return false;
             }
         }
-        
         return true;
     }
     
     /**
      * Adds a player to this board
      */
-    public synchronized void addPlayer() {
-        numberOfPlayers++;
+    public void addPlayer() {
+        numberOfPlayers.incrementAndGet();
     }
     
     /**
      * Removes a player from this board.
      */
-    public synchronized void removePlayer() {
-        numberOfPlayers--;
+    public void removePlayer() {
+        numberOfPlayers.decrementAndGet();
     }
     
     /**
      * @return int representing the current number of players
      */
-    public synchronized int getNumberOfPlayers() {
-        return numberOfPlayers;
+    public int getNumberOfPlayers() {
+        return numberOfPlayers.get();
     }
 }
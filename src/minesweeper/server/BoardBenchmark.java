@@ -0,0 +1,520 @@
+package minesweeper.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro benchmarks of the hot paths of Board, the baseline any change of
+ * Board is measured against:
+ *   construct      Board(size, stripeRows, seed, density), a random board
+ *   load           Board(File), a board file of the same size and density
+ *   look           look() right after a flag, i.e. rendering a new state
+ *   dig            digs of single squares next to a bomb
+ *   recursiveDig   the worst opening: one dig on a board without bombs,
+ *                  which digs every square
+ *   removeBomb     digs of bombs, each removing it and updating the counts
+ *                  of its neighbors, which may then open around it
+ *   flag           flags and deflags of untouched squares
+ *   contendedDig   dig by several threads on the same board, with one lock
+ *   stripedDig     the same, with one lock per STRIPE_ROWS rows
+ *   contendedFlag  flag by several threads on the same board, with one lock
+ *   stripedFlag    the same, with one lock per STRIPE_ROWS rows
+ *
+ * Moves answer with their changes (delta mode), as for most clients, so
+ * rendering the whole board is only measured by look.
+ *
+ * Every benchmark runs for each size and density given, and the contended
+ * ones for each # of threads too. Like JMH, which this tree doesn't depend
+ * on, each runs warmup iterations until the JIT settles, then measured
+ * iterations of a fixed duration, and reports the mean time per operation
+ * with its standard deviation over the iterations. An iteration is made of
+ * rounds: a round prepares a board and the squares to play outside of the
+ * timed part, then makes its operations. Results are folded into a sink so
+ * that the JIT can't drop the work.
+ *
+ * Thread Safety: benchmarks run one at a time, from main(). The contended
+ * ones start their threads during the setup of a round, and release them
+ * all at once when it is timed.
+ * @author jains
+ *
+ */
+public class BoardBenchmark {
+
+    /**
+     * # of rows of each lock of the striped benchmarks.
+     */
+    static final int STRIPE_ROWS = 16;
+
+    // Most operations a round makes, so rounds stay short on large boards
+    private static final int MAX_ROUND_OPERATIONS = 1 << 16;
+
+    // Folds in the results of the operations
+    private static volatile int sink;
+
+    /**
+     * A benchmark, run in rounds: setup() prepares a round outside of the
+     * timed part, and run() makes its operations.
+     */
+    private abstract static class Benchmark {
+        final String name;
+        // true if the benchmark runs with several threads
+        final boolean contended;
+
+        Benchmark(String name, boolean contended) {
+            this.name = name;
+            this.contended = contended;
+        }
+
+        /**
+         * Prepares a round.
+         * @return int >= 1, the # of operations run() makes
+         */
+        abstract int setup(int size, double density, int threads, Random random) throws IOException;
+
+        /**
+         * Makes the operations of the round prepared by setup().
+         */
+        abstract void run() throws InterruptedException;
+    }
+
+    /**
+     * A benchmark making moves on a board, from the threads of the round.
+     * Each thread makes the moves of its own share of squares.
+     */
+    private abstract static class Moves extends Benchmark {
+        private final int stripeRows;
+        Board board;
+        // squares of the round, if made by the benchmark thread
+        private int[] squares;
+        private Thread[] workers = new Thread[0];
+        private CountDownLatch start;
+
+        Moves(String name, boolean contended, int stripeRows) {
+            super(name, contended);
+            this.stripeRows = stripeRows;
+        }
+
+        /**
+         * Picks the squares of the round, among those of a board generated
+         * from seed.
+         * @return int[] the index y * size + x of each square
+         */
+        abstract int[] squares(int size, long seed, double density, Random random);
+
+        /**
+         * Makes the operation of the benchmark at x,y.
+         * @return int a result to fold into the sink
+         */
+        abstract int move(int x, int y);
+
+        int setup(int size, double density, int threads, Random random) {
+            long seed = random.nextLong();
+            board = new Board(size, stripeRows, seed, density);
+            int[] squares = squares(size, seed, density, random);
+            if (squares.length == 0)
+                squares = new int[] { 0 };
+            start = new CountDownLatch(1);
+            workers = new Thread[contended ? threads : 0];
+            for (int t = 0; t < workers.length; t++) {
+                final int[] share = Arrays.copyOfRange(squares,
+                        (int) ((long) squares.length * t / threads),
+                        (int) ((long) squares.length * (t + 1) / threads));
+                final int boardSize = size;
+                workers[t] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        moves(share, boardSize);
+                    }
+                });
+                workers[t].start();
+            }
+            if ( ! contended)
+                this.squares = squares;
+            return squares.length;
+        }
+
+        void run() throws InterruptedException {
+            if ( ! contended) {
+                moves(squares, board.getSnapshot().getSize());
+                return;
+            }
+            start.countDown();
+            for (Thread worker : workers)
+                worker.join();
+        }
+
+        private void moves(int[] squares, int size) {
+            int result = 0;
+            for (int square : squares)
+                result += move(square % size, square / size);
+            sink += result;
+        }
+    }
+
+    /**
+     * @return int[] up to MAX_ROUND_OPERATIONS squares of a generated board,
+     *  in random order: those with a bomb if bombs is true, and otherwise
+     *  those without one but next to one
+     */
+    private static int[] squares(int size, long seed, double density, boolean bombs, Random random) {
+        long threshold = Bombs.threshold(density);
+        List<Integer> picked = new ArrayList<Integer>();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean bomb = Bombs.at(seed, threshold, x, y);
+                if (bombs ? bomb : ! bomb && nextToBomb(size, seed, threshold, x, y))
+                    picked.add(y * size + x);
+            }
+        }
+        return shuffled(picked, random);
+    }
+
+    private static boolean nextToBomb(int size, long seed, long threshold, int x, int y) {
+        for (int j = Math.max(0, y - 1); j <= Math.min(size - 1, y + 1); j++) {
+            for (int i = Math.max(0, x - 1); i <= Math.min(size - 1, x + 1); i++) {
+                if ((i != x || j != y) && Bombs.at(seed, threshold, i, j))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return int[] up to MAX_ROUND_OPERATIONS random squares, some maybe
+     *  more than once
+     */
+    private static int[] anySquares(int size, Random random) {
+        int[] squares = new int[Math.min(MAX_ROUND_OPERATIONS, size * size)];
+        for (int i = 0; i < squares.length; i++)
+            squares[i] = random.nextInt(size * size);
+        return squares;
+    }
+
+    /**
+     * @return int[] up to MAX_ROUND_OPERATIONS of squares, in random order
+     */
+    private static int[] shuffled(List<Integer> squares, Random random) {
+        int[] result = new int[Math.min(MAX_ROUND_OPERATIONS, squares.size())];
+        for (int i = 0; i < result.length; i++) {
+            int j = i + random.nextInt(squares.size() - i);
+            Integer square = squares.get(j);
+            squares.set(j, squares.get(i));
+            result[i] = square;
+        }
+        return result;
+    }
+
+    /**
+     * A dig of a square without a bomb but next to one, so that it opens
+     * only itself.
+     */
+    private static class Dig extends Moves {
+        Dig(String name, boolean contended, int stripeRows) {
+            super(name, contended, stripeRows);
+        }
+
+        int[] squares(int size, long seed, double density, Random random) {
+            return BoardBenchmark.squares(size, seed, density, false, random);
+        }
+
+        int move(int x, int y) {
+            return board.dig(x, y, true).length();
+        }
+    }
+
+    /**
+     * A flag of a square then its deflag, counted as two operations.
+     */
+    private static class Flag extends Moves {
+        Flag(String name, boolean contended, int stripeRows) {
+            super(name, contended, stripeRows);
+        }
+
+        int setup(int size, double density, int threads, Random random) {
+            return 2 * super.setup(size, density, threads, random);
+        }
+
+        int[] squares(int size, long seed, double density, Random random) {
+            return anySquares(size, random);
+        }
+
+        int move(int x, int y) {
+            return board.flag(x, y, true).length() + board.deflag(x, y, true).length();
+        }
+    }
+
+    /**
+     * @return the benchmarks, in the order they run
+     */
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("construct", false) {
+            private int size;
+            private double density;
+            private long seed;
+
+            int setup(int size, double density, int threads, Random random) {
+                this.size = size;
+                this.density = density;
+                this.seed = random.nextLong();
+                return 1;
+            }
+
+            void run() {
+                sink += new Board(size, Board.WHOLE_BOARD, seed, density).getSnapshot().getSize();
+            }
+        });
+        benchmarks.add(new Benchmark("load", false) {
+            private File file = null;
+            private int fileSize;
+            private double fileDensity;
+
+            int setup(int size, double density, int threads, Random random) throws IOException {
+                if (file == null || fileSize != size || fileDensity != density) {
+                    if (file != null)
+                        file.delete();
+                    file = boardFile(size, density, random);
+                    fileSize = size;
+                    fileDensity = density;
+                }
+                return 1;
+            }
+
+            void run() {
+                try {
+                    sink += new Board(file).getSnapshot().getSize();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        benchmarks.add(new Moves("look", false, Board.WHOLE_BOARD) {
+            int[] squares(int size, long seed, double density, Random random) {
+                int[] squares = anySquares(size, random);
+                // every look renders the whole board: keep rounds short
+                return Arrays.copyOf(squares, Math.min(squares.length,
+                        Math.max(1, MAX_ROUND_OPERATIONS / size / size)));
+            }
+
+            int move(int x, int y) {
+                board.flag(x, y, true);
+                int result = board.look().length();
+                board.deflag(x, y, true);
+                return result;
+            }
+        });
+        benchmarks.add(new Dig("dig", false, Board.WHOLE_BOARD));
+        benchmarks.add(new Moves("recursiveDig", false, Board.WHOLE_BOARD) {
+            int setup(int size, double density, int threads, Random random) {
+                // without bombs, whatever the density asked for
+                return super.setup(size, 0, threads, random);
+            }
+
+            int[] squares(int size, long seed, double density, Random random) {
+                return new int[] { random.nextInt(size * size) };
+            }
+
+            int move(int x, int y) {
+                return board.dig(x, y, true).length();
+            }
+        });
+        benchmarks.add(new Moves("removeBomb", false, Board.WHOLE_BOARD) {
+            int[] squares(int size, long seed, double density, Random random) {
+                return BoardBenchmark.squares(size, seed, density, true, random);
+            }
+
+            int move(int x, int y) {
+                return board.dig(x, y, true).length();
+            }
+        });
+        benchmarks.add(new Flag("flag", false, Board.WHOLE_BOARD));
+        benchmarks.add(new Dig("contendedDig", true, Board.WHOLE_BOARD));
+        benchmarks.add(new Dig("stripedDig", true, STRIPE_ROWS));
+        benchmarks.add(new Flag("contendedFlag", true, Board.WHOLE_BOARD));
+        benchmarks.add(new Flag("stripedFlag", true, STRIPE_ROWS));
+        return benchmarks;
+    }
+
+    /**
+     * Writes a random board file of size squares per line.
+     * @return File written, deleted on exit
+     */
+    private static File boardFile(int size, double density, Random random) throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        file.deleteOnExit();
+        BufferedWriter out = new BufferedWriter(new FileWriter(file));
+        try {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (x > 0)
+                        out.write(' ');
+                    out.write(random.nextDouble() < density ? '1' : '0');
+                }
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Runs warmup then measured iterations of benchmark.
+     * @return double[] the mean and standard deviation of the ns per
+     *  operation of the measured iterations
+     */
+    private static double[] measure(Benchmark benchmark, int size, double density, int threads,
+            int warmup, int iterations, long millis) throws IOException, InterruptedException {
+        Random random = new Random(size * 31 + threads);
+        double[] nanosPerOperation = new double[iterations];
+        for (int i = 0; i < warmup + iterations; i++) {
+            long timed = 0;
+            long operations = 0;
+            long end = System.nanoTime() + 10 * millis * 1000000;
+            // slow setups end the iteration early, after at least a round
+            while (timed < millis * 1000000 && (operations == 0 || System.nanoTime() < end)) {
+                operations += benchmark.setup(size, density, threads, random);
+                long start = System.nanoTime();
+                benchmark.run();
+                timed += System.nanoTime() - start;
+            }
+            if (i >= warmup)
+                nanosPerOperation[i - warmup] = (double) timed / operations;
+        }
+        double mean = 0;
+        for (double nanos : nanosPerOperation)
+            mean += nanos / iterations;
+        double variance = 0;
+        for (double nanos : nanosPerOperation)
+            variance += (nanos - mean) * (nanos - mean) / Math.max(1, iterations - 1);
+        return new double[] { mean, Math.sqrt(variance) };
+    }
+
+    /**
+     * Runs the benchmarks of Board.
+     *
+     * Usage: BoardBenchmark [--size SIZES] [--density DENSITIES] [--threads THREADS]
+     *                       [--warmup ITERATIONS] [--iterations ITERATIONS] [--time MILLIS]
+     *                       [--only NAMES]
+     *
+     * SIZES is an optional comma separated list of board sizes (100,1000 by default), and
+     * DENSITIES one of bomb densities between 0 and 1 (0.1,0.25 by default). THREADS is an
+     * optional comma separated list of the # of threads of the contended benchmarks (2,8 by
+     * default). E.g. "BoardBenchmark --size 10,100,1000 --density 0.25" measures every benchmark
+     * on three sizes of boards with the default density.
+     *
+     * ITERATIONS are optional positive integers, the # of warmup iterations (5 by default) and of
+     * measured iterations (10 by default) of each benchmark, and MILLIS an optional positive
+     * integer, the # of milliseconds of each iteration (200 by default).
+     *
+     * NAMES is an optional comma separated list of the benchmarks to run (all of them by
+     * default), e.g. "BoardBenchmark --only dig,stripedDig".
+     */
+    public static void main(String[] args) {
+        int[] sizes = { 100, 1000 };
+        double[] densities = { 0.1, 0.25 };
+        int[] threadCounts = { 2, 8 };
+        int warmup = 5;
+        int iterations = 10;
+        long millis = 200;
+        List<String> only = null;
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--size")) {
+                        sizes = positiveInts(arguments.remove(), flag);
+                    } else if (flag.equals("--density")) {
+                        String[] values = arguments.remove().split(",");
+                        densities = new double[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            densities[i] = Double.parseDouble(values[i]);
+                            if ( ! (densities[i] >= 0 && densities[i] <= 1)) {
+                                throw new IllegalArgumentException("density " + values[i] + " must be between 0 and 1");
+                            }
+                        }
+                    } else if (flag.equals("--threads")) {
+                        threadCounts = positiveInts(arguments.remove(), flag);
+                    } else if (flag.equals("--warmup")) {
+                        warmup = Integer.parseInt(arguments.remove());
+                        if (warmup < 0) {
+                            throw new IllegalArgumentException("warmup " + warmup + " can't be negative");
+                        }
+                    } else if (flag.equals("--iterations")) {
+                        iterations = positiveInts(arguments.remove(), flag)[0];
+                    } else if (flag.equals("--time")) {
+                        millis = positiveInts(arguments.remove(), flag)[0];
+                    } else if (flag.equals("--only")) {
+                        only = Arrays.asList(arguments.remove().split(","));
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: BoardBenchmark [--size SIZES] [--density DENSITIES] [--threads THREADS]"
+                    + " [--warmup ITERATIONS] [--iterations ITERATIONS] [--time MILLIS] [--only NAMES]");
+            return;
+        }
+
+        System.out.printf("%-14s %6s %8s %8s %14s %12s %14s%n", "benchmark", "size", "density",
+                "threads", "ns/op", "error", "ops/s");
+        try {
+            for (Benchmark benchmark : benchmarks()) {
+                if (only != null && ! only.contains(benchmark.name))
+                    continue;
+                for (int size : sizes) {
+                    for (double density : densities) {
+                        for (int threads : benchmark.contended ? threadCounts : new int[] { 1 }) {
+                            double[] result = measure(benchmark, size, density, threads, warmup,
+                                    iterations, millis);
+                            System.out.printf("%-14s %6d %8.3f %8d %14.1f %12.1f %14.0f%n",
+                                    benchmark.name, size, density, threads, result[0], result[1],
+                                    1e9 / result[0]);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return int[] the positive integers of a comma separated list
+     */
+    private static int[] positiveInts(String list, String flag) {
+        String[] values = list.split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i]);
+            if (result[i] < 1) {
+                throw new IllegalArgumentException(flag + " " + values[i] + " must be positive");
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,301 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loader of board files, as specified by MinesweeperServer.main():
+ *
+ *   FILE :== LINE+
+ *   LINE :== (VAL SPACE)* VAL NEWLINE
+ *   VAL :== 0 | 1
+ *   SPACE :== " "
+ *   NEWLINE :== "\r?\n"
+ *
+ * The newline of the last line may be missing. The file is memory mapped
+ * and parsed in place, straight into the cells of the board, so loading it
+ * allocates nothing but the cells, however large it is.
+ *
+ * The first line gives the size of the board. Rows are parsed in one pass,
+ * either in order, or split among several threads. Since every line of a
+ * square board has the same length unless the newlines differ, the threads
+ * guess where each row starts from the length of the first line. If any
+ * guess turns out wrong, the file is parsed again in order, which finds the
+ * rows wherever they are, or reports the first error.
+ *
+ * Files that don't follow the grammar, ragged files and files that aren't
+ * square are rejected with an IOException telling where the error is.
+ *
+ * Thread Safety: read() only shares the cells between the threads it
+ * starts, each writing its own rows, and returns once they are done.
+ * @author jains
+ *
+ */
+class BoardFile {
+
+    // Files are mapped in chunks of 1 GB, since a MappedByteBuffer is indexed by an int
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    /**
+     * The # of squares on one edge of the board.
+     */
+    final int size;
+
+    /**
+     * The squares of the board in row-major order: the bomb value given to
+     * read() for a bomb, 0 otherwise.
+     */
+    final byte[] cells;
+
+    private BoardFile(int size, byte[] cells) {
+        this.size = size;
+        this.cells = cells;
+    }
+
+    /**
+     * Loads a board file.
+     * @param file board file to read
+     * @param bomb value of the cells holding a bomb
+     * @param threads int >= 1, the # of threads parsing the rows
+     * @return BoardFile with the size and cells of the board
+     * @throws IOException if file can't be read, doesn't follow the grammar,
+     *  or isn't square
+     */
+    static BoardFile read(File file, byte bomb, int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        Input in = map(file);
+        if (in.length == 0)
+            throw new IOException("Board file is empty");
+
+        // the first line gives the size
+        int size = 0;
+        long pos = 0;
+        long firstLineLength = 0;
+        for (int c = in.get(pos); ; c = in.get(++pos)){
+            if (c == '0' || c == '1'){
+                if (++size > Board.MAX_SIZE)
+                    throw new IOException("Board file is too large: line 1 has more than "
+                            + Board.MAX_SIZE + " squares");
+                c = in.get(++pos);
+            } else {
+                throw unexpected(1, pos, c, "'0' or '1'");
+            }
+            if (c == ' ')
+                continue;
+            firstLineLength = end(in, pos);
+            if (firstLineLength < 0)
+                throw unexpected(1, pos, c, "' ' or a newline");
+            break;
+        }
+
+        byte[] cells = new byte[size * size];
+        if (threads == 1 || size == 1 || ! parse(in, size, cells, bomb, threads, firstLineLength))
+            parse(in, size, cells, bomb);
+        return new BoardFile(size, cells);
+    }
+
+    /**
+     * Parses the rows of in, in order.
+     * @throws IOException at the first error in in
+     */
+    private static void parse(Input in, int size, byte[] cells, byte bomb) throws IOException {
+        long pos = 0;
+        for (int y = 0; y < size; y++){
+            if (pos == in.length)
+                throw new IOException("Board file is not square: it has " + y + " lines of "
+                        + size + " squares");
+            pos = parseRow(in, pos, y, size, cells, bomb);
+        }
+        if (pos < in.length)
+            throw new IOException("Board file is not square: it has more than " + size
+                    + " lines of " + size + " squares");
+    }
+
+    /**
+     * Parses the rows of in with several threads, assuming that each line
+     * is lineLength bytes long, except maybe the last, which may not have a
+     * newline.
+     * @return true if the rows were parsed, false if some line wasn't at the
+     *  guessed place or was invalid
+     * @throws IOException if the threads were interrupted
+     */
+    private static boolean parse(final Input in, final int size, final byte[] cells,
+            final byte bomb, int threads, final long lineLength) throws IOException {
+        final long length = size * lineLength;
+        if (in.length > length || in.length < length - 2)
+            return false;
+
+        threads = Math.min(threads, size);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> parts = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < threads; i++){
+                final int first = (int) ((long) size * i / threads);
+                final int last = (int) ((long) size * (i + 1) / threads);
+                parts.add(pool.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        Input input = in.duplicate();
+                        try {
+                            for (int y = first; y < last; y++){
+                                long end = parseRow(input, y * lineLength, y, size, cells, bomb);
+                                if (end != (y == size - 1 ? in.length : (y + 1) * lineLength))
+                                    return false;
+                            }
+                            return true;
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    }
+                }));
+            }
+            boolean parsed = true;
+            for (Future<Boolean> part : parts)
+                parsed &= part.get();
+            return parsed;
+        } catch (InterruptedException e) {
+            throw new IOException("Board file loading was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parses the row at y of the board, starting at pos.
+     * @return the position right after the line and its newline
+     * @throws IOException if the line doesn't follow the grammar, or
+     *  doesn't have size squares
+     */
+    private static long parseRow(Input in, long pos, int y, int size, byte[] cells, byte bomb)
+            throws IOException {
+        long lineStart = pos;
+        int row = y * size;
+        for (int x = 0; x < size; x++){
+            int c = in.get(pos);
+            if (x > 0){
+                if (c != ' '){
+                    if (end(in, pos) >= 0)
+                        throw ragged(y + 1, x, size);
+                    throw unexpected(y + 1, pos - lineStart, c, "' ' or a newline");
+                }
+                c = in.get(++pos);
+            }
+            if (c != '0' && c != '1')
+                throw unexpected(y + 1, pos - lineStart, c, "'0' or '1'");
+            // also clears what a wrong guess of the threads may have written
+            cells[row + x] = c == '1' ? bomb : 0;
+            pos++;
+        }
+        long end = end(in, pos);
+        if (end >= 0)
+            return end;
+        if (in.get(pos) == ' ')
+            throw ragged(y + 1, size + squares(in, pos), size);
+        throw unexpected(y + 1, pos - lineStart, in.get(pos), "' ' or a newline");
+    }
+
+    /**
+     * @return the position right after the newline at pos, the end of in if
+     *  pos is the end of in, or -1 if there is no newline at pos
+     */
+    private static long end(Input in, long pos) {
+        int c = in.get(pos);
+        if (c == -1 || c == '\n')
+            return Math.min(pos + 1, in.length);
+        if (c == '\r' && in.get(pos + 1) == '\n')
+            return pos + 2;
+        return -1;
+    }
+
+    /**
+     * @return the # of squares from pos to the end of its line
+     */
+    private static int squares(Input in, long pos) {
+        int squares = 0;
+        for (int c = in.get(pos); c != -1 && c != '\r' && c != '\n'; c = in.get(++pos)){
+            if (c == '0' || c == '1')
+                squares++;
+        }
+        return squares;
+    }
+
+    private static IOException ragged(int line, int squares, int size) {
+        return new IOException("Board file is ragged: line " + line + " has " + squares
+                + " squares, expected " + size + " like line 1");
+    }
+
+    private static IOException unexpected(int line, long column, int c, String expected) {
+        String found = c == -1 ? "the end of the file"
+                : c >= ' ' && c < 0x7f ? "'" + (char) c + "'"
+                : String.format("byte 0x%02x", c);
+        return new IOException("Board file is malformed: line " + line + ", column " + (column + 1)
+                + ": expected " + expected + ", found " + found);
+    }
+
+    /**
+     * Maps file into memory, in chunks.
+     */
+    private static Input map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++){
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(CHUNK_MASK + 1, length - start));
+            }
+            // the mappings stay valid once the file is closed
+            return new Input(chunks, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The bytes of a mapped file, addressed by their position in the file.
+     * Each thread needs its own Input, since buffers aren't threadsafe.
+     */
+    private static class Input {
+        private final ByteBuffer[] chunks;
+        private final long length;
+
+        Input(ByteBuffer[] chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        /**
+         * @return the byte at pos, from 0 to 255, or -1 if pos is past the end
+         */
+        int get(long pos) {
+            if (pos >= length)
+                return -1;
+            return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK)) & 0xff;
+        }
+
+        /**
+         * @return Input over the same bytes, for another thread
+         */
+        Input duplicate() {
+            ByteBuffer[] copies = new ByteBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++)
+                copies[i] = chunks[i].duplicate();
+            return new Input(copies, length);
+        }
+    }
+}
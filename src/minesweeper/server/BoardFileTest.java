@@ -0,0 +1,87 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BoardFileTest {
+
+    /**
+     * Testing Strategy:
+     *  - load with one thread and several, with "\n" and "\r\n" newlines,
+     *      mixed newlines, and a missing last newline
+     *  - a board of one square
+     *  - reject an empty file, ragged lines, too few and too many lines,
+     *      and characters outside the grammar
+     */
+
+    private static final byte BOMB = 4;
+
+    /**
+     * @return a temporary file holding contents, deleted on exit
+     */
+    private static File file(String contents) throws IOException {
+        File file = File.createTempFile("board", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertLoads(String contents, byte[] expected) throws IOException {
+        File file = file(contents);
+        for (int threads = 1; threads <= 4; threads++){
+            BoardFile loaded = BoardFile.read(file, BOMB, threads);
+            assertEquals(contents, (int) Math.sqrt(expected.length), loaded.size);
+            assertTrue(contents, Arrays.equals(expected, loaded.cells));
+        }
+    }
+
+    private static void assertRejected(String contents, String message) throws IOException {
+        File file = file(contents);
+        for (int threads = 1; threads <= 2; threads++){
+            try {
+                BoardFile.read(file, BOMB, threads);
+                fail("loaded " + contents);
+            } catch (IOException e) {
+                assertEquals(message, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void loadTest() throws IOException {
+        byte[] expected = { 0, BOMB, 0, BOMB, 0, 0, 0, 0, BOMB };
+        assertLoads("0 1 0\n1 0 0\n0 0 1\n", expected);
+        assertLoads("0 1 0\r\n1 0 0\r\n0 0 1\r\n", expected);
+        assertLoads("0 1 0\r\n1 0 0\n0 0 1\r\n", expected);
+        assertLoads("0 1 0\n1 0 0\n0 0 1", expected);
+        assertLoads("0 1 0\r\n1 0 0\r\n0 0 1", expected);
+        assertLoads("1\n", new byte[] { BOMB });
+        assertLoads("0", new byte[] { 0 });
+    }
+
+    @Test
+    public void invalidTest() throws IOException {
+        assertRejected("", "Board file is empty");
+        assertRejected("0 1\n1\n", "Board file is ragged: line 2 has 1 squares, expected 2 like line 1");
+        assertRejected("0 1\n1 0 0\n", "Board file is ragged: line 2 has 3 squares, expected 2 like line 1");
+        assertRejected("0 1\n", "Board file is not square: it has 1 lines of 2 squares");
+        assertRejected("0 1\n1 0\n0 0\n", "Board file is not square: it has more than 2 lines of 2 squares");
+        assertRejected("0 1\n1 0\n\n", "Board file is not square: it has more than 2 lines of 2 squares");
+        assertRejected("0 1\n1  0\n", "Board file is malformed: line 2, column 3: expected '0' or '1', found ' '");
+        assertRejected("0 1\n1 2\n", "Board file is malformed: line 2, column 3: expected '0' or '1', found '2'");
+        assertRejected("0 1 \n1 0\n", "Board file is malformed: line 1, column 5: expected '0' or '1', found byte 0x0a");
+        assertRejected("0 1\r1 0\n", "Board file is malformed: line 1, column 4: expected ' ' or a newline, found byte 0x0d");
+    }
+}
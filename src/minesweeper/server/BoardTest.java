@@ -25,7 +25,23 @@ public class BoardTest {
      *      - recursive dig shouldn't dig up a flagged square
      *          regardless of having a bomb or not. 
      *      - dig adjacent to flag, expect flag remains
+     *  - dig and flag out of bounds, or on a dug square
      *  - Flag and Unflag
+     *  - a recursive dig across stripes locked one row at a time, growing
+     *      upwards from the bottom row
+     *  - delta answers list exactly the changed squares, including 
+     *      a recursive dig and the squares around a removed bomb
+     *  - snapshots don't change after later moves, and only moves that
+     *      change the board bump the version
+     *  - batch: the changes of all its moves in one delta and one version,
+     *      and a bomb ending the batch
+     *  - subscriptions: the moves between two polls in one delta, nothing
+     *      after unsubscribing, and the whole board after too many changes
+     *  - generated boards: the same seed gives the same bombs, generated in
+     *      parallel or not, as a ChunkedBoard; density 0 and 1; a size
+     *      whose squares don't fit in an array, or negative, is rejected
+     *  - regions: inside the board, across stripes, clipped, off the board,
+     *      and empty; the same as a ChunkedBoard draws
      *  - Number of players - add, remove
      */
     
@@ -224,6 +240,214 @@ public class BoardTest {
         }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
     }
     
+    @Test
+    public void digOutOfBoundsTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            String out = b.dig(3, 0);
+            String expected = "- - -\r\n- - -\r\n- - -\r\n";
+            assertEquals(out, expected);
+            out = b.dig(0, -1);
+            assertEquals(out, expected);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void flagOnDugTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            b.dig(1, 1);
+            b.flag(1, 1);
+            String out = b.look();
+            String expected = "- - -\r\n- 3 -\r\n- - -\r\n";
+            assertEquals(out, expected);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void flagDeltaTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            String out = b.flag(1, 1, true);
+            assertEquals(out, "DELTA 1 1\r\n1 1 F\r\n");
+            out = b.flag(1, 1, true);
+            assertEquals(out, "DELTA 1 0\r\n");
+            out = b.deflag(1, 1, true);
+            assertEquals(out, "DELTA 2 1\r\n1 1 -\r\n");
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void recursiveDigDeltaTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test2.txt"));
+            Board b = new Board(file);
+            String out = b.dig(0, 0, true);
+            String expected = "DELTA 1 12\r\n"
+                    + "0 0  \r\n1 0  \r\n2 0  \r\n3 0  \r\n"
+                    + "0 1  \r\n1 1 1\r\n2 1 1\r\n3 1 1\r\n"
+                    + "0 2  \r\n1 2 1\r\n"
+                    + "0 3  \r\n1 3 1\r\n";
+            assertEquals(out, expected);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void digBombDeltaTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            b.dig(1, 1);
+            String out = b.dig(1, 0, true);
+            String expected = "BOOM!\nDELTA 2 2\r\n1 0 1\r\n1 1 2\r\n";
+            assertEquals(out, expected);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void stripedRecursiveDigTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test2.txt"));
+            Board b = new Board(file, 1);
+            b.flag(1, 1);
+            b.dig(0, 3);
+            String out = b.look();
+            String expected  = "       \r\n  F 1 1\r\n  1 - -\r\n  1 - -\r\n";
+            assertEquals(out, expected);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void snapshotTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            Board.Snapshot before = b.getSnapshot();
+            b.flag(1, 1);
+            Board.Snapshot after = b.getSnapshot();
+            assertEquals(before.getVersion(), 0);
+            assertEquals(after.getVersion(), 1);
+            assertEquals(before.look(), "- - -\r\n- - -\r\n- - -\r\n");
+            assertEquals(after.look(), "- - -\r\n- F -\r\n- - -\r\n");
+            b.flag(1, 1);
+            assertEquals(b.getVersion(), 1);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void batchDeltaTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file, 1);
+            Board.Move[] moves = { Board.Move.FLAG, Board.Move.DIG, Board.Move.FLAG, Board.Move.DEFLAG, Board.Move.DIG };
+            int[] xs = { 0, 2, 2, 0, 5 };
+            int[] ys = { 0, 2, 1, 0, 5 };
+            String out = b.batch(moves, xs, ys, moves.length, true);
+            String expected = "DELTA 1 3\r\n0 0 -\r\n2 1 F\r\n2 2 1\r\n";
+            assertEquals(out, expected);
+            assertEquals(b.getVersion(), 1);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void batchBoomTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            Board.Move[] moves = { Board.Move.DIG, Board.Move.DIG, Board.Move.FLAG };
+            int[] xs = { 1, 1, 2 };
+            int[] ys = { 1, 0, 2 };
+            String out = b.batch(moves, xs, ys, moves.length, false);
+            assertEquals(out, "BOOM!\n");
+            assertEquals(b.look(), "- 1 -\r\n- 2 -\r\n- - -\r\n");
+            assertEquals(b.getVersion(), 1);
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void subscriptionTest() {
+        try{
+            File file = new File(TestUtil.getResourcePathName("autograder/resources/test.txt"));
+            Board b = new Board(file);
+            Subscription subscription = new Subscription(b);
+            assertNull(subscription.poll());
+            b.flag(0, 0);
+            b.flag(2, 1);
+            b.deflag(0, 0);
+            assertEquals(subscription.poll().toString(), "DELTA 3 2\r\n0 0 -\r\n2 1 F\r\n");
+            assertNull(subscription.poll());
+            
+            subscription.unsubscribe();
+            b.flag(0, 0);
+            assertNull(subscription.poll());
+            
+            subscription = new Subscription(b);
+            for (int i = 0; i <= Subscription.MAX_PENDING / 2; i++){
+                b.deflag(0, 0);
+                b.flag(0, 0);
+            }
+            assertEquals(subscription.poll().toString(), "BOARD " + b.getVersion() + "\r\n" + b.look());
+            assertNull(subscription.poll());
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+    
+    @Test
+    public void seededTest() {
+        // large enough to be generated in parallel
+        Board a = new Board(300, Board.WHOLE_BOARD, 42, 0.2);
+        Board b = new Board(300, 32, 42, 0.2);
+        ChunkedBoard c = new ChunkedBoard(300, 42, 0.2, 16);
+        for (int i = 0; i < 50; i++){
+            int x = (i * 37) % 300;
+            int y = (i * 91) % 300;
+            String dig = a.dig(x, y, true);
+            assertEquals(dig, b.dig(x, y, true));
+            assertEquals(dig, c.dig(x, y));
+        }
+        assertEquals(a.look(), b.look());
+        
+        Board empty = new Board(20, Board.WHOLE_BOARD, 1, 0);
+        empty.dig(3, 4);
+        assertFalse(empty.look().contains("-"));
+        Board full = new Board(20, Board.WHOLE_BOARD, 1, 1);
+        assertTrue(full.dig(3, 4).startsWith("BOOM!"));
+    }
+    
+    @Test
+    public void lookRegionTest() {
+        Board a = new Board(100, 7, 42, 0.2);
+        ChunkedBoard c = new ChunkedBoard(100, 42, 0.2, 16);
+        for (int i = 0; i < 20; i++){
+            int x = (i * 37) % 100;
+            int y = (i * 91) % 100;
+            a.dig(x, y, true);
+            c.dig(x, y);
+        }
+        String[] rows = a.look().split("\r\n");
+        String region = a.look(10, 5, 3, 20);
+        String[] regionRows = region.split("\r\n", -1);
+        assertEquals(21, regionRows.length);
+        for (int j = 0; j < 20; j++)
+            assertEquals(rows[5 + j].substring(20, 25), regionRows[j]);
+        assertEquals(c.look(10, 5, 3, 20), region);
+        
+        assertEquals(a.look(), a.look(0, 0, 100, 100));
+        assertEquals(a.look(), a.look(-5, -5, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(c.look(90, 95, 20, 20), a.look(90, 95, 20, 20));
+        assertEquals(rows[99].substring(198) + "\r\n", a.look(99, 99, 1, 1));
+        assertEquals("", a.look(100, 0, 5, 5));
+        assertEquals("", a.look(-5, 0, 5, 5));
+        assertEquals("", a.look(3, 3, 0, 5));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void lookNegativeRegionTest() {
+        new Board(10).look(0, 0, -1, 5);
+    }
+    
     @Test
     public void playersTest(){
         Board b = new Board(10);
@@ -236,4 +460,16 @@ public class BoardTest {
         b.removePlayer();
         assertEquals(b.getNumberOfPlayers(), 2);
     }
+    
+    @Test
+    public void sizeLimitTest() {
+        for (int size : new int[] { -1, Board.MAX_SIZE + 1, 65536 }) {
+            try {
+                new Board(size, Board.WHOLE_BOARD, 1, 0.25);
+                fail("expected IllegalArgumentException for size " + size);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
 }
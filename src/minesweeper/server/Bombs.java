@@ -0,0 +1,54 @@
+package minesweeper.server;
+
+/**
+ * The bombs of generated boards. Whether a square holds a bomb is a pure
+ * function of a seed and the coordinates of the square: the SplitMix64
+ * hash of both, compared to a threshold set by the density of bombs.
+ *
+ * Unlike drawing from a shared random generator, the squares can then be
+ * generated in any order, by any # of threads, or again later, and a seed
+ * always gives the same bombs.
+ *
+ * Thread Safety: Bombs has no state.
+ * @author jains
+ *
+ */
+class Bombs {
+
+    // SplitMix64 increment, the odd integer closest to 2^64 / golden ratio
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private Bombs() {
+    }
+
+    /**
+     * @param density 0 <= density <= 1, the probability of a square
+     *  holding a bomb
+     * @return the threshold for at() giving that density
+     */
+    static long threshold(double density) {
+        if ( ! (density >= 0 && density <= 1))
+            throw new IllegalArgumentException("density must be between 0 and 1: " + density);
+        return (long) (density * (1L << 53));
+    }
+
+    /**
+     * @param seed the seed of the board
+     * @param threshold threshold of the density of the board, see threshold()
+     * @return true if the square x,y of the board holds a bomb
+     */
+    static boolean at(long seed, long threshold, int x, int y) {
+        long square = ((long) y << 32) | (x & 0xffffffffL);
+        return (mix(seed + square * GOLDEN_GAMMA) >>> 11) < threshold;
+    }
+
+    /**
+     * @return the SplitMix64 finalizer of z, a hash whose bits all depend
+     *  on every bit of z
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
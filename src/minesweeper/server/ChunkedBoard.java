@@ -0,0 +1,714 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Minesweeper board too large to hold in memory, generated lazily in
+ * chunks of CHUNK_SIZE x CHUNK_SIZE squares as players explore it.
+ *
+ * The bombs are a pure function of a seed and the coordinates of a square
+ * (see Bombs), the same as those of a Board with the same seed, so a chunk
+ * can be generated whenever it is first touched, and generated again
+ * identically after being dropped. Memory grows with the explored
+ * area, not with the size of the board, which can be up to
+ * Integer.MAX_VALUE squares on each edge.
+ *
+ * Moves work like those of Board, and answer like Board in delta mode, with
+ * just the squares they changed. Since the whole board can't be drawn,
+ * look() draws a rectangular region of it. MinesweeperServer --chunked
+ * serves one to clients, which look at it through regions and viewports
+ * (see ConnectionHandler).
+ *
+ * A dig opens at most MAX_DIG_SQUARES squares, so that a recursive dig
+ * over a sparse board can't run forever. Digging a dug square with no
+ * neighboring bombs opens its untouched neighbors, which continues a dig
+ * that stopped there.
+ *
+ * Thread Safety:
+ *  - Every chunk and the version are guarded by lock. Every public method
+ *      but the player count holds it from start to end, so they are
+ *      atomic with respect to each other, like the methods of a Board
+ *      with a single stripe.
+ *  - The number of players is an AtomicInteger.
+ * @author jains
+ *
+ */
+public class ChunkedBoard {
+
+    /**
+     * # of squares on each edge of a chunk.
+     */
+    public static final int CHUNK_SIZE = 64;
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Probability that a square holds a bomb, unless told otherwise.
+     */
+    public static final double DEFAULT_DENSITY = Board.DEFAULT_DENSITY;
+
+    /**
+     * # of unexplored chunks kept generated, unless told otherwise.
+     */
+    public static final int DEFAULT_CACHED_CHUNKS = 4096;
+
+    /**
+     * Maximum # of squares a single dig opens.
+     */
+    public static final int MAX_DIG_SQUARES = 1 << 14;
+
+    /**
+     * Maximum # of squares look() draws at once, once clipped to the board.
+     * It generates every chunk of the region while holding the lock, so a
+     * larger region would stall the other players and fill the memory.
+     */
+    public static final int MAX_REGION_SQUARES = 1 << 20;
+
+    /*
+     * Every chunk is a byte array of CHUNK_SIZE * CHUNK_SIZE cells, in
+     * row-major order. The low two bits of a cell hold its user state, as
+     * in Board. BOMB marks a bomb, and REMOVED a bomb removed by a dig.
+     *
+     * A chunk is explored if any of its cells differs from what the seed
+     * generates, i.e. isn't UNTOUCHED or had its bomb removed. Explored
+     * chunks are kept in explored for the life of the board. The other
+     * chunks touched recently are kept in cached, in least recently used
+     * order, and dropped beyond maxCachedChunks; any other chunk is
+     * generated again when needed.
+     *
+     * The number of bombs around a square isn't stored: it is counted when
+     * the square is drawn, from the bombs of its neighbors. The chunk found
+     * last is remembered, since the squares drawn one after the other, and
+     * their neighbors, are mostly in the same chunk.
+     */
+
+    private final int size;
+    private final long seed;
+    // threshold of the density of bombs, see Bombs
+    private final long bombThreshold;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Long, Chunk> explored = new HashMap<Long, Chunk>();
+    private final Map<Long, Chunk> cached;
+    // The chunk chunk() found last, and its key, or -1
+    private long lastKey = -1;
+    private Chunk lastChunk = null;
+    private long version = 0;
+
+    // USER STATES (low two bits of a cell), as in Board:
+    private static final byte USER_MASK = 0x03;
+    private static final byte UNTOUCHED = 0x00;
+    private static final byte FLAGGED = 0x01;
+    private static final byte DUG = 0x02;
+
+    private static final byte BOMB = 0x04;
+    private static final int BOMB_SHIFT = 2;
+    private static final byte REMOVED = 0x08;
+
+    private final AtomicInteger numberOfPlayers = new AtomicInteger();
+
+    /**
+     * Makes a board of size x size squares with DEFAULT_DENSITY bombs.
+     * @param size int >= 0, the # of squares on one edge of the board
+     * @param seed the bombs of the board; boards with the same size, seed
+     *  and density have the same bombs
+     */
+    public ChunkedBoard(int size, long seed) {
+        this(size, seed, DEFAULT_DENSITY, DEFAULT_CACHED_CHUNKS);
+    }
+
+    /**
+     * Makes a board of size x size squares.
+     * @param size int >= 0, the # of squares on one edge of the board
+     * @param seed the bombs of the board; boards with the same size, seed
+     *  and density have the same bombs
+     * @param density 0 <= density <= 1, the probability of a square
+     *  holding a bomb
+     * @param maxCachedChunks int >= 0, the # of unexplored chunks kept
+     *  generated
+     */
+    public ChunkedBoard(int size, long seed, double density, final int maxCachedChunks) {
+        if (size < 0)
+            throw new IllegalArgumentException("size can't be negative: " + size);
+        if (maxCachedChunks < 0)
+            throw new IllegalArgumentException("maxCachedChunks can't be negative: " + maxCachedChunks);
+        this.size = size;
+        this.seed = seed;
+        this.bombThreshold = Bombs.threshold(density);
+        this.cached = new LinkedHashMap<Long, Chunk>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chunk> eldest) {
+                return size() > maxCachedChunks;
+            }
+        };
+    }
+
+    /**
+     * The squares of a chunk, and the # of them that differ from what the
+     * seed generates.
+     */
+    private static class Chunk {
+        private final byte[] cells = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        private int changed = 0;
+    }
+
+    /**
+     * @return the key of the chunk holding x,y in explored and cached
+     */
+    private static long key(int x, int y) {
+        return ((long) (y >>> CHUNK_BITS) << 32) | (x >>> CHUNK_BITS);
+    }
+
+    /**
+     * @return index of x,y in the cells of its chunk
+     */
+    private static int offset(int x, int y) {
+        return (y & CHUNK_MASK) * CHUNK_SIZE + (x & CHUNK_MASK);
+    }
+
+    /**
+     * Requires lock to be held.
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @return the chunk holding x,y, generated if needed. Only valid until
+     *  the next call, which may drop it if it isn't explored.
+     */
+    private Chunk chunk(int x, int y) {
+        long key = key(x, y);
+        if (key == lastKey)
+            return lastChunk;
+        Chunk chunk = explored.get(key);
+        if (chunk == null)
+            chunk = cached.get(key);
+        if (chunk == null){
+            chunk = new Chunk();
+            int x0 = x & ~CHUNK_MASK;
+            int y0 = y & ~CHUNK_MASK;
+            for (int j = 0; j < CHUNK_SIZE && y0 + j < size; j++){
+                for (int i = 0; i < CHUNK_SIZE && x0 + i < size; i++){
+                    if (Bombs.at(seed, bombThreshold, x0 + i, y0 + j))
+                        chunk.cells[j * CHUNK_SIZE + i] = BOMB;
+                }
+            }
+            cached.put(key, chunk);
+        }
+        lastKey = key;
+        lastChunk = chunk;
+        return chunk;
+    }
+
+    /**
+     * Requires lock to be held.
+     * @return the cell of x,y. 0 <= x,y < size
+     */
+    private byte cell(int x, int y) {
+        return chunk(x, y).cells[offset(x, y)];
+    }
+
+    /**
+     * Sets the cell of x,y, keeping the chunk explored while any of its
+     * cells differs from what the seed generates. Requires lock to be held.
+     * @param x int x coord. 0 <= x < size
+     * @param y int y coord. 0 <= y < size
+     * @param cell the new cell
+     */
+    private void setCell(int x, int y, byte cell) {
+        long key = key(x, y);
+        Chunk chunk = chunk(x, y);
+        int offset = offset(x, y);
+        int before = chunk.changed;
+        if (differs(chunk.cells[offset]))
+            chunk.changed--;
+        if (differs(cell))
+            chunk.changed++;
+        chunk.cells[offset] = cell;
+        if (before == 0 && chunk.changed > 0){
+            cached.remove(key);
+            explored.put(key, chunk);
+        } else if (before > 0 && chunk.changed == 0){
+            explored.remove(key);
+            cached.put(key, chunk);
+        }
+    }
+
+    /**
+     * @return true if cell differs from any cell the seed generates
+     */
+    private static boolean differs(byte cell) {
+        return (cell & (USER_MASK | REMOVED)) != 0;
+    }
+
+    /**
+     * Requires lock to be held.
+     * @return true if x,y is on the board and holds a bomb
+     */
+    private boolean isBomb(int x, int y) {
+        return inBounds(x, y) && (cell(x, y) & BOMB) != 0;
+    }
+
+    /**
+     * Requires lock to be held.
+     * @return int 0-8, the # of bombs around x,y
+     */
+    private int adjacentBombCount(int x, int y) {
+        int cx = x & CHUNK_MASK;
+        int cy = y & CHUNK_MASK;
+        if (cx > 0 && cx < CHUNK_MASK && cy > 0 && cy < CHUNK_MASK){
+            // every neighbor is in the chunk of x,y, and those past the
+            // edge of the board hold no bomb
+            byte[] cells = chunk(x, y).cells;
+            int above = offset(x, y) - CHUNK_SIZE - 1;
+            int below = above + 2 * CHUNK_SIZE;
+            return (cells[above] & BOMB) + (cells[above + 1] & BOMB) + (cells[above + 2] & BOMB)
+                    + (cells[above + CHUNK_SIZE] & BOMB) + (cells[above + CHUNK_SIZE + 2] & BOMB)
+                    + (cells[below] & BOMB) + (cells[below + 1] & BOMB) + (cells[below + 2] & BOMB)
+                    >>> BOMB_SHIFT;
+        }
+        int count = 0;
+        for (int j = y - 1; j <= y + 1; j++){
+            for (int i = x - 1; i <= x + 1; i++){
+                if ((i != x || j != y) && isBomb(i, j))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Requires lock to be held.
+     * @return char representing the square at x,y as Board.look() does
+     */
+    private char squareChar(int x, int y) {
+        switch (cell(x, y) & USER_MASK) {
+        case UNTOUCHED:
+            return '-';
+        case FLAGGED:
+            return 'F';
+        default:
+            int count = adjacentBombCount(x, y);
+            return count == 0 ? ' ' : (char) ('0' + count);
+        }
+    }
+
+    /**
+     * @return boolean true if x,y is a square on this board
+     */
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < size && y < size;
+    }
+
+    /**
+     * The squares changed by a move, by their key y << 32 | x, which sorts
+     * them in row-major order.
+     */
+    private static class Changes {
+        private long[] squares = new long[16];
+        private int count = 0;
+
+        void add(int x, int y) {
+            if (count == squares.length)
+                squares = Arrays.copyOf(squares, 2 * count);
+            squares[count++] = ((long) y << 32) | x;
+        }
+    }
+
+    /**
+     * Digs at x,y, like Board.dig(x, y, true). The first bomb dug is
+     * removed, and a square with no neighboring bombs opens its
+     * neighbors, up to MAX_DIG_SQUARES squares in all.
+     * @param x int x coord
+     * @param y int y coord
+     * @return String listing the changed squares, as Board.dig(x, y, true)
+     *  does, preceded by a BOOM message if the square held a bomb
+     */
+    public String dig(int x, int y) {
+        lock.lock();
+        try {
+            Changes changes = new Changes();
+            boolean boom = dig(x, y, changes);
+            String delta = changes(changes);
+            return boom ? "BOOM!\n" + delta : delta;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Does the work of dig(x, y). Requires lock to be held.
+     * @param changes where the changed squares are added
+     * @return boolean true if the square held a bomb
+     */
+    private boolean dig(int x, int y, Changes changes) {
+        if ( ! inBounds(x, y))
+            return false;
+        int limit = changes.count + MAX_DIG_SQUARES;
+        boolean boom = false;
+        byte cell = cell(x, y);
+        if ((cell & USER_MASK) == UNTOUCHED){
+            if ((cell & BOMB) != 0){
+                // the neighbors showing their count change too
+                boom = true;
+                setCell(x, y, (byte) ((cell & ~(BOMB | USER_MASK)) | REMOVED | DUG));
+                changes.add(x, y);
+                for (int j = y - 1; j <= y + 1; j++){
+                    for (int i = x - 1; i <= x + 1; i++){
+                        if ((i != x || j != y) && inBounds(i, j)
+                                && (cell(i, j) & USER_MASK) == DUG)
+                            changes.add(i, j);
+                    }
+                }
+            } else {
+                setCell(x, y, (byte) (cell | DUG));
+                changes.add(x, y);
+            }
+            if (adjacentBombCount(x, y) == 0)
+                open(x, y, changes, limit);
+        } else if ((cell & USER_MASK) == DUG && adjacentBombCount(x, y) == 0){
+            open(x, y, changes, limit);
+        }
+        return boom;
+    }
+
+    /**
+     * Digs the untouched squares around x,y, which is dug and has no
+     * neighboring bombs, and around those of them that have none either,
+     * breadth first, until changes holds limit squares.
+     * Requires lock to be held.
+     */
+    private void open(int x, int y, Changes changes, int limit) {
+        long[] queue = new long[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ((long) y << 32) | x;
+        while (head < tail && changes.count < limit){
+            int qx = (int) queue[head];
+            int qy = (int) (queue[head++] >>> 32);
+            for (int j = qy - 1; j <= qy + 1; j++){
+                for (int i = qx - 1; i <= qx + 1; i++){
+                    if ( ! inBounds(i, j) || changes.count >= limit)
+                        continue;
+                    // No bomb, and not dug or flagged
+                    byte cell = cell(i, j);
+                    if ((cell & (USER_MASK | BOMB)) != UNTOUCHED)
+                        continue;
+                    setCell(i, j, (byte) (cell | DUG));
+                    changes.add(i, j);
+                    if (adjacentBombCount(i, j) == 0){
+                        if (tail == queue.length)
+                            queue = Arrays.copyOf(queue, 2 * tail);
+                        queue[tail++] = ((long) j << 32) | i;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Flags the square at x,y, like Board.flag(x, y, true).
+     * @param x int x coord
+     * @param y int y coord
+     * @return String listing the changed squares, as Board.flag(x, y, true)
+     *  does
+     */
+    public String flag(int x, int y) {
+        return setUserState(x, y, UNTOUCHED, FLAGGED);
+    }
+
+    /**
+     * Deflags the square at x,y, like Board.deflag(x, y, true).
+     * @param x int x coord
+     * @param y int y coord
+     * @return String listing the changed squares, as Board.deflag(x, y, true)
+     *  does
+     */
+    public String deflag(int x, int y) {
+        return setUserState(x, y, FLAGGED, UNTOUCHED);
+    }
+
+    private String setUserState(int x, int y, byte from, byte to) {
+        lock.lock();
+        try {
+            Changes changes = new Changes();
+            setUserState(x, y, from, to, changes);
+            return changes(changes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the user state of x,y to to if it is from. Requires lock to be
+     * held.
+     * @param changes where the square is added if it changed
+     */
+    private void setUserState(int x, int y, byte from, byte to, Changes changes) {
+        if (inBounds(x, y)){
+            byte cell = cell(x, y);
+            if ((cell & USER_MASK) == from){
+                setCell(x, y, (byte) ((cell & ~USER_MASK) | to));
+                changes.add(x, y);
+            }
+        }
+    }
+
+    /**
+     * Makes several moves at once, like Board.batch(moves, xs, ys, count,
+     * true): no other player sees the board between two of them, and a
+     * dig that hits a bomb ends the batch. Each dig opens at most
+     * MAX_DIG_SQUARES squares.
+     * @param moves the kind of each move
+     * @param xs the x coord of each move
+     * @param ys the y coord of each move
+     * @param count int >= 0, the # of moves to make, at most the length of
+     *  moves, xs and ys
+     * @return String listing the squares the whole batch changed, as
+     *  Board.batch() does in delta mode, preceded by a BOOM message if a
+     *  dig hit a bomb
+     */
+    public String batch(Board.Move[] moves, int[] xs, int[] ys, int count) {
+        lock.lock();
+        try {
+            Changes changes = new Changes();
+            boolean boom = batch(moves, xs, ys, count, changes);
+            String delta = changes(changes);
+            return boom ? "BOOM!\n" + delta : delta;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes a move, like dig(), flag() or deflag(), without listing the
+     * squares it changed.
+     * @param move the kind of move
+     * @param x int x coord
+     * @param y int y coord
+     * @return boolean true if it was a dig that hit a bomb
+     */
+    boolean play(Board.Move move, int x, int y) {
+        lock.lock();
+        try {
+            Changes changes = new Changes();
+            boolean boom = move(move, x, y, changes);
+            if (changes.count > 0)
+                version++;
+            return boom;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes several moves at once, like batch(), without listing the
+     * squares they changed.
+     * @return boolean true if a dig hit a bomb
+     */
+    boolean play(Board.Move[] moves, int[] xs, int[] ys, int count) {
+        lock.lock();
+        try {
+            Changes changes = new Changes();
+            boolean boom = batch(moves, xs, ys, count, changes);
+            if (changes.count > 0)
+                version++;
+            return boom;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Does the work of batch(moves, xs, ys, count). Requires lock to be
+     * held.
+     * @param changes where the changed squares are added
+     * @return boolean true if a dig hit a bomb
+     */
+    private boolean batch(Board.Move[] moves, int[] xs, int[] ys, int count, Changes changes) {
+        boolean boom = false;
+        for (int i = 0; i < count && ! boom; i++)
+            boom = move(moves[i], xs[i], ys[i], changes);
+        return boom;
+    }
+
+    /**
+     * Makes a move. Requires lock to be held.
+     * @param changes where the changed squares are added
+     * @return boolean true if it was a dig that hit a bomb
+     */
+    private boolean move(Board.Move move, int x, int y, Changes changes) {
+        switch (move) {
+        case DIG:
+            return dig(x, y, changes);
+        case FLAG:
+            setUserState(x, y, UNTOUCHED, FLAGGED, changes);
+            return false;
+        default:
+            setUserState(x, y, FLAGGED, UNTOUCHED, changes);
+            return false;
+        }
+    }
+
+    /**
+     * Bumps the version if anything changed. Requires lock to be held.
+     * @return String listing the changed squares in the format of
+     *  Board.dig(x, y, true), in row-major order
+     */
+    private String changes(Changes changes) {
+        if (changes.count > 0)
+            version++;
+        long[] squares = changes.squares;
+        Arrays.sort(squares, 0, changes.count);
+        int count = 0;
+        for (int i = 0; i < changes.count; i++){
+            if (i == 0 || squares[i] != squares[i-1])
+                squares[count++] = squares[i];
+        }
+        StringBuilder result = new StringBuilder(16 * (count + 1));
+        result.append("DELTA ").append(version).append(' ').append(count).append("\r\n");
+        for (int i = 0; i < count; i++){
+            int x = (int) squares[i];
+            int y = (int) (squares[i] >>> 32);
+            result.append(x).append(' ').append(y).append(' ')
+                .append(squareChar(x, y)).append("\r\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Draws a region of the board, clipped to the board.
+     * @param x int x coord of the left column of the region
+     * @param y int y coord of the top row of the region
+     * @param width int >= 0, the # of columns of the region
+     * @param height int >= 0, the # of rows of the region
+     * @return String drawing the squares of the region in the format of
+     *  Board.look(), one line per row. Empty if the region is off the board.
+     * @throws IllegalArgumentException if the region clipped to the board
+     *  has more than MAX_REGION_SQUARES squares
+     */
+    public String look(int x, int y, int width, int height) {
+        return look(x, y, width, height, false);
+    }
+
+    /**
+     * Draws a region of the board, clipped to the board, like
+     * look(x, y, width, height).
+     * @param versioned true to precede the region with a line "BOARD v\r\n",
+     *  v being the version of the board drawn, which the DELTA answers of
+     *  the following moves build on
+     * @return String drawing the region, preceded by its version if
+     *  versioned
+     */
+    String look(int x, int y, int width, int height, boolean versioned) {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("negative region: " + width + " x " + height);
+        int x0 = Math.max(0, x);
+        int y0 = Math.max(0, y);
+        int x1 = (int) Math.min(size, (long) x + width);
+        int y1 = (int) Math.min(size, (long) y + height);
+        boolean empty = x1 <= x0 || y1 <= y0;
+        if (empty && ! versioned)
+            return "";
+        long squares = empty ? 0 : (long) (x1 - x0) * (y1 - y0);
+        if (squares > MAX_REGION_SQUARES)
+            throw new IllegalArgumentException("region too large: " + width + " x " + height);
+        StringBuilder result = new StringBuilder(empty ? 32 : (int) (32 + 2 * (squares + y1 - y0)));
+        lock.lock();
+        try {
+            if (versioned)
+                result.append("BOARD ").append(version).append("\r\n");
+            for (int j = y0; j < y1 && ! empty; j++){
+                for (int i = x0; i < x1; i++){
+                    if (i > x0)
+                        result.append(' ');
+                    result.append(squareChar(i, j));
+                }
+                result.append("\r\n");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return int the # of squares on one edge of the board
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return long the # of moves that changed the board so far
+     */
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return int the # of chunks held in memory, explored or cached
+     */
+    public int getChunkCount() {
+        lock.lock();
+        try {
+            return explored.size() + cached.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return int the # of explored chunks, which are held in memory for
+     *  the life of the board
+     */
+    public int getExploredChunkCount() {
+        lock.lock();
+        try {
+            return explored.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if x,y is on the board and holds a bomb
+     */
+    boolean hasBomb(int x, int y) {
+        lock.lock();
+        try {
+            return isBomb(x, y);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a player to this board
+     */
+    public void addPlayer() {
+        numberOfPlayers.incrementAndGet();
+    }
+
+    /**
+     * Removes a player from this board.
+     */
+    public void removePlayer() {
+        numberOfPlayers.decrementAndGet();
+    }
+
+    /**
+     * @return int representing the current number of players
+     */
+    public int getNumberOfPlayers() {
+        return numberOfPlayers.get();
+    }
+}
@@ -0,0 +1,189 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChunkedBoardTest {
+
+    /**
+     * Testing Strategy:
+     *  - moves answer exactly like a Board with the same bombs, across
+     *      chunk edges, including recursive digs and removed bombs
+     *  - boards with the same seed have the same bombs, and with another
+     *      seed different ones
+     *  - unexplored chunks are dropped beyond the cache size, explored ones
+     *      are kept, and a chunk whose moves are undone can be dropped
+     *  - a dig stops after MAX_DIG_SQUARES squares, and continues from
+     *      its edge
+     *  - a batch answers like the batch of a Board with the same bombs,
+     *      and ends at a bomb
+     *  - a versioned look, of a region and of an empty one
+     *  - moves played without listing their changes change the board and
+     *      its version like the others, and tell a BOOM
+     *  - a look at more than MAX_REGION_SQUARES squares of the board, even
+     *      one whose # of squares overflows an int, is rejected
+     */
+
+    @Test
+    public void matchesBoardTest() {
+        try{
+            int size = 150;
+            ChunkedBoard chunked = new ChunkedBoard(size, 42, 0.15, 1);
+            StringBuilder bombs = new StringBuilder();
+            for (int y = 0; y < size; y++){
+                for (int x = 0; x < size; x++)
+                    bombs.append(x > 0 ? " " : "").append(chunked.hasBomb(x, y) ? '1' : '0');
+                bombs.append('\n');
+            }
+            File file = File.createTempFile("board", ".txt");
+            file.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(bombs.toString().getBytes(StandardCharsets.US_ASCII));
+            } finally {
+                out.close();
+            }
+            Board board = new Board(file);
+
+            Random random = new Random(1);
+            for (int i = 0; i < 300; i++){
+                int x = random.nextInt(size + 2) - 1;
+                int y = random.nextInt(size + 2) - 1;
+                switch (random.nextInt(3)){
+                case 0:
+                    assertEquals(board.dig(x, y, true), chunked.dig(x, y));
+                    break;
+                case 1:
+                    assertEquals(board.flag(x, y, true), chunked.flag(x, y));
+                    break;
+                default:
+                    assertEquals(board.deflag(x, y, true), chunked.deflag(x, y));
+                }
+            }
+            assertEquals(board.look(), chunked.look(0, 0, size, size));
+            assertEquals(board.getVersion(), chunked.getVersion());
+        }catch (IOException e){ fail("Test did not run"); e.printStackTrace(); }
+    }
+
+    @Test
+    public void seedTest() {
+        ChunkedBoard a = new ChunkedBoard(Integer.MAX_VALUE, 7);
+        ChunkedBoard b = new ChunkedBoard(Integer.MAX_VALUE, 7);
+        ChunkedBoard c = new ChunkedBoard(Integer.MAX_VALUE, 8);
+        int x = Integer.MAX_VALUE - 100;
+        int y = 1000000;
+        boolean differ = false;
+        for (int j = y; j < y + 100; j++){
+            for (int i = x; i < x + 100; i++){
+                assertEquals(a.hasBomb(i, j), b.hasBomb(i, j));
+                differ |= a.hasBomb(i, j) != c.hasBomb(i, j);
+            }
+        }
+        assertTrue(differ);
+        assertEquals(a.dig(x, y), b.dig(x, y));
+        assertEquals(a.look(x - 10, y - 10, 200, 20), b.look(x - 10, y - 10, 200, 20));
+        assertEquals("", a.look(Integer.MAX_VALUE, 0, 10, 10));
+    }
+
+    @Test
+    public void evictionTest() {
+        ChunkedBoard board = new ChunkedBoard(1000, 3, 0.25, 2);
+        String region = board.look(0, 0, 1000, 1000);
+        assertEquals(2, board.getChunkCount());
+
+        int x = 5 * ChunkedBoard.CHUNK_SIZE;
+        board.flag(x, x);
+        board.look(0, 0, 1000, 1000);
+        assertEquals(1, board.getExploredChunkCount());
+        assertEquals(3, board.getChunkCount());
+
+        board.deflag(x, x);
+        assertEquals(0, board.getExploredChunkCount());
+        assertEquals(region, board.look(0, 0, 1000, 1000));
+        assertEquals(2, board.getChunkCount());
+    }
+
+    @Test
+    public void digLimitTest() {
+        ChunkedBoard board = new ChunkedBoard(1000000, 5, 0, 16);
+        assertTrue(board.dig(0, 0).startsWith("DELTA 1 " + ChunkedBoard.MAX_DIG_SQUARES + "\r\n"));
+        assertEquals("DELTA 1 0\r\n", board.dig(0, 0));
+
+        String row = board.look(0, 0, 1000, 1);
+        int edge = row.indexOf('-') / 2 - 1;
+        assertTrue(edge > 0);
+        assertTrue(board.dig(edge, 0).startsWith("DELTA 2 "));
+    }
+
+    @Test
+    public void batchTest() {
+        ChunkedBoard chunked = new ChunkedBoard(70, 9, 0.2, 4);
+        byte[] squares = new byte[70 * 70];
+        for (int i = 0; i < squares.length; i++)
+            squares[i] = (byte) (chunked.hasBomb(i % 70, i / 70) ? 4 : 0);
+        Board board = new Board(70, squares, Board.WHOLE_BOARD);
+        Board.Move[] moves = { Board.Move.FLAG, Board.Move.DIG, Board.Move.DEFLAG, Board.Move.DIG };
+        Random random = new Random(4);
+        for (int i = 0; i < 50; i++){
+            int[] xs = new int[moves.length];
+            int[] ys = new int[moves.length];
+            for (int j = 0; j < moves.length; j++){
+                xs[j] = random.nextInt(72) - 1;
+                ys[j] = random.nextInt(72) - 1;
+            }
+            assertEquals(board.batch(moves, xs, ys, moves.length, true),
+                    chunked.batch(moves, xs, ys, moves.length));
+        }
+        assertEquals(board.look(), chunked.look(0, 0, 70, 70));
+    }
+
+    @Test
+    public void versionedLookTest() {
+        ChunkedBoard board = new ChunkedBoard(100, 2, 0.1, 4);
+        board.flag(1, 1);
+        assertEquals("BOARD 1\r\n" + board.look(0, 0, 3, 2), board.look(0, 0, 3, 2, true));
+        assertEquals("BOARD 1\r\n", board.look(200, 0, 3, 2, true));
+        assertEquals(board.look(0, 0, 3, 2), board.look(0, 0, 3, 2, false));
+    }
+
+    @Test
+    public void playTest() {
+        ChunkedBoard played = new ChunkedBoard(100, 4, 0.2, 4);
+        ChunkedBoard listed = new ChunkedBoard(100, 4, 0.2, 4);
+        assertFalse(played.play(Board.Move.FLAG, 5, 5));
+        listed.flag(5, 5);
+        Board.Move[] moves = { Board.Move.DEFLAG, Board.Move.DIG, Board.Move.DIG };
+        int[] xs = { 5, 20, 40 };
+        int[] ys = { 5, 30, 60 };
+        assertEquals(listed.batch(moves, xs, ys, 3).startsWith("BOOM!\n"), played.play(moves, xs, ys, 3));
+        assertEquals(listed.getVersion(), played.getVersion());
+        assertEquals(listed.look(0, 0, 100, 100), played.look(0, 0, 100, 100));
+        for (int x = 0; x < 10; x++)
+            assertEquals(new ChunkedBoard(100, 4, 0.2, 4).dig(x, 90).startsWith("BOOM!\n"),
+                    new ChunkedBoard(100, 4, 0.2, 4).play(Board.Move.DIG, x, 90));
+    }
+
+    @Test
+    public void regionLimitTest() {
+        ChunkedBoard board = new ChunkedBoard(1000000, 2, 0.1, 4);
+        assertEquals((2 * 1024 + 1) * 1024, board.look(0, 0, 1024, 1024).length());
+        for (int side : new int[] { 1025, 60000 }) {
+            try {
+                board.look(0, 0, side, side);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // clipped to the board first
+        assertEquals((2 * 100 + 1) * 100, new ChunkedBoard(100, 2, 0.1, 4).look(0, 0, 60000, 60000).length());
+        assertEquals(0, board.getVersion());
+    }
+}
@@ -0,0 +1,370 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+
+/**
+ * A request from a client, parsed from one line of the text protocol:
+ *
+ *   REQUEST :== "look" | "help" | "bye" | "delta on" | "delta off" | MOVE
+ *             | "batch " MOVE (";" " "? MOVE)* | "binary" | "binary rle"
+ *             | "subscribe" | "unsubscribe" | "join " ROOM (" " INT)?
+ *             | "stats" | "look " REGION | "viewport " REGION | "viewport off"
+ *   MOVE :== ("dig" | "flag" | "deflag") " " INT " " INT
+ *   REGION :== INT " " INT " " INT " " INT, of at most MAX_REGION_SQUARES
+ *             squares
+ *   INT :== "-"? [0-9]+
+ *   ROOM :== [A-Za-z0-9_-]{1,32}
+ *
+ * The parser reads the characters in place, and fills in the fields of this
+ * object, so a ConnectionHandler can parse every line into the same Command
+ * without allocating anything. Numbers too large for an int are clamped to
+ * Integer.MIN_VALUE or Integer.MAX_VALUE, which are out of bounds of any board.
+ *
+ * BinaryProtocol decodes the requests of the binary protocol into a Command
+ * as well.
+ * 
+ * Thread Safety: a Command is mutable, and must only be used by one thread
+ * at a time.
+ * @author jains
+ *
+ */
+class Command {
+
+    /**
+     * The kinds of requests.
+     */
+    enum Opcode { LOOK, HELP, BYE, DELTA_ON, DELTA_OFF, DIG, FLAG, DEFLAG, BATCH, BINARY, BINARY_RLE,
+        SUBSCRIBE, UNSUBSCRIBE, JOIN, STATS, LOOK_REGION, VIEWPORT, VIEWPORT_OFF }
+
+    private static final String LOOK = "look";
+    private static final String HELP = "help";
+    private static final String BYE = "bye";
+    private static final String DELTA_ON = "delta on";
+    private static final String DELTA_OFF = "delta off";
+    private static final String DIG = "dig ";
+    private static final String FLAG = "flag ";
+    private static final String DEFLAG = "deflag ";
+    private static final String BATCH = "batch ";
+    private static final String BINARY = "binary";
+    private static final String BINARY_RLE = "binary rle";
+    private static final String SUBSCRIBE = "subscribe";
+    private static final String UNSUBSCRIBE = "unsubscribe";
+    private static final String JOIN = "join ";
+    private static final String STATS = "stats";
+    private static final String LOOK_REGION = "look ";
+    private static final String VIEWPORT = "viewport ";
+    private static final String VIEWPORT_OFF = "viewport off";
+    
+    /**
+     * Maximum length of the name of a room.
+     */
+    static final int MAX_ROOM_LENGTH = 32;
+
+    /**
+     * Maximum # of squares of the region of a look or viewport request, so
+     * that its answer stays small whatever the size of the board.
+     */
+    static final int MAX_REGION_SQUARES = ChunkedBoard.MAX_REGION_SQUARES;
+
+    // Any number at least this large is clamped
+    private static final long CLAMP = 1L << 32;
+
+    /**
+     * The kind of the last request parsed, or null if it was invalid.
+     */
+    Opcode opcode;
+    /**
+     * The coordinates of the last dig, flag or deflag request parsed, or
+     * of the top left square of the last region parsed.
+     */
+    int x, y;
+    /**
+     * The # of columns and rows of the region of the last look or viewport
+     * request parsed.
+     */
+    int width, height;
+    /**
+     * The moves of the last batch request parsed: the first batchLength
+     * entries of batchMoves, batchX and batchY.
+     */
+    Board.Move[] batchMoves = new Board.Move[8];
+    int[] batchX = new int[8];
+    int[] batchY = new int[8];
+    int batchLength;
+    /**
+     * The room of the last join request parsed, and the size it asked
+     * for, or 0 if it didn't.
+     */
+    String room;
+    int roomSize;
+
+    // The line being parsed: either text, or the first length bytes
+    // of bytes, read as ISO-8859-1 characters
+    private CharSequence text;
+    private byte[] bytes;
+    private int length;
+
+    // Position of the next character to read
+    private int pos;
+    // The last number read by number()
+    private long value;
+
+    /**
+     * Parses a line.
+     * @param line the request, without its line terminator
+     * @return true if line is a valid request, which is then described by
+     *  the fields of this command; false otherwise, and opcode is then null
+     */
+    boolean parse(CharSequence line) {
+        this.text = line;
+        this.bytes = null;
+        this.length = line.length();
+        return parse();
+    }
+
+    /**
+     * Parses a line of bytes, read as ISO-8859-1 characters.
+     * @param line array holding the request, without its line terminator
+     * @param length the # of bytes of line making up the request
+     * @return true if the request is valid, which is then described by
+     *  the fields of this command; false otherwise, and opcode is then null
+     */
+    boolean parse(byte[] line, int length) {
+        this.text = null;
+        this.bytes = line;
+        this.length = length;
+        return parse();
+    }
+
+    private boolean parse() {
+        opcode = parseOpcode();
+        text = null;
+        bytes = null;
+        return opcode != null;
+    }
+
+    /**
+     * @return the Opcode of the whole line, or null if it isn't a valid request
+     */
+    private Opcode parseOpcode() {
+        pos = 0;
+        if (length == 0)
+            return null;
+        switch (charAt(0)) {
+        case 'l':
+            if (whole(LOOK))
+                return Opcode.LOOK;
+            return skip(LOOK_REGION) && region() ? Opcode.LOOK_REGION : null;
+        case 'v':
+            if (whole(VIEWPORT_OFF))
+                return Opcode.VIEWPORT_OFF;
+            return skip(VIEWPORT) && region() ? Opcode.VIEWPORT : null;
+        case 'h':
+            return whole(HELP) ? Opcode.HELP : null;
+        case 's':
+            if (whole(STATS))
+                return Opcode.STATS;
+            return whole(SUBSCRIBE) ? Opcode.SUBSCRIBE : null;
+        case 'u':
+            return whole(UNSUBSCRIBE) ? Opcode.UNSUBSCRIBE : null;
+        case 'j':
+            return skip(JOIN) && join() ? Opcode.JOIN : null;
+        case 'b':
+            if (whole(BYE))
+                return Opcode.BYE;
+            if (whole(BINARY))
+                return Opcode.BINARY;
+            if (whole(BINARY_RLE))
+                return Opcode.BINARY_RLE;
+            return skip(BATCH) && batch() ? Opcode.BATCH : null;
+        case 'd':
+            if (whole(DELTA_ON))
+                return Opcode.DELTA_ON;
+            if (whole(DELTA_OFF))
+                return Opcode.DELTA_OFF;
+            return moveOpcode();
+        case 'f':
+            return moveOpcode();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Reads MOVE up to the end of the line, into x and y.
+     * @return the Opcode of the move, or null if the rest of the line
+     *  doesn't match
+     */
+    private Opcode moveOpcode() {
+        Board.Move move = move();
+        if (move == null || pos != length)
+            return null;
+        return move == Board.Move.DIG ? Opcode.DIG
+                : move == Board.Move.FLAG ? Opcode.FLAG : Opcode.DEFLAG;
+    }
+
+    /**
+     * Reads MOVE (";" " "? MOVE)* up to the end of the line, into the batch
+     * fields.
+     * @return true if the rest of the line matches
+     */
+    private boolean batch() {
+        batchLength = 0;
+        while (true) {
+            Board.Move move = move();
+            if (move == null)
+                return false;
+            addBatchMove(move, x, y);
+            if (pos == length)
+                return true;
+            if ( ! skip(";"))
+                return false;
+            skip(" ");
+        }
+    }
+    
+    /**
+     * Reads ROOM (" " INT)? up to the end of the line, into room and roomSize.
+     * @return true if the rest of the line matches
+     */
+    private boolean join() {
+        int start = pos;
+        while (pos < length && pos - start < MAX_ROOM_LENGTH && isRoomChar(charAt(pos)))
+            pos++;
+        if (pos == start)
+            return false;
+        StringBuilder name = new StringBuilder(pos - start);
+        for (int i = start; i < pos; i++)
+            name.append(charAt(i));
+        room = name.toString();
+        roomSize = 0;
+        if (pos == length)
+            return true;
+        if ( ! skip(" ") || ! number() || pos != length)
+            return false;
+        roomSize = (int) value;
+        return true;
+    }
+    
+    /**
+     * Reads REGION up to the end of the line, into x, y, width and height.
+     * @return true if the rest of the line matches
+     */
+    private boolean region() {
+        if ( ! coordinates() || ! skip(" ") || ! number())
+            return false;
+        width = (int) value;
+        if ( ! skip(" ") || ! number() || pos != length)
+            return false;
+        height = (int) value;
+        return (long) width * height <= MAX_REGION_SQUARES;
+    }
+    
+    private static boolean isRoomChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == '-';
+    }
+    
+    /**
+     * Appends a move to the batch fields.
+     */
+    void addBatchMove(Board.Move move, int moveX, int moveY) {
+        if (batchLength == batchMoves.length) {
+            batchMoves = Arrays.copyOf(batchMoves, 2 * batchLength);
+            batchX = Arrays.copyOf(batchX, 2 * batchLength);
+            batchY = Arrays.copyOf(batchY, 2 * batchLength);
+        }
+        batchMoves[batchLength] = move;
+        batchX[batchLength] = moveX;
+        batchY[batchLength] = moveY;
+        batchLength++;
+    }
+
+    /**
+     * Reads a MOVE, with its coordinates into x and y.
+     * @return the kind of the move, or null if the line doesn't continue
+     *  with a MOVE
+     */
+    private Board.Move move() {
+        Board.Move move;
+        if (skip(DIG))
+            move = Board.Move.DIG;
+        else if (skip(FLAG))
+            move = Board.Move.FLAG;
+        else if (skip(DEFLAG))
+            move = Board.Move.DEFLAG;
+        else
+            return null;
+        return coordinates() ? move : null;
+    }
+
+    /**
+     * @return true if the line is exactly word. Requires pos to be 0.
+     */
+    private boolean whole(String word) {
+        return length == word.length() && skip(word);
+    }
+
+    /**
+     * Skips word if the line continues with it.
+     * @return true if the line continues with word
+     */
+    private boolean skip(String word) {
+        if (length - pos < word.length())
+            return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (charAt(pos + i) != word.charAt(i))
+                return false;
+        }
+        pos += word.length();
+        return true;
+    }
+
+    /**
+     * Reads INT " " INT into x and y.
+     * @return true if the line continues with INT " " INT
+     */
+    private boolean coordinates() {
+        if ( ! number())
+            return false;
+        x = (int) value;
+        if ( ! skip(" "))
+            return false;
+        if ( ! number())
+            return false;
+        y = (int) value;
+        return true;
+    }
+
+    /**
+     * Reads an INT into value, clamped to the range of an int.
+     * @return true if an INT was read
+     */
+    private boolean number() {
+        boolean negative = false;
+        if (pos < length && charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        int start = pos;
+        long magnitude = 0;
+        while (pos < length) {
+            char c = charAt(pos);
+            if (c < '0' || c > '9')
+                break;
+            if (magnitude < CLAMP)
+                magnitude = magnitude * 10 + (c - '0');
+            pos++;
+        }
+        if (pos == start)
+            return false;
+        value = negative ? Math.max(-magnitude, Integer.MIN_VALUE) : Math.min(magnitude, Integer.MAX_VALUE);
+        return true;
+    }
+
+    private char charAt(int i) {
+        if (bytes != null)
+            return (char) (bytes[i] & 0xff);
+        return text.charAt(i);
+    }
+}
@@ -0,0 +1,153 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class CommandTest {
+
+    /**
+     * Testing Strategy:
+     *  - every kind of request, from a String and from bytes
+     *  - negative coordinates, and numbers too large for an int
+     *  - lines that almost match: wrong case, extra or missing spaces,
+     *      missing digits, a trailing character, the empty line
+     *  - batches of one and several moves, with and without a space
+     *      after ";", and malformed batches
+     *  - a Command reused after an invalid line
+     *  - join with and without a size, names of 1 and 32 characters, and
+     *      names too long or with invalid characters
+     *  - look and viewport regions, negative ones, viewport off, and
+     *      malformed regions, and regions larger than MAX_REGION_SQUARES
+     */
+
+    @Test
+    public void simpleRequestsTest() {
+        Command command = new Command();
+        assertTrue(command.parse("look"));
+        assertEquals(Command.Opcode.LOOK, command.opcode);
+        assertTrue(command.parse("help"));
+        assertEquals(Command.Opcode.HELP, command.opcode);
+        assertTrue(command.parse("bye"));
+        assertEquals(Command.Opcode.BYE, command.opcode);
+        assertTrue(command.parse("delta on"));
+        assertEquals(Command.Opcode.DELTA_ON, command.opcode);
+        assertTrue(command.parse("delta off"));
+        assertEquals(Command.Opcode.DELTA_OFF, command.opcode);
+        assertTrue(command.parse("stats"));
+        assertEquals(Command.Opcode.STATS, command.opcode);
+        assertFalse(command.parse("stat"));
+        assertFalse(command.parse("stats "));
+    }
+
+    @Test
+    public void coordinatesTest() {
+        Command command = new Command();
+        assertTrue(command.parse("dig 3 -12"));
+        assertEquals(Command.Opcode.DIG, command.opcode);
+        assertEquals(3, command.x);
+        assertEquals(-12, command.y);
+
+        byte[] line = "deflag 007 0 junk".getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(command.parse(line, 12));
+        assertEquals(Command.Opcode.DEFLAG, command.opcode);
+        assertEquals(7, command.x);
+        assertEquals(0, command.y);
+
+        assertTrue(command.parse("flag 99999999999 -2147483649"));
+        assertEquals(Command.Opcode.FLAG, command.opcode);
+        assertEquals(Integer.MAX_VALUE, command.x);
+        assertEquals(Integer.MIN_VALUE, command.y);
+    }
+
+    @Test
+    public void batchTest() {
+        Command command = new Command();
+        assertTrue(command.parse("batch flag 1 2"));
+        assertEquals(Command.Opcode.BATCH, command.opcode);
+        assertEquals(1, command.batchLength);
+
+        assertTrue(command.parse("batch dig 1 2; flag 3 4;deflag -5 6"));
+        assertEquals(Command.Opcode.BATCH, command.opcode);
+        assertEquals(3, command.batchLength);
+        assertEquals(Board.Move.DIG, command.batchMoves[0]);
+        assertEquals(Board.Move.FLAG, command.batchMoves[1]);
+        assertEquals(Board.Move.DEFLAG, command.batchMoves[2]);
+        assertEquals(3, command.batchX[1]);
+        assertEquals(4, command.batchY[1]);
+        assertEquals(-5, command.batchX[2]);
+
+        String[] lines = { "batch", "batch ", "batch look", "batch dig 1 2;", "batch dig 1 2; ",
+                "batch dig 1 2;; flag 3 4", "batch dig 1 2 ;flag 3 4", "batch dig 1 2;  flag 3 4" };
+        for (String line : lines)
+            assertFalse(line, command.parse(line));
+    }
+
+    @Test
+    public void joinTest() {
+        Command command = new Command();
+        assertTrue(command.parse("join a"));
+        assertEquals(Command.Opcode.JOIN, command.opcode);
+        assertEquals("a", command.room);
+        assertEquals(0, command.roomSize);
+
+        String name = "Room_of-32-characters-0123456789";
+        assertEquals(Command.MAX_ROOM_LENGTH, name.length());
+        byte[] line = ("join " + name + " 50").getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(command.parse(line, line.length));
+        assertEquals(Command.Opcode.JOIN, command.opcode);
+        assertEquals(name, command.room);
+        assertEquals(50, command.roomSize);
+
+        String[] lines = { "join", "join ", "join  a", "join a ", "join a  5", "join a 5x",
+                "join a.b", "join a b", "join " + name + "x", "Join a" };
+        for (String invalid : lines)
+            assertFalse(invalid, command.parse(invalid));
+    }
+
+    @Test
+    public void regionTest() {
+        Command command = new Command();
+        assertTrue(command.parse("look 1 2 30 40"));
+        assertEquals(Command.Opcode.LOOK_REGION, command.opcode);
+        assertEquals(1, command.x);
+        assertEquals(2, command.y);
+        assertEquals(30, command.width);
+        assertEquals(40, command.height);
+        
+        byte[] line = "viewport -3 4 -5 6".getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(command.parse(line, line.length));
+        assertEquals(Command.Opcode.VIEWPORT, command.opcode);
+        assertEquals(-3, command.x);
+        assertEquals(4, command.y);
+        assertEquals(-5, command.width);
+        assertEquals(6, command.height);
+        
+        assertTrue(command.parse("viewport off"));
+        assertEquals(Command.Opcode.VIEWPORT_OFF, command.opcode);
+        
+        assertTrue(command.parse("look 0 0 1024 1024"));
+        
+        String[] lines = { "look 1 2 3", "look 1 2 3 4 ", "look 1 2 3 4 5", "look 1  2 3 4",
+                "viewport", "viewport ", "viewport on", "viewport 1 2 3", "viewport off ", "view 1 2 3 4",
+                "look 0 0 1024 1025", "look 0 0 60000 60000", "viewport 0 0 2147483647 2147483647" };
+        for (String invalid : lines)
+            assertFalse(invalid, command.parse(invalid));
+    }
+    
+    @Test
+    public void invalidTest() {
+        Command command = new Command();
+        String[] lines = { "", "Look", "look ", " look", "delta", "delta  on", "deltaon",
+                "dig", "dig 1", "dig 1 ", "dig 1  2", "dig -1 -", "dig 1 2 3", "dig 1 2x",
+                "dig +1 2", "flag 1 2 ", "deflag1 2", "by" };
+        for (String line : lines) {
+            assertFalse(line, command.parse(line));
+            assertNull(line, command.opcode);
+        }
+        assertTrue(command.parse("flag 1 2"));
+        assertEquals(Command.Opcode.FLAG, command.opcode);
+    }
+}
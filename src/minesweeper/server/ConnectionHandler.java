@@ -1,32 +1,191 @@
 package minesweeper.server;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Handles a connection for each client. Keeps a reference to the board, and 
  * the socket the client is connected to, as well as the debug settings. 
+ * 
+ * run() reads the client's lines from the socket on the calling thread.
+ * Clients may send many lines without waiting for the answers: every
+ * complete line received at once is answered in order, and the answers are
+ * then sent together. NioServer instead drives a ConnectionHandler without a
+ * socket, through welcome(), receive(), endOfInput() and isClosing(), and
+ * does the IO itself.
+ * 
+ * A client can switch to the binary protocol of BinaryProtocol with a
+ * "binary" line; the following bytes are then decoded as binary requests.
+ * 
+ * After a "subscribe" request, the changes other players make are pushed to
+ * the client, without it having to look: at most once per tick, tick() sends
+ * the squares changed since the last tick. run() calls it on its own
+ * thread, waiting for the client's requests at most until the next tick.
+ * 
+ * A client starts on the board of the server, and can move to another room
+ * of the server's Rooms with a "join" request. It then plays on the board
+ * of that room until it joins another one, or leaves. run() waits for
+ * the board of a new room on its own thread. A caller that set a room
+ * listener isn't kept waiting instead: receive() stops after the join, and
+ * the caller must call joined() once the listener ran, then pass the rest
+ * of the bytes to receive() again.
+ * 
+ * A client can look at a region of the board only, with "look x y w h", of
+ * at most Command.MAX_REGION_SQUARES squares.
+ * After "viewport x y w h", every answer drawing the board, including the
+ * answers to moves outside delta mode, only draws that region, so they
+ * take time and bandwidth in the size of the client's screen rather than
+ * of the board. Delta answers and the changes pushed to subscribers still
+ * cover the whole board.
+ * 
+ * A server started with --chunked serves a ChunkedBoard instead of a Board.
+ * It is too large to draw whole: "look" is refused unless the client set a
+ * viewport, and the answers that would draw the whole board draw an empty
+ * region instead. Moves answer with the squares they changed, as in delta
+ * mode, unless a viewport is set and delta mode is off. Subscriptions and
+ * the binary protocol, which work on the whole board, are refused.
+ * 
+ * With metrics, the time taken to answer each request is recorded, from
+ * its parsing to its answer written, and a "stats" request answers with
+ * the metrics of the server.
  * @author jains
  *
  */
 public class ConnectionHandler implements Runnable{
     
+    // Bytes read from the client at once
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // Bytes of answers buffered before they are sent, unless flushed earlier
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // Line terminator of the answers, the same as PrintWriter.println()
+    static final byte[] LINE_SEPARATOR =
+            System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    
     private final Socket socket;
     private final boolean debug;
-    private final Board b;
+    // The board the client plays on: the server's, or the one of room.
+    // Null while on the server's board if it is chunked.
+    private Board b;
+    // The chunked board of the server, or null unless the client plays on it
+    private ChunkedBoard chunked;
+    // Time between two pushes of changes, when subscribed
+    private final int tickMillis;
+    // The rooms the client can join, or null if it can't join any
+    private final Rooms rooms;
+    // The room the client is in, or null while on the server's board
+    private Rooms.Room room = null;
+    // Run once the board of a room being joined is ready, or null if the
+    // client waits for it in join()
+    private Runnable roomListener = null;
+    // The room being joined, while waiting for its board, or null
+    private Rooms.Room joining = null;
+    // System.nanoTime() when the join in progress started to be answered
+    private long joinStart;
+    // Where the requests and the connection are recorded, or null
+    private final Metrics metrics;
+    
+    // True if dig/flag/deflag should answer with only the changed squares
+    private boolean delta = false;
+    
+    // True if the board is only drawn in the region of the viewport
+    private boolean viewport = false;
+    private int viewportX, viewportY, viewportWidth, viewportHeight;
+    
+    // True once the connection must be closed, after the last answer is sent
+    private boolean closing = false;
+    
+    // Reused to parse every request of the client
+    private final Command command = new Command();
+    // Splits the text requests into lines
+    private final LineReader lines = new LineReader();
+    // Decodes the requests once the client switched to the binary
+    // protocol, null until then
+    private BinaryProtocol binary = null;
+    // True if BOARD answers of the binary protocol are run-length encoded
+    private boolean runLength = false;
+    // Changes to push to the client, null unless it subscribed
+    private Subscription subscription = null;
     
     // IO
-    private BufferedReader in = null;
-    private PrintWriter out = null;
+    private InputStream in = null;
+    private OutputStream out = null;
     
     public ConnectionHandler(Socket s, boolean debug, Board b){
+        this(s, debug, b, MinesweeperServer.DEFAULT_TICK_MILLIS);
+    }
+    
+    /**
+     * @param tickMillis int >= 1, the # of milliseconds between two pushes
+     *  of changes to the client, once it subscribed
+     */
+    public ConnectionHandler(Socket s, boolean debug, Board b, int tickMillis){
+        this(s, debug, b, tickMillis, null, null);
+    }
+    
+    /**
+     * @param tickMillis int >= 1, the # of milliseconds between two pushes
+     *  of changes to the client, once it subscribed
+     * @param rooms the rooms the client can join, or null if none
+     * @param metrics where to record the requests and the connection, or
+     *  null if they aren't recorded
+     */
+    ConnectionHandler(Socket s, boolean debug, Board b, int tickMillis, Rooms rooms, Metrics metrics){
+        this(s, debug, b, null, tickMillis, rooms, metrics);
+    }
+    
+    /**
+     * Makes a ConnectionHandler for a client of a server whose board is
+     * chunked.
+     * @see #ConnectionHandler(Socket, boolean, Board, int, Rooms, Metrics)
+     */
+    ConnectionHandler(Socket s, boolean debug, ChunkedBoard b, int tickMillis, Rooms rooms, Metrics metrics){
+        this(s, debug, null, b, tickMillis, rooms, metrics);
+    }
+    
+    /**
+     * Exactly one of b and chunked must be null.
+     */
+    private ConnectionHandler(Socket s, boolean debug, Board b, ChunkedBoard chunked, int tickMillis,
+            Rooms rooms, Metrics metrics){
         this.socket = s;
         this.debug = debug;
         this.b = b;
-        this.b.addPlayer();
+        this.chunked = chunked;
+        this.tickMillis = tickMillis;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        if (chunked != null)
+            chunked.addPlayer();
+        else
+            b.addPlayer();
+        if (metrics != null)
+            metrics.connected();
+    }
+    
+    /**
+     * Makes a ConnectionHandler for a client whose IO is done by the caller,
+     * including calling tick() once per tick.
+     * The caller must call disconnect() once the client is gone.
+     * @param rooms the rooms the client can join, or null if none
+     * @param metrics where to record the requests and the connection, or
+     *  null if they aren't recorded
+     */
+    ConnectionHandler(boolean debug, Board b, Rooms rooms, Metrics metrics){
+        this(null, debug, b, MinesweeperServer.DEFAULT_TICK_MILLIS, rooms, metrics);
+    }
+    
+    /**
+     * Makes a ConnectionHandler for a client of a server whose board is
+     * chunked, whose IO is done by the caller.
+     * @see #ConnectionHandler(boolean, Board, Rooms, Metrics)
+     */
+    ConnectionHandler(boolean debug, ChunkedBoard b, Rooms rooms, Metrics metrics){
+        this(null, debug, b, MinesweeperServer.DEFAULT_TICK_MILLIS, rooms, metrics);
     }
     
     public void run() {
@@ -52,83 +211,569 @@ public class ConnectionHandler implements Runnable{
      * @throws IOException if connection has an error or terminates unexpectedly
      */
     private void handleConnection(Socket socket) throws IOException {
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
 
-        out.println("Welcome to Minesweeper. " + b.getNumberOfPlayers() + " people are playing including you. Type 'help' for help.");
+        welcome(out);
+        out.flush();
         
         try {
-            for (String line = in.readLine(); line != null; line = in.readLine()) {
-                String output = handleRequest(line);
-                if (output == null){
-                    out.println("Try again. Bad input"); 
-                } else if (output.equals("BOOM!\n") && ! debug) {
-                    out.println(output); closeConnection(); break; // TODO weird
-                } else if (output.equals("")) { // bye case
-                    closeConnection(); break;
-                } else { 
-                    out.println(output);
+            long nextTick = 0;
+            while ( ! closing) {
+                if (subscription != null) {
+                    // push the changes if the tick is over, and wait for
+                    // the client at most until the next one
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTick) {
+                        tick(out);
+                        out.flush();
+                        nextTick = now + tickMillis;
+                    }
+                    socket.setSoTimeout((int) Math.max(1, nextTick - now));
+                } else {
+                    socket.setSoTimeout(0);
+                }
+                int n;
+                try {
+                    n = in.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (n < 0) {
+                    endOfInput(out);
+                    out.flush();
+                    break;
                 }
+                // answer every complete request received, then send the answers at once
+                receive(buffer, 0, n, out);
+                out.flush();
             }
         } finally {
-            b.removePlayer();
+            disconnect();
             out.close();
             in.close();
             socket.close(); // TODO not sure about this
         }
     }
+    
+    /**
+     * Writes an answer to the client, followed by a line terminator.
+     * @param output answer, or null if nothing must be sent
+     * @param out stream to the client
+     */
+    private static void send(String output, OutputStream out) throws IOException {
+        if (output == null)
+            return;
+        out.write(output.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(LINE_SEPARATOR);
+    }
+    
+    /**
+     * Greets the client when it connects.
+     * @param out stream to the client
+     * @throws IOException if out can't be written to
+     */
+    void welcome(OutputStream out) throws IOException {
+        int players = chunked != null ? chunked.getNumberOfPlayers() : b.getNumberOfPlayers();
+        send("Welcome to Minesweeper. " + players + " people are playing including you. Type 'help' for help.", out);
+    }
+    
+    /**
+     * Answers every request completed by bytes received from the client, in
+     * order. A request may span several calls. After a BOOM message (unless
+     * in debug mode), a 'bye' request or an invalid binary request,
+     * isClosing() becomes true, the rest of the bytes are ignored, and the
+     * connection must be closed once the answers are sent. After a join
+     * waiting for its room, isJoining() becomes true, and the rest of the
+     * bytes must be received again after joined().
+     * 
+     * @param bytes array holding bytes received from the client
+     * @param offset index of the first of them
+     * @param length the # of bytes received
+     * @param out stream to the client, which the answers are written to
+     * @return int the # of bytes received, which is length unless
+     *  isClosing() or isJoining() became true
+     * @throws IOException if out can't be written to
+     */
+    int receive(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+        int i;
+        for (i = offset; i < offset + length && ! closing && joining == null; i++) {
+            if (binary != null) {
+                if (binary.add(bytes[i])) {
+                    long start = metrics == null ? 0 : System.nanoTime();
+                    answerBinary(out);
+                    answered(start);
+                }
+            } else if (lines.add(bytes[i])) {
+                answerLine(out);
+            }
+        }
+        return i - offset;
+    }
+    
+    /**
+     * Has a room listener run once the board of a room being joined is ready,
+     * instead of waiting for it. It may run on another thread.
+     * @param listener Runnable to run, or null to wait for the board
+     */
+    void setRoomListener(Runnable listener) {
+        this.roomListener = listener;
+    }
+    
+    /**
+     * @return true if a join is waiting for the board of its room, so that
+     *  no more requests are received until joined()
+     */
+    boolean isJoining() {
+        return joining != null;
+    }
+    
+    /**
+     * Answers the join that was waiting for its room, once the room listener
+     * ran.
+     * @param out stream to the client
+     * @throws IOException if out can't be written to
+     */
+    void joined(OutputStream out) throws IOException {
+        Rooms.Room entered = joining;
+        joining = null;
+        send(moveTo(entered), out);
+        answered(joinStart);
+    }
+    
+    /**
+     * Pushes the squares changed since the last tick, if the client
+     * subscribed: as a DELTA in the protocol of the client, or the whole
+     * board if it fell too far behind.
+     * @param out stream to the client
+     * @throws IOException if out can't be written to
+     */
+    void tick(OutputStream out) throws IOException {
+        if (subscription == null)
+            return;
+        Board.Delta changes = subscription.poll();
+        if (changes == null)
+            return;
+        if (binary == null)
+            send(changes.toString(), out);
+        else if (changes.getSnapshot() == null)
+            BinaryProtocol.writeDelta(out, changes);
+        else
+            BinaryProtocol.writeBoard(out, changes.getSnapshot(), runLength);
+    }
+    
+    /**
+     * @return true if the client subscribed to the changes of the board
+     */
+    boolean isSubscribed() {
+        return subscription != null;
+    }
+    
+    /**
+     * Answers the unterminated last line of a client in the text protocol,
+     * once it has sent everything.
+     * @param out stream to the client
+     * @throws IOException if out can't be written to
+     */
+    void endOfInput(OutputStream out) throws IOException {
+        if (binary == null && ! closing && lines.end())
+            answerLine(out);
+    }
+    
+    /**
+     * Answers the line that just ended in lines.
+     */
+    private void answerLine(OutputStream out) throws IOException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (lines.isTooLong()) {
+            command.opcode = null;
+            send("Try again. Bad input", out);
+        } else {
+            command.parse(lines.line(), lines.length());
+            String answer = respond();
+            if (joining != null) {
+                // answered by joined()
+                joinStart = start;
+                return;
+            }
+            send(answer, out);
+        }
+        answered(start);
+    }
+    
+    /**
+     * Records the request just answered, if there are metrics.
+     * @param start System.nanoTime() when it started to be answered
+     */
+    private void answered(long start) {
+        if (metrics != null)
+            metrics.request(command.opcode, System.nanoTime() - start);
+    }
+    
+    /**
+     * Answers the request of the text protocol just parsed into command.
+     * @return message to send to client, without its line terminator, or null
+     *  if nothing must be sent
+     */
+    private String respond() {
+        String output = handleRequest(command);
+        if (output == null){
+            return "Try again. Bad input";
+        } else if (output.startsWith("BOOM!\n") && ! debug) {
+            closing = true;
+            return output;
+        } else if (command.opcode == Command.Opcode.BYE) { // bye case
+            closing = true;
+            return null;
+        }
+        return output;
+    }
+    
+    /**
+     * @return boolean true if the connection must be closed after sending the
+     *  last answer
+     */
+    boolean isClosing() {
+        return closing;
+    }
+    
+    /**
+     * Removes the client from the board. Called once, when the connection ends.
+     */
+    void disconnect() {
+        subscribe(false);
+        leave();
+        if (joining != null) {
+            joining.leave();
+            joining = null;
+        }
+        if (metrics != null)
+            metrics.disconnected();
+    }
+    
+    /**
+     * Removes the client from its board, and from its room if it is in one.
+     */
+    private void leave() {
+        if (chunked != null)
+            chunked.removePlayer();
+        else
+            b.removePlayer();
+        if (room != null) {
+            room.leave();
+            room = null;
+        }
+    }
+    
+    /**
+     * Moves the client to a room, created if needed, keeping its
+     * subscription if it has one.
+     * @param name name of the room
+     * @param size size of the board asked for, or 0 for the default
+     * @return the board of the room, as answered to a look request, or null
+     *  if the client can't join that room. Ignored if isJoining() became
+     *  true instead.
+     */
+    private String join(String name, int size) {
+        if (rooms == null)
+            return null;
+        Rooms.Room entered;
+        try {
+            entered = rooms.enter(name, size);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (roomListener != null && ! entered.isReady()) {
+            joining = entered;
+            entered.whenReady(roomListener);
+            return "";
+        }
+        return moveTo(entered);
+    }
+    
+    /**
+     * Moves the client to a room it entered, waiting for its board if needed.
+     * @return the answer to the join request
+     */
+    private String moveTo(Rooms.Room joined) {
+        Board board;
+        try {
+            board = joined.getBoard();
+        } catch (IOException e) {
+            joined.leave();
+            return "Try again. Room " + joined.getName() + " is unavailable";
+        }
+        boolean subscribed = subscription != null;
+        subscribe(false);
+        leave();
+        room = joined;
+        b = board;
+        chunked = null;
+        b.addPlayer();
+        subscribe(subscribed);
+        return board();
+    }
+    
+    /**
+     * Starts or stops following the changes of the board, if not already.
+     */
+    private void subscribe(boolean on) {
+        if (on && subscription == null) {
+            subscription = new Subscription(b);
+        } else if ( ! on && subscription != null) {
+            subscription.unsubscribe();
+            subscription = null;
+        }
+    }
 
     /**
      * Handler for client input, performing requested operations and returning an output message.
      * 
-     * @param input message from client
-     * @return message to client
+     * @param request message from client, parsed
+     * @return message to client, or null if the message was invalid
      */
-    private String handleRequest(String input) {
-        String regex = "(look)|(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|"
-                + "(deflag -?\\d+ -?\\d+)|(help)|(bye)";
-        if ( ! input.matches(regex)) {
+    private String handleRequest(Command request) {
+        if (request.opcode == null) {
             // invalid input
             return null;
         }
-        String[] tokens = input.split(" ");
-        if (tokens[0].equals("look")) {
-            return b.look();
-        } else if (tokens[0].equals("help")) {
+        switch (request.opcode) {
+        case LOOK:
+            if (chunked != null && ! viewport)
+                return "Try again. The board is too large to look at whole:"
+                        + " look X Y WIDTH HEIGHT, or set a viewport X Y WIDTH HEIGHT";
+            return board();
+        case HELP:
             return "That's all the help we offer!";
-        } else if (tokens[0].equals("bye")) { // could be disconnected
+        case BYE: // could be disconnected
             // 'bye' request
             return "";
-        } else {
-            int x = Integer.parseInt(tokens[1]);
-            int y = Integer.parseInt(tokens[2]);
-            if (tokens[0].equals("dig")) {
-                // 'dig x y' request // could be disconnected
-                return b.dig(x, y);
-                // TODO Question 5
-            } else if (tokens[0].equals("flag")) {
-                return b.flag(x, y);
-                // TODO Question 5
-            } else if (tokens[0].equals("deflag")) {
-                return b.deflag(x, y);
-                // TODO Question 5
+        case DELTA_ON:
+        case DELTA_OFF:
+            // 'delta on|off' request. Answer with the whole board, so the
+            // client has something to apply the following changes to.
+            delta = request.opcode == Command.Opcode.DELTA_ON;
+            return board();
+        case SUBSCRIBE:
+            // 'subscribe' request. Answer with the versioned board, which
+            // the pushed changes build on.
+            if (chunked != null)
+                return null;
+            subscribe(true);
+            Board.Snapshot snapshot = b.getSnapshot();
+            return "BOARD " + snapshot.getVersion() + "\r\n" + snapshot.look();
+        case UNSUBSCRIBE:
+            subscribe(false);
+            return board();
+        case JOIN:
+            // 'join ROOM [SIZE]' request. Answer with the board of the room.
+            return join(request.room, request.roomSize);
+        case STATS:
+            // 'stats' request, valid if the server keeps metrics
+            return metrics == null ? null : metrics.report();
+        case LOOK_REGION:
+            // 'look x y w h' request. Answer with that region of the board.
+            if (request.width < 0 || request.height < 0)
+                return null;
+            return board(request.x, request.y, request.width, request.height);
+        case VIEWPORT:
+            // 'viewport x y w h' request. Answer with the new viewport.
+            if (request.width < 0 || request.height < 0)
+                return null;
+            viewport = true;
+            viewportX = request.x;
+            viewportY = request.y;
+            viewportWidth = request.width;
+            viewportHeight = request.height;
+            return board();
+        case VIEWPORT_OFF:
+            viewport = false;
+            return board();
+        case BINARY:
+        case BINARY_RLE:
+            // 'binary' handshake. The following bytes are binary requests.
+            if (chunked != null)
+                return null;
+            runLength = request.opcode == Command.Opcode.BINARY_RLE;
+            binary = new BinaryProtocol(command, lines.endedWithCarriageReturn());
+            return "BINARY " + BinaryProtocol.VERSION;
+        default:
+            // 'dig x y', 'flag x y', 'deflag x y' or 'batch ...' request // could be disconnected
+            if (viewport && ! delta) {
+                // draw the viewport only, instead of the whole board, and
+                // a BOOM alone, like a move without a viewport
+                return play(request) ? "BOOM!\n" : board();
             }
+            // a chunked board always answers with the changed squares
+            return move(request, delta || chunked != null);
         }
-        // Should never get here--make sure to return in each of the valid cases above.
-        throw new UnsupportedOperationException();
     }
     
     /**
-     * Closes the connection, as well as the BufferedReader, and the printWriter.
+     * Makes the move requested by a DIG, FLAG, DEFLAG or BATCH command.
+     * @param request the move
+     * @param delta true to answer with only the changed squares
+     * @return the answer of the board
      */
-    private void closeConnection(){
-        b.removePlayer();
-        try{
-            out.close();
-            in.close();
-            socket.close();
-        }catch (IOException e){
-            // do nothing, everything is closed
+    private String move(Command request, boolean delta) {
+        if (chunked != null)
+            return move(chunked, request);
+        switch (request.opcode) {
+        case DIG:
+            return b.dig(request.x, request.y, delta);
+        case FLAG:
+            return b.flag(request.x, request.y, delta);
+        case DEFLAG:
+            return b.deflag(request.x, request.y, delta);
+        case BATCH:
+            // 'batch move; move; ...' request, made as a single move
+            return b.batch(request.batchMoves, request.batchX, request.batchY,
+                    request.batchLength, delta);
+        default:
+            // Should never get here--make sure to return in each of the valid cases above.
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Makes the move requested by a DIG, FLAG, DEFLAG or BATCH command,
+     * without listing the squares it changed.
+     * @param request the move
+     * @return true if a dig hit a bomb
+     */
+    private boolean play(Command request) {
+        if (chunked == null)
+            return makeMove(request, false).isBoom();
+        switch (request.opcode) {
+        case DIG:
+            return chunked.play(Board.Move.DIG, request.x, request.y);
+        case FLAG:
+            return chunked.play(Board.Move.FLAG, request.x, request.y);
+        case DEFLAG:
+            return chunked.play(Board.Move.DEFLAG, request.x, request.y);
+        case BATCH:
+            return chunked.play(request.batchMoves, request.batchX, request.batchY,
+                    request.batchLength);
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Makes the move requested by a DIG, FLAG, DEFLAG or BATCH command on a
+     * chunked board.
+     * @return the answer of the board, listing the changed squares
+     */
+    private static String move(ChunkedBoard board, Command request) {
+        switch (request.opcode) {
+        case DIG:
+            return board.dig(request.x, request.y);
+        case FLAG:
+            return board.flag(request.x, request.y);
+        case DEFLAG:
+            return board.deflag(request.x, request.y);
+        case BATCH:
+            return board.batch(request.batchMoves, request.batchX, request.batchY, request.batchLength);
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    /**
+     * Answers the binary request just decoded into command.
+     */
+    private void answerBinary(OutputStream out) throws IOException {
+        if (command.opcode == null) {
+            // nothing after an invalid request can be decoded
+            out.write(BinaryProtocol.ERROR);
+            closing = true;
+            return;
+        }
+        switch (command.opcode) {
+        case LOOK:
+            BinaryProtocol.writeBoard(out, b.getSnapshot(), runLength);
+            return;
+        case BYE:
+            closing = true;
+            return;
+        case DELTA_ON:
+        case DELTA_OFF:
+            delta = command.opcode == Command.Opcode.DELTA_ON;
+            BinaryProtocol.writeBoard(out, b.getSnapshot(), runLength);
+            return;
+        case SUBSCRIBE:
+        case UNSUBSCRIBE:
+            subscribe(command.opcode == Command.Opcode.SUBSCRIBE);
+            BinaryProtocol.writeBoard(out, b.getSnapshot(), runLength);
+            return;
+        default:
+            // The changed squares are only listed in delta mode
+            Board.Delta changes = makeMove(command, delta);
+            if (changes.isBoom()) {
+                out.write(BinaryProtocol.BOOM);
+                closing = ! debug;
+            }
+            if (delta)
+                BinaryProtocol.writeDelta(out, changes);
+            else if ( ! changes.isBoom())
+                BinaryProtocol.writeBoard(out, b.getSnapshot(), runLength);
+        }
+    }
+    
+    /**
+     * Makes the move requested by a DIG, FLAG, DEFLAG or BATCH command on
+     * a Board.
+     * @param request the move
+     * @param list false if the squares that changed aren't needed
+     * @return the Delta of the move, as Board.makeMove() answers
+     */
+    private Board.Delta makeMove(Command request, boolean list) {
+        switch (request.opcode) {
+        case DIG:
+            return b.makeMove(Board.Move.DIG, request.x, request.y, list);
+        case FLAG:
+            return b.makeMove(Board.Move.FLAG, request.x, request.y, list);
+        case DEFLAG:
+            return b.makeMove(Board.Move.DEFLAG, request.x, request.y, list);
+        case BATCH:
+            return b.makeMoves(request.batchMoves, request.batchX, request.batchY,
+                    request.batchLength, list);
+        default:
+            throw new UnsupportedOperationException();
         }
     }
+    
+    /**
+     * @return String representing the latest state of the board, or only the
+     *  region of the viewport if there is one. In delta mode it is preceded by
+     *  a "BOARD v\r\n" line, v being the version of the board that the
+     *  following DELTA answers build on. A chunked board without a viewport
+     *  draws an empty region.
+     */
+    private String board() {
+        if (viewport)
+            return board(viewportX, viewportY, viewportWidth, viewportHeight);
+        if (chunked != null)
+            return board(0, 0, 0, 0);
+        if (! delta)
+            return b.look();
+        Board.Snapshot snapshot = b.getSnapshot();
+        return "BOARD " + snapshot.getVersion() + "\r\n" + snapshot.look();
+    }
+    
+    /**
+     * @return String representing a region of the latest state of the board,
+     *  clipped to the board, as Board.look(x, y, width, height) does. In delta
+     *  mode it is preceded by a "BOARD v\r\n" line, as in board().
+     */
+    private String board(int x, int y, int width, int height) {
+        if (chunked != null)
+            return chunked.look(x, y, width, height, delta);
+        Board.Snapshot snapshot = b.getSnapshot();
+        String region = b.look(snapshot, x, y, width, height);
+        if (! delta)
+            return region;
+        return "BOARD " + snapshot.getVersion() + "\r\n" + region;
+    }
 }
@@ -0,0 +1,147 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConnectionHandlerTest {
+
+    /**
+     * Testing Strategy:
+     *  - look at a region: inside the board, clipped, off the board, a
+     *      negative one, and one larger than Command.MAX_REGION_SQUARES
+     *  - a viewport: drawn by the answers to look and to moves, in and out
+     *      of delta mode, a BOOM answered as without one; then turned off
+     *  - a chunked board: look refused without a viewport, regions, moves
+     *      answered with their changes or the viewport, subscribe and
+     *      binary refused
+     *  - join with a room listener: the requests after it are answered
+     *      once the room is ready, after the join
+     */
+
+    private static final String END = new String(ConnectionHandler.LINE_SEPARATOR, StandardCharsets.US_ASCII);
+
+    /**
+     * @return String the answers of handler to requests
+     */
+    private static String answers(ConnectionHandler handler, String requests) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] bytes = requests.getBytes(StandardCharsets.US_ASCII);
+        handler.receive(bytes, 0, bytes.length, out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void lookRegionTest() throws IOException {
+        Board board = new Board(20, Board.WHOLE_BOARD, 7, 0.2);
+        ConnectionHandler handler = new ConnectionHandler(false, board, null, null);
+        assertEquals(board.look(2, 3, 4, 5) + END, answers(handler, "look 2 3 4 5\n"));
+        assertEquals(board.look(18, -1, 5, 3) + END, answers(handler, "look 18 -1 5 3\n"));
+        assertEquals(END, answers(handler, "look 50 50 5 5\n"));
+        assertEquals("Try again. Bad input" + END, answers(handler, "look 1 1 -1 2\n"));
+        assertEquals("Try again. Bad input" + END, answers(handler, "look 0 0 60000 60000\n"));
+        assertFalse(handler.isClosing());
+        handler.disconnect();
+    }
+
+    @Test
+    public void viewportTest() throws IOException {
+        Board board = new Board(20, Board.WHOLE_BOARD, 7, 0);
+        ConnectionHandler handler = new ConnectionHandler(false, board, null, null);
+        String region = "- - - -\r\n- - - -\r\n";
+        assertEquals(region + END, answers(handler, "viewport 2 3 4 2\n"));
+        assertEquals("- - - -\r\n- F - -\r\n" + END, answers(handler, "flag 3 4\n"));
+        assertEquals("- - - -\r\n- - - -\r\n" + END, answers(handler, "deflag 3 4\n"));
+        assertEquals(region + END, answers(handler, "look\n"));
+
+        String version = "BOARD " + board.getVersion() + "\r\n";
+        assertEquals(version + region + END, answers(handler, "delta on\n"));
+        assertTrue(answers(handler, "flag 0 0\n").startsWith("DELTA "));
+        version = "BOARD " + board.getVersion() + "\r\n";
+        assertEquals(version + region + END, answers(handler, "look\n"));
+
+        assertEquals(version + board.look() + END, answers(handler, "viewport off\n"));
+        handler.disconnect();
+    }
+
+    @Test
+    public void viewportBoomTest() throws IOException {
+        Board board = new Board(10, Board.WHOLE_BOARD, 1, 1);
+        ConnectionHandler handler = new ConnectionHandler(false, board, null, null);
+        answers(handler, "viewport 0 0 2 2\n");
+        // answered like a BOOM without a viewport
+        assertEquals("BOOM!\n" + END, answers(handler, "dig 0 0\n"));
+        assertTrue(handler.isClosing());
+        handler.disconnect();
+        
+        ConnectionHandler whole = new ConnectionHandler(false, new Board(10, Board.WHOLE_BOARD, 1, 1), null, null);
+        assertEquals("BOOM!\n" + END, answers(whole, "dig 0 0\n"));
+        whole.disconnect();
+    }
+
+    @Test
+    public void chunkedTest() throws IOException {
+        ChunkedBoard board = new ChunkedBoard(1000000, 3, 0.2, 16);
+        ConnectionHandler handler = new ConnectionHandler(false, board, null, null);
+        assertTrue(answers(handler, "look\n").startsWith("Try again. "));
+        assertEquals("Try again. Bad input" + END, answers(handler, "subscribe\n"));
+        assertEquals("Try again. Bad input" + END, answers(handler, "binary\n"));
+        assertEquals(board.look(500, 600, 5, 3) + END, answers(handler, "look 500 600 5 3\n"));
+        assertEquals("Try again. Bad input" + END, answers(handler, "look 0 0 60000 60000\n"));
+        assertEquals("Try again. Bad input" + END, answers(handler, "viewport 0 0 2000 2000\n"));
+        assertEquals("DELTA 1 1\r\n500 600 F\r\n" + END, answers(handler, "flag 500 600\n"));
+
+        assertEquals(board.look(499, 599, 3, 3) + END, answers(handler, "viewport 499 599 3 3\n"));
+        assertEquals("- - -\r\n- - -\r\n- - -\r\n" + END, answers(handler, "deflag 500 600\n"));
+        assertEquals("BOARD 2\r\n" + board.look(499, 599, 3, 3) + END, answers(handler, "delta on\n"));
+        assertEquals("DELTA 3 1\r\n500 600 F\r\n" + END, answers(handler, "flag 500 600\n"));
+        assertEquals("BOARD 3\r\n" + END, answers(handler, "viewport off\n"));
+        assertTrue(answers(handler, "look\n").startsWith("Try again. "));
+        assertEquals(1, board.getNumberOfPlayers());
+        handler.disconnect();
+        assertEquals(0, board.getNumberOfPlayers());
+    }
+
+    @Test
+    public void joinListenerTest() throws IOException, InterruptedException {
+        Rooms rooms = new Rooms(1, null, 5, 1000, 60000, Board.WHOLE_BOARD);
+        try {
+            Board board = new Board(5, Board.WHOLE_BOARD, 1, 0.2);
+            ConnectionHandler handler = new ConnectionHandler(false, board, rooms, null);
+            final CountDownLatch ready = new CountDownLatch(1);
+            handler.setRoomListener(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                }
+            });
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] bytes = "join large 1000\nhelp\n".getBytes(StandardCharsets.US_ASCII);
+            int n = handler.receive(bytes, 0, bytes.length, out);
+            if (handler.isJoining()) {
+                assertEquals("join large 1000\n".length(), n);
+                assertEquals(0, out.size());
+                assertTrue(ready.await(10, TimeUnit.SECONDS));
+                handler.joined(out);
+                assertFalse(handler.isJoining());
+                assertEquals(bytes.length - n, handler.receive(bytes, n, bytes.length - n, out));
+            } else {
+                assertEquals(bytes.length, n); // the board was built already
+            }
+            Board large = rooms.enter("large", 0).getBoard();
+            assertEquals(large.look() + END + "That's all the help we offer!" + END,
+                    new String(out.toByteArray(), StandardCharsets.US_ASCII));
+            assertEquals(0, board.getNumberOfPlayers());
+            assertEquals(1, large.getNumberOfPlayers());
+            handler.disconnect();
+            assertEquals(0, large.getNumberOfPlayers());
+        } finally {
+            rooms.shutdown();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package minesweeper.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values, e.g. latencies in nanoseconds, in the
+ * log-linear buckets of HdrHistogram: values below 2 * SUB_BUCKETS are
+ * counted exactly, and larger ones in buckets at most 1 / SUB_BUCKETS of
+ * their values wide, so any percentile is within 1% of a value recorded.
+ * Values above MAX_VALUE, about 18 minutes of nanoseconds, are counted as
+ * MAX_VALUE.
+ *
+ * Recording a value takes a few atomic increments, without any allocation
+ * or lock, so it can be done on every request.
+ *
+ * Thread Safety: any # of threads may record values at once, and read the
+ * histogram meanwhile. A read may miss the values being recorded, and then
+ * be slightly inconsistent, e.g. a percentile above the max.
+ * @author jains
+ *
+ */
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest value counted as itself.
+     */
+    static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @return int the bucket of value, 0 <= value <= MAX_VALUE
+     */
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+        // value >>> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return long the largest value counted in bucket index
+     */
+    private static long highest(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value.
+     * @param value long, counted as 0 if negative, and as MAX_VALUE if
+     *  larger
+     */
+    void record(long value) {
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long largest = max.get();
+        while (value > largest && ! max.compareAndSet(largest, value))
+            largest = max.get();
+    }
+
+    /**
+     * Records the latency of a request, corrected for coordinated omission
+     * as HdrHistogram's recordValueWithExpectedInterval() does: a client
+     * that waited for that request failed to send the requests it should
+     * have meanwhile, and they would have waited as well. If latency is
+     * larger than expectedInterval, records latency - expectedInterval,
+     * latency - 2 * expectedInterval, ... down to expectedInterval too.
+     * @param latency long >= 0, the latency of the request
+     * @param expectedInterval long, the time between two requests of the
+     *  client when they are fast, or 0 or less to record latency only.
+     *  Small enough that latency / expectedInterval values aren't too many
+     *  to record.
+     */
+    void record(long latency, long expectedInterval) {
+        latency = Math.max(0, Math.min(MAX_VALUE, latency));
+        record(latency);
+        if (expectedInterval <= 0)
+            return;
+        for (long missed = latency - expectedInterval; missed >= expectedInterval; missed -= expectedInterval)
+            record(missed);
+    }
+
+    /**
+     * @return long the # of values recorded
+     */
+    long count() {
+        return count.get();
+    }
+
+    /**
+     * @return double the mean of the values recorded, or 0 if none
+     */
+    double mean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * @return long the largest value recorded, or 0 if none
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile double between 0 and 100, e.g. 99.9
+     * @return long the smallest value that percentile percent of the values
+     *  recorded are at most, to within 1%, or 0 if none
+     */
+    long percentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+}
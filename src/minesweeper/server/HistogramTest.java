@@ -0,0 +1,82 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    /**
+     * Testing Strategy:
+     *  - an empty histogram
+     *  - small values, counted exactly
+     *  - percentiles of a wide range of values, within 1%, and the max and
+     *      mean exact
+     *  - negative and too large values, clamped
+     *  - a latency corrected for coordinated omission, and one shorter than
+     *      the expected interval
+     */
+
+    @Test
+    public void emptyTest() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.max());
+        assertEquals(0, histogram.mean(), 0);
+    }
+
+    @Test
+    public void smallValuesTest() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 200; i++)
+            histogram.record(i);
+        assertEquals(200, histogram.count());
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(100, histogram.percentile(50));
+        assertEquals(198, histogram.percentile(99));
+        assertEquals(200, histogram.percentile(100));
+        assertEquals(100.5, histogram.mean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesTest() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000000; i++)
+            histogram.record(1000L * i);
+        assertEquals(1000000, histogram.count());
+        assertEquals(500000000, histogram.percentile(50), 500000000 * 0.01);
+        assertEquals(990000000, histogram.percentile(99), 990000000 * 0.01);
+        assertEquals(999000000, histogram.percentile(99.9), 999000000 * 0.01);
+        assertTrue(histogram.percentile(99.9) >= 999000000);
+        assertEquals(1000000000, histogram.max());
+        assertEquals(1000000000, histogram.percentile(100));
+        assertEquals(500000500, histogram.mean(), 1e-3);
+    }
+
+    @Test
+    public void clampTest() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(Histogram.MAX_VALUE, histogram.percentile(100));
+        assertEquals(Histogram.MAX_VALUE, histogram.max());
+    }
+
+    @Test
+    public void correctedTest() {
+        Histogram histogram = new Histogram();
+        // the requests that should have been sent after 100, 200, ... 900
+        histogram.record(1000, 100);
+        assertEquals(10, histogram.count());
+        assertEquals(100, histogram.percentile(10));
+        assertEquals(500, histogram.percentile(50), 5);
+        assertEquals(1000, histogram.max());
+
+        histogram.record(50, 100);
+        assertEquals(11, histogram.count());
+        assertEquals(50, histogram.percentile(0));
+    }
+}
@@ -0,0 +1,110 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+
+/**
+ * Splits the bytes received from a client into lines, like
+ * BufferedReader.readLine(): lines end with "\n", "\r" or "\r\n". Bytes are
+ * added one at a time, as they are read from the network, so the caller
+ * knows exactly which lines are complete, and can answer all of them before
+ * sending the answers at once.
+ *
+ * A line longer than MAX_LINE_LENGTH isn't buffered: it is reported as
+ * too long once it ends.
+ *
+ * Thread Safety: a LineReader is mutable, and must only be used by one
+ * thread at a time.
+ * @author jains
+ *
+ */
+class LineReader {
+
+    // Longer lines are reported as too long, without being buffered
+    static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private byte[] line = new byte[64];
+    private int length = 0;
+    // true while skipping the rest of a line longer than MAX_LINE_LENGTH
+    private boolean tooLong = false;
+    // true right after a '\r', so that a following '\n' is skipped
+    private boolean skipLineFeed = false;
+    // true right after a line ended, so that the next byte starts a new one
+    private boolean ended = false;
+
+    /**
+     * Adds a byte received from the client.
+     * @param c the byte
+     * @return true if c ended a line. The line is then available from
+     *  line(), length() and isTooLong() until the next call.
+     */
+    boolean add(byte c) {
+        if (ended) {
+            ended = false;
+            length = 0;
+            tooLong = false;
+        }
+        if (c == '\n' && skipLineFeed) {
+            skipLineFeed = false;
+            return false;
+        }
+        skipLineFeed = (c == '\r');
+        if (c == '\n' || c == '\r') {
+            ended = true;
+            return true;
+        }
+        if (tooLong)
+            return false;
+        if (length == MAX_LINE_LENGTH) {
+            tooLong = true;
+            length = 0;
+            return false;
+        }
+        if (length == line.length)
+            line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, 2 * length));
+        line[length++] = c;
+        return false;
+    }
+
+    /**
+     * Ends the current line at the end of the input, if anything was added
+     * to it, like BufferedReader.readLine() returns an unterminated last line.
+     * @return true if a line was ended, which is then available like after add()
+     */
+    boolean end() {
+        if (ended || (length == 0 && ! tooLong))
+            return false;
+        ended = true;
+        return true;
+    }
+
+    /**
+     * @return array whose first length() bytes are the last line ended,
+     *  without its terminator. Only valid until the next call to add().
+     */
+    byte[] line() {
+        return line;
+    }
+
+    /**
+     * @return the # of bytes of the last line ended
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return true if the last line ended with a '\r', so that a '\n'
+     *  received next would be skipped as part of its terminator
+     */
+    boolean endedWithCarriageReturn() {
+        return ended && skipLineFeed;
+    }
+    
+    /**
+     * @return true if the last line ended was longer than MAX_LINE_LENGTH,
+     *  and wasn't kept
+     */
+    boolean isTooLong() {
+        return tooLong;
+    }
+}
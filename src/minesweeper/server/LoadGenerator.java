@@ -0,0 +1,609 @@
+package minesweeper.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Loads a MinesweeperServer running on this machine with many clients, to
+ * plan its capacity and catch latency regressions, and reports the
+ * throughput and the latency percentiles of each kind of request.
+ *
+ * Every client is a connection with a thread of its own, which sends a
+ * random mix of look, dig, flag and deflag requests at random squares, and
+ * waits for each answer before sending the next request. Either:
+ *  - closed loop (the default): each client sends its next request as soon
+ *      as it gets the answer to the previous one, after an optional think
+ *      time. This measures the throughput the server can sustain.
+ *  - open loop (--rate): the clients send a fixed # of requests per second
+ *      in total, each on a schedule of its own, however slow the server is.
+ *      This measures the latencies at a given load.
+ *
+ * A client waiting for a slow answer doesn't send the requests it should
+ * have meanwhile, so a stall of the server would only show in the latency
+ * of one request: the coordinated omission. The open loop latencies are
+ * measured from the time each request was scheduled rather than sent, so
+ * the requests held back by a stall count it too. The closed loop ones are
+ * corrected by Histogram.record(long, long), with the think time as the
+ * expected interval between two requests. Without a think time they are
+ * not corrected, and only measure the service times of the requests, which
+ * the report says.
+ *
+ * The answer to a dig of a bomb ends the connection unless the server runs
+ * in debug mode, so the client then reconnects, unless told the server is
+ * in debug mode, and that counts in the latency of its next request.
+ * Digging random squares soon opens most of a small board: use a large one
+ * for long runs. The requests made during the warmup, while the JIT
+ * compiles the server, aren't counted.
+ *
+ * The clients only connect to localhost, so a mistyped option can't load
+ * someone else's server. A server with the default # of threads welcomes
+ * about a thousand clients at most; run it with --nio, or a larger
+ * --max-connections, with or without --virtual-threads, for more.
+ *
+ * Thread Safety: each client only uses its own connection and Random, and
+ * the histograms and counters it shares with the others are threadsafe.
+ * @author jains
+ *
+ */
+public class LoadGenerator {
+
+    /**
+     * The kinds of requests the clients send.
+     */
+    enum Request {
+        LOOK("look"), DIG("dig"), FLAG("flag"), DEFLAG("deflag");
+
+        final String text;
+
+        Request(String text) {
+            this.text = text;
+        }
+    }
+
+    // Stack of the thread of each client, small so thousands of them fit
+    private static final long STACK_SIZE = 256 * 1024;
+    // Bytes read from the server at once
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    // Leading bytes of each line kept, enough to tell the kinds of answers
+    private static final int HEAD_SIZE = 64;
+    // Time a client waits after failing to connect, before it tries again
+    private static final long RECONNECT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Time a client waits for an answer before it gives up on the connection.
+    // A connection the server dropped from a full accept backlog looks open,
+    // but is never answered.
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+
+    private final int port;
+    private final int[] weights;
+    private final int totalWeight;
+    private final boolean delta;
+    private final int rooms;
+    private final boolean debug;
+
+    // Latencies in nanoseconds of each kind of request, and of them all
+    private final Histogram[] latencies = new Histogram[Request.values().length];
+    private final Histogram all = new Histogram();
+    // Failed requests, and BOOM answers
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong booms = new AtomicLong();
+
+    /**
+     * @param port port of the server, on localhost
+     * @param weights int[] >= 0, the relative frequency of each Request,
+     *  by ordinal, not all 0
+     * @param delta true if the clients ask for delta answers to their moves
+     * @param rooms int >= 0, the # of rooms the clients are spread over, or
+     *  0 to play on the board of the server
+     * @param debug true if the server runs in debug mode, so the clients
+     *  keep their connections after a BOOM
+     */
+    LoadGenerator(int port, int[] weights, boolean delta, int rooms, boolean debug) {
+        this.port = port;
+        this.weights = weights.clone();
+        int total = 0;
+        for (int weight : weights)
+            total += weight;
+        if (weights.length != Request.values().length || total <= 0)
+            throw new IllegalArgumentException("invalid mix: " + Arrays.toString(weights));
+        this.totalWeight = total;
+        this.delta = delta;
+        this.rooms = rooms;
+        this.debug = debug;
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new Histogram();
+    }
+
+    /**
+     * A connection to the server, and the thread sending its requests.
+     */
+    private class Client implements Runnable {
+        private final String room;
+        private final Random random;
+        private Socket socket = null;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+        // Leading bytes of the last line read
+        private final byte[] head = new byte[HEAD_SIZE];
+        // Size of the board, once connected
+        private int size;
+        // True if the last answer began with a BOOM message
+        private boolean boom;
+
+        // Schedule of the run: see schedule()
+        private long start, measureFrom, end, interval, thinkNanos;
+
+        Client(String room, long seed) {
+            this.room = room;
+            this.random = new Random(seed);
+        }
+
+        /**
+         * Connects to the server, and gets ready to play: joins the room of
+         * the client, switches to delta answers, and learns the size of the
+         * board.
+         * @throws IOException if the server can't be reached, or answers
+         *  unexpectedly
+         */
+        void connect() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+                position = limit = 0;
+                int length = readLine();
+                // a client waiting in line is welcomed once a player leaves,
+                // however long that takes
+                if (startsWith(length, "Server busy")) {
+                    socket.setSoTimeout(0);
+                    length = readLine();
+                    socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                }
+                if ( ! startsWith(length, "Welcome"))
+                    throw new IOException("unexpected greeting: " + text(length));
+                if (room != null)
+                    request("join " + room);
+                if (delta)
+                    request("delta on");
+                size = request("look");
+            } catch (IOException e) {
+                disconnect();
+                throw e;
+            }
+        }
+
+        void disconnect() {
+            if (socket == null)
+                return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // do nothing, the connection is dropped anyway
+            }
+            socket = null;
+        }
+
+        /**
+         * Sends a request, and reads its answer.
+         * @return int the # of lines of the answer
+         * @throws IOException if the answer is an error message, or the
+         *  connection failed or timed out
+         */
+        private int request(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            int lines = readAnswer();
+            if (lines < 0)
+                throw new IOException("\"" + line + "\" failed: " + text(HEAD_SIZE));
+            return lines;
+        }
+
+        /**
+         * Reads an answer: an error message, or lines up to an empty one.
+         * Sets boom if it begins with a BOOM message.
+         * @return int the # of lines of the answer before the empty one, or
+         *  -1 if it is an error message
+         */
+        private int readAnswer() throws IOException {
+            boom = false;
+            for (int lines = 0; ; lines++) {
+                int length = readLine();
+                if (length == 0)
+                    return lines;
+                if (lines == 0 && startsWith(length, "Try again"))
+                    return -1;
+                if (lines == 0 && startsWith(length, "BOOM!"))
+                    boom = true;
+            }
+        }
+
+        /**
+         * Reads a line, keeping its leading bytes in head.
+         * @return int the length of the line, without its terminator
+         * @throws EOFException if the server closed the connection
+         */
+        private int readLine() throws IOException {
+            int length = 0;
+            boolean carriageReturn = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit < 0) {
+                        limit = 0;
+                        throw new EOFException("the server closed the connection");
+                    }
+                }
+                byte b = buffer[position++];
+                if (b == '\n')
+                    return carriageReturn ? length - 1 : length;
+                if (length < HEAD_SIZE)
+                    head[length] = b;
+                carriageReturn = b == '\r';
+                length++;
+            }
+        }
+
+        private boolean startsWith(int length, String prefix) {
+            if (length < prefix.length())
+                return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (head[i] != prefix.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        private String text(int length) {
+            return new String(head, 0, Math.min(length, HEAD_SIZE), StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return Request a random one, following the mix
+         */
+        private Request pick() {
+            int r = random.nextInt(totalWeight);
+            for (Request request : Request.values()) {
+                r -= weights[request.ordinal()];
+                if (r < 0)
+                    return request;
+            }
+            throw new AssertionError("weights changed");
+        }
+
+        /**
+         * Sets the schedule of the client.
+         * @param start nanoTime() of the start of the run
+         * @param measureFrom nanoTime() of the end of the warmup
+         * @param end nanoTime() of the end of the run
+         * @param interval nanoseconds between two requests of the client in
+         *  the open loop, or 0 for the closed loop
+         * @param thinkNanos nanoseconds between an answer and the next
+         *  request in the closed loop
+         */
+        void schedule(long start, long measureFrom, long end, long interval, long thinkNanos) {
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.interval = interval;
+            this.thinkNanos = thinkNanos;
+        }
+
+        public void run() {
+            // spread the schedules of the clients over an interval
+            long next = start + (interval > 0 ? (long) (random.nextDouble() * interval) : 0);
+            while (true) {
+                long from;
+                if (interval > 0) {
+                    if (next >= end)
+                        break;
+                    // on schedule, measure from the request; late, from when
+                    // it should have been sent
+                    from = sleepUntil(next) ? System.nanoTime() : next;
+                    next += interval;
+                } else {
+                    if (System.nanoTime() >= end)
+                        break;
+                    from = -1;
+                }
+                Request request = pick();
+                try {
+                    if (socket == null)
+                        connect();
+                    if (from < 0)
+                        from = System.nanoTime();
+                    String line = request == Request.LOOK ? request.text
+                            : request.text + " " + random.nextInt(size) + " " + random.nextInt(size);
+                    out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    if (readAnswer() < 0)
+                        errors.incrementAndGet();
+                    long latency = System.nanoTime() - from;
+                    if (from >= measureFrom) {
+                        latencies[request.ordinal()].record(latency, thinkNanos);
+                        all.record(latency, thinkNanos);
+                    }
+                    if (boom) {
+                        booms.incrementAndGet();
+                        // lost: the server hangs up
+                        if ( ! debug)
+                            disconnect();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    disconnect();
+                    LockSupport.parkNanos(RECONNECT_NANOS);
+                }
+                if (interval == 0 && thinkNanos > 0)
+                    sleepUntil(System.nanoTime() + thinkNanos);
+            }
+            disconnect();
+        }
+    }
+
+    /**
+     * Waits until a time, if it's not already past.
+     * @param time nanoTime() to wait for
+     * @return true if it had to wait
+     */
+    private static boolean sleepUntil(long time) {
+        long wait = time - System.nanoTime();
+        if (wait <= 0)
+            return false;
+        while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            wait = time - System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * Connects the clients, then loads the server with them.
+     * @param clients int >= 1, the # of clients
+     * @param rate requests per second of all the clients together in the
+     *  open loop, or 0 for the closed loop
+     * @param thinkMillis long >= 0, milliseconds between an answer and the
+     *  next request of a client in the closed loop
+     * @param warmupSeconds long >= 0, seconds during which the requests
+     *  aren't counted
+     * @param seconds long >= 1, seconds during which they are
+     * @param seed seed of the random requests
+     * @return long the nanoseconds during which requests were counted
+     * @throws IOException if a client can't connect
+     */
+    long run(int clients, double rate, long thinkMillis, long warmupSeconds, long seconds, long seed)
+            throws IOException, InterruptedException {
+        Client[] connected = new Client[clients];
+        try {
+            for (int i = 0; i < clients; i++) {
+                connected[i] = new Client(rooms == 0 ? null : "load-" + i % rooms, seed + i);
+                connected[i].connect();
+            }
+        } catch (IOException e) {
+            for (Client client : connected) {
+                if (client != null)
+                    client.disconnect();
+            }
+            throw e;
+        }
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        long interval = rate > 0 ? Math.max(1, (long) (clients * 1e9 / rate)) : 0;
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            connected[i].schedule(start, measureFrom, end, interval, TimeUnit.MILLISECONDS.toNanos(thinkMillis));
+            threads[i] = new Thread(null, connected[i], "load-client-" + i, STACK_SIZE);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        return end - measureFrom;
+    }
+
+    /**
+     * Prints the throughput and latencies of each kind of request.
+     * @param nanos nanoseconds during which requests were counted
+     */
+    void report(long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "request", "count", "req/s",
+                "p50 us", "p99 us", "p999 us", "max us");
+        for (Request request : Request.values())
+            report(request.text, latencies[request.ordinal()], seconds);
+        report("all", all, seconds);
+        System.out.println(errors.get() + " errors, " + booms.get() + " BOOM answers");
+    }
+
+    private static void report(String name, Histogram histogram, double seconds) {
+        System.out.printf("%-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.count(),
+                histogram.count() / seconds, histogram.percentile(50) / 1e3,
+                histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+                histogram.max() / 1e3);
+    }
+
+    /**
+     * Loads a MinesweeperServer running on this machine.
+     *
+     * Usage: LoadGenerator [--port PORT] [--clients CLIENTS] [--rate RATE | --think MILLIS]
+     *                      [--duration SECONDS] [--warmup SECONDS] [--mix MIX] [--delta]
+     *                      [--rooms ROOMS] [--debug] [--seed SEED]
+     *
+     * PORT is the port the server listens on, 4443 by default, as for MinesweeperServer.
+     *
+     * CLIENTS is an optional positive integer, the # of connections to the server (100 by
+     * default). They are all connected before the run starts.
+     *
+     * RATE is an optional positive number of requests per second, sent by all the clients
+     * together: the load is then an open loop. Otherwise it is a closed loop, and MILLIS is an
+     * optional non-negative integer, the # of milliseconds each client waits between an answer
+     * and its next request (0 by default). E.g. "LoadGenerator --clients 2000 --rate 50000"
+     * sends 25 requests per second on each of 2000 connections.
+     *
+     * The first SECONDS is the # of seconds the requests are counted for (10 by default), and
+     * the second one the # of seconds of warmup before them (2 by default).
+     *
+     * MIX is an optional comma separated list of the relative frequencies of the requests, as
+     * REQUEST=WEIGHT where REQUEST is look, dig, flag or deflag, and WEIGHT a non-negative
+     * integer. The requests not listed keep their default weights, look=1,dig=2,flag=4,deflag=4.
+     * E.g. "LoadGenerator --mix look=0" only sends moves.
+     *
+     * The --delta argument has the clients ask for delta answers to their moves, so that
+     * only look requests are answered with the whole board.
+     *
+     * ROOMS is an optional non-negative integer, the # of rooms the clients are spread over,
+     * named load-0, load-1, etc. The server must then be started with --rooms. With 0, the
+     * default, they all play on the board of the server.
+     *
+     * The --debug argument tells that the server runs with --debug, so the clients don't
+     * reconnect after a BOOM.
+     *
+     * SEED is an optional integer, the seed of the random requests.
+     */
+    public static void main(String[] args) {
+        int port = 4443;
+        int clients = 100;
+        double rate = 0;
+        long thinkMillis = 0;
+        long seconds = 10;
+        long warmupSeconds = 2;
+        int[] weights = { 1, 2, 4, 4 };
+        boolean delta = false;
+        int rooms = 0;
+        boolean debug = false;
+        long seed = System.nanoTime();
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            boolean think = false;
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--port")) {
+                        port = Integer.parseInt(arguments.remove());
+                        if (port < 0 || port > 65535) {
+                            throw new IllegalArgumentException("port " + port + " out of range");
+                        }
+                    } else if (flag.equals("--clients")) {
+                        clients = Integer.parseInt(arguments.remove());
+                        if (clients < 1) {
+                            throw new IllegalArgumentException("clients " + clients + " must be positive");
+                        }
+                    } else if (flag.equals("--rate")) {
+                        rate = Double.parseDouble(arguments.remove());
+                        if ( ! (rate > 0)) {
+                            throw new IllegalArgumentException("rate " + rate + " must be positive");
+                        }
+                    } else if (flag.equals("--think")) {
+                        thinkMillis = Long.parseLong(arguments.remove());
+                        think = true;
+                        if (thinkMillis < 0) {
+                            throw new IllegalArgumentException("think time " + thinkMillis + " can't be negative");
+                        }
+                    } else if (flag.equals("--duration")) {
+                        seconds = Long.parseLong(arguments.remove());
+                        if (seconds < 1) {
+                            throw new IllegalArgumentException("duration " + seconds + " must be positive");
+                        }
+                    } else if (flag.equals("--warmup")) {
+                        warmupSeconds = Long.parseLong(arguments.remove());
+                        if (warmupSeconds < 0) {
+                            throw new IllegalArgumentException("warmup " + warmupSeconds + " can't be negative");
+                        }
+                    } else if (flag.equals("--mix")) {
+                        parseMix(arguments.remove(), weights);
+                    } else if (flag.equals("--delta")) {
+                        delta = true;
+                    } else if (flag.equals("--rooms")) {
+                        rooms = Integer.parseInt(arguments.remove());
+                        if (rooms < 0) {
+                            throw new IllegalArgumentException("rooms " + rooms + " can't be negative");
+                        }
+                    } else if (flag.equals("--debug")) {
+                        debug = true;
+                    } else if (flag.equals("--seed")) {
+                        seed = Long.parseLong(arguments.remove());
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (rate > 0 && think) {
+                throw new IllegalArgumentException("--rate and --think can't be combined");
+            }
+            int total = 0;
+            for (int weight : weights)
+                total += weight;
+            if (total == 0) {
+                throw new IllegalArgumentException("the mix has no requests");
+            }
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: LoadGenerator [--port PORT] [--clients CLIENTS] [--rate RATE | --think MILLIS]"
+                    + " [--duration SECONDS] [--warmup SECONDS] [--mix MIX] [--delta] [--rooms ROOMS] [--debug] [--seed SEED]");
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(port, weights, delta, rooms, debug);
+        try {
+            long nanos = generator.run(clients, rate, thinkMillis, warmupSeconds, seconds, seed);
+            System.out.println((rate > 0 ? "Open loop at " + rate + " requests/s" : "Closed loop") + ", "
+                    + clients + " clients, " + seconds + " s after " + warmupSeconds + " s of warmup");
+            if (rate == 0 && thinkMillis == 0)
+                System.out.println("Latencies not corrected for coordinated omission: they are service"
+                        + " times only (use --rate, or --think for a corrected closed loop)");
+            generator.report(nanos);
+        } catch (IOException e) {
+            System.err.println("Unable to connect to the server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sets the weights of the requests listed in mix.
+     * @param mix comma separated list of REQUEST=WEIGHT
+     * @param weights int[] the weight of each Request, by ordinal
+     */
+    private static void parseMix(String mix, int[] weights) {
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=", 2);
+            Request request = null;
+            for (Request candidate : Request.values()) {
+                if (candidate.text.equals(parts[0]))
+                    request = candidate;
+            }
+            if (request == null || parts.length != 2) {
+                throw new IllegalArgumentException("invalid mix entry: \"" + entry + "\"");
+            }
+            int weight = Integer.parseInt(parts[1]);
+            if (weight < 0) {
+                throw new IllegalArgumentException("weight " + weight + " can't be negative");
+            }
+            weights[request.ordinal()] = weight;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package minesweeper.server;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms of a running server, cheap enough to update on
+ * every request:
+ *  - the time taken to answer each kind of request, from its parsing to
+ *      its answer written, and the # of invalid requests
+ *  - the time each operation of a board waited for its locks, and the time
+ *      it held them
+ *  - the # of squares opened by each recursive dig
+ *  - the # of connections being served, and served so far
+ *  - the # of clients waiting in line for a thread of the server, and
+ *      turned away because it was full, if it has a MinesweeperServer
+ *      (see setServer())
+ *
+ * ConnectionHandlers record the requests and connections, and the boards
+ * given these metrics with Board.setMetrics() record their locks and digs.
+ * Clients read them with the "stats" request, and the server can print
+ * them periodically (see MinesweeperServer --metrics).
+ *
+ * Thread Safety: every counter is atomic, and every Histogram threadsafe,
+ * so any # of threads can update and read the metrics at once. A report
+ * may miss the updates made while it is written.
+ * @author jains
+ *
+ */
+class Metrics {
+
+    private final long started = System.nanoTime();
+    // Nanoseconds taken to answer each kind of request, by opcode ordinal
+    private final Histogram[] requests = new Histogram[Command.Opcode.values().length];
+    private final AtomicLong invalid = new AtomicLong();
+    private final Histogram lockWaits = new Histogram();
+    private final Histogram lockHolds = new Histogram();
+    private final Histogram floodFills = new Histogram();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    // The server whose line of clients is reported, or null
+    private volatile MinesweeperServer server = null;
+
+    Metrics() {
+        for (int i = 0; i < requests.length; i++)
+            requests[i] = new Histogram();
+    }
+
+    /**
+     * Records a request answered.
+     * @param opcode the kind of request, or null if it was invalid
+     * @param nanos long >= 0, the time taken to answer it
+     */
+    void request(Command.Opcode opcode, long nanos) {
+        if (opcode == null)
+            invalid.incrementAndGet();
+        else
+            requests[opcode.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the time an operation of a board waited for its locks.
+     */
+    void lockWaited(long nanos) {
+        lockWaits.record(nanos);
+    }
+
+    /**
+     * Records the time an operation of a board held its locks.
+     */
+    void lockHeld(long nanos) {
+        lockHolds.record(nanos);
+    }
+
+    /**
+     * Records the # of squares a recursive dig opened, including the one
+     * dug.
+     */
+    void floodFilled(int squares) {
+        floodFills.record(squares);
+    }
+
+    /**
+     * Records a connection starting to be served.
+     */
+    void connected() {
+        connections.incrementAndGet();
+        served.incrementAndGet();
+    }
+
+    /**
+     * Records a connection ending, after connected().
+     */
+    void disconnected() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Makes the reports include the clients waiting in line for a thread of
+     * server, and those it turned away.
+     * @param server the MinesweeperServer recording its connections in
+     *  these metrics, or null
+     */
+    void setServer(MinesweeperServer server) {
+        this.server = server;
+    }
+
+    /**
+     * @return int the # of connections being served
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return String the metrics, one line of space separated NAME=VALUE
+     *  pairs per metric, each ending with "\r\n", e.g.
+     *    STATS uptime_s=3
+     *    connections active=1 served=5
+     *    queue depth=0 rejected=0
+     *    request_ns look count=232 mean=219879 p50=45567 p99=5570559 p999=7921030 max=7921030
+     *    request_ns dig count=473 mean=246569 p50=101375 p99=3735551 p999=8294011 max=8294011
+     *    invalid count=0
+     *    lock_wait_ns count=2284 mean=377 p50=0 p99=0 p999=0 max=861539
+     *    lock_hold_ns count=2284 mean=14166 p50=2575 p99=61439 p999=2146303 max=3627857
+     *    flood_fill_squares count=39 mean=30 p50=25 p99=87 p999=87 max=87
+     *  Only the kinds of requests made so far are listed, and the queue
+     *  only for a MinesweeperServer (see setServer()).
+     */
+    String report() {
+        StringBuilder result = new StringBuilder();
+        result.append("STATS uptime_s=")
+            .append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started)).append("\r\n");
+        result.append("connections active=").append(connections.get())
+            .append(" served=").append(served.get()).append("\r\n");
+        MinesweeperServer queued = server;
+        if (queued != null)
+            result.append("queue depth=").append(queued.getQueueDepth())
+                .append(" rejected=").append(queued.getRejectedCount()).append("\r\n");
+        for (Command.Opcode opcode : Command.Opcode.values()) {
+            Histogram histogram = requests[opcode.ordinal()];
+            if (histogram.count() > 0)
+                line(result, "request_ns " + opcode.name().toLowerCase(Locale.ROOT), histogram);
+        }
+        result.append("invalid count=").append(invalid.get()).append("\r\n");
+        line(result, "lock_wait_ns", lockWaits);
+        line(result, "lock_hold_ns", lockHolds);
+        line(result, "flood_fill_squares", floodFills);
+        return result.toString();
+    }
+
+    private static void line(StringBuilder result, String name, Histogram histogram) {
+        result.append(name)
+            .append(" count=").append(histogram.count())
+            .append(" mean=").append(Math.round(histogram.mean()))
+            .append(" p50=").append(histogram.percentile(50))
+            .append(" p99=").append(histogram.percentile(99))
+            .append(" p999=").append(histogram.percentile(99.9))
+            .append(" max=").append(histogram.max()).append("\r\n");
+    }
+}
@@ -0,0 +1,96 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+    /**
+     * Testing Strategy:
+     *  - a new Metrics: no requests listed, empty histograms
+     *  - a board with metrics: a recursive dig records the squares it
+     *      opened, and every operation its locks; a board without metrics
+     *      records nothing
+     *  - a connection with metrics: its requests by kind, an invalid one,
+     *      the stats request, and the connection counted until it ends
+     *  - a connection without metrics: stats is an invalid request
+     *  - the queue of a server, reported once it records its connections
+     */
+
+    @Test
+    public void emptyTest() {
+        String report = new Metrics().report();
+        assertTrue(report.startsWith("STATS uptime_s="));
+        assertTrue(report.contains("connections active=0 served=0\r\n"));
+        assertFalse(report.contains("request_ns"));
+        assertTrue(report.contains("invalid count=0\r\n"));
+        assertTrue(report.contains("lock_hold_ns count=0 "));
+        assertTrue(report.contains("flood_fill_squares count=0 "));
+    }
+
+    @Test
+    public void boardTest() {
+        Metrics metrics = new Metrics();
+        Board board = new Board(10, Board.WHOLE_BOARD, 1, 0);
+        board.setMetrics(metrics);
+        board.dig(3, 3, true);
+        board.flag(0, 0, true);
+        String report = metrics.report();
+        assertTrue(report, report.contains("flood_fill_squares count=1 mean=100 p50=100 p99=100 p999=100 max=100\r\n"));
+        assertTrue(report, report.contains("lock_wait_ns count=2 mean=0 p50=0 p99=0 p999=0 max=0\r\n"));
+        assertTrue(report, report.contains("lock_hold_ns count=2 "));
+
+        board.setMetrics(null);
+        board.flag(0, 0, true);
+        assertTrue(metrics.report().contains("lock_hold_ns count=2 "));
+    }
+
+    @Test
+    public void connectionTest() throws IOException {
+        Metrics metrics = new Metrics();
+        Board board = new Board(5, Board.WHOLE_BOARD, 1, 0);
+        ConnectionHandler handler = new ConnectionHandler(false, board, null, metrics);
+        assertEquals(1, metrics.getConnections());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] requests = "look\nflag 1 1\nflag 2 2\nlooks\nstats\n".getBytes(StandardCharsets.US_ASCII);
+        handler.receive(requests, 0, requests.length, out);
+        String answers = new String(out.toByteArray(), StandardCharsets.US_ASCII);
+        String stats = answers.substring(answers.indexOf("STATS "));
+        assertTrue(stats, stats.contains("connections active=1 served=1\r\n"));
+        assertTrue(stats, stats.contains("request_ns look count=1 "));
+        assertTrue(stats, stats.contains("request_ns flag count=2 "));
+        assertTrue(stats, stats.contains("invalid count=1\r\n"));
+        assertFalse(stats, stats.contains("request_ns dig"));
+
+        assertTrue(metrics.report().contains("request_ns stats count=1 "));
+        handler.disconnect();
+        assertEquals(0, metrics.getConnections());
+        assertTrue(metrics.report().contains("connections active=0 served=1\r\n"));
+    }
+
+    @Test
+    public void noMetricsTest() throws IOException {
+        Board board = new Board(5, Board.WHOLE_BOARD, 1, 0);
+        ConnectionHandler handler = new ConnectionHandler(false, board, null, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] request = "stats\n".getBytes(StandardCharsets.US_ASCII);
+        handler.receive(request, 0, request.length, out);
+        assertEquals("Try again. Bad input", new String(out.toByteArray(), StandardCharsets.US_ASCII).trim());
+        handler.disconnect();
+    }
+
+    @Test
+    public void serverTest() throws IOException {
+        Metrics metrics = new Metrics();
+        assertFalse(metrics.report().contains("queue "));
+        Board board = new Board(5, Board.WHOLE_BOARD, 1, 0);
+        new MinesweeperServer(0, false, board, false, 2, 0, 100, null, metrics);
+        assertTrue(metrics.report().contains("connections active=0 served=0\r\nqueue depth=0 rejected=0\r\n"));
+    }
+}
@@ -3,15 +3,67 @@ package minesweeper.server;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * MinesweeperServer sets up the server, depending on the command line options passed on start.
  * MinesweeperServer receives a client connection request and instantiates a ConnectionHandler
  *  to take care of the client. 
+ * 
+ * Clients are handled by a bounded pool of at most maxConnections threads. Once they are all
+ * busy, up to queueLength more clients are told the server is busy, and wait in line for a
+ * thread. Clients beyond that are told the server is full, and disconnected right away. So an
+ * overloaded server keeps serving the clients it already has, instead of running out of memory.
  * @author jains
  *
  */
 public class MinesweeperServer {
+    /**
+     * Default maximum # of clients served at once.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    /**
+     * Default maximum # of clients waiting for one of the served clients to leave.
+     */
+    public static final int DEFAULT_QUEUE_LENGTH = 100;
+    /**
+     * Default # of milliseconds between two pushes of changes to a subscribed client.
+     */
+    public static final int DEFAULT_TICK_MILLIS = 100;
+    /**
+     * Default # of seconds after which a room nobody is in is removed.
+     */
+    public static final int DEFAULT_ROOM_IDLE_SECONDS = 300;
+    /**
+     * Size of the random board of a room, unless its first client asks for another
+     * one, and the largest size it may ask for.
+     */
+    public static final int DEFAULT_ROOM_SIZE = 10;
+    public static final int MAX_ROOM_SIZE = 1000;
+    /**
+     * Default # of moves between two snapshots of a logged board.
+     */
+    public static final long DEFAULT_SNAPSHOT_MOVES = 100000;
+    
+    /**
+     * Factory of virtual threads, or null if this Java runtime has none
+     * (before Java 21). Looked up by reflection, since the server is
+     * compiled for older Java versions.
+     */
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+    
+    // Threads serving no client for that long are stopped
+    private static final long IDLE_THREAD_SECONDS = 60;
+    
+    
     private final ServerSocket serverSocket;
     /**
      * True if the server should _not_ disconnect a client after a BOOM message.
@@ -19,6 +71,19 @@ public class MinesweeperServer {
     private final boolean debug;
     
     private final Board board;
+    // The board of the server if it is chunked, in which case board is null
+    private final ChunkedBoard chunkedBoard;
+    
+    private final int maxConnections;
+    private final int queueLength;
+    private final int tickMillis;
+    private final Rooms rooms;
+    private final Metrics metrics;
+    private final ThreadPoolExecutor executor;
+    // # of clients being served or waiting in line
+    private final AtomicInteger connections = new AtomicInteger();
+    // # of clients turned away because the server was full
+    private final AtomicLong rejected = new AtomicLong();
 
     /**
      * Make a MinesweeperServer that listens for connections on port.
@@ -26,9 +91,113 @@ public class MinesweeperServer {
      * @param port port number, requires 0 <= port <= 65535
      */
     public MinesweeperServer(int port, boolean debug, Board b) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, debug, b, false, DEFAULT_MAX_CONNECTIONS, DEFAULT_QUEUE_LENGTH, DEFAULT_TICK_MILLIS);
+    }
+    
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     * 
+     * @param port port number, requires 0 <= port <= 65535
+     * @param virtualThreads true to handle each client on a virtual thread instead
+     *                       of a platform thread
+     * @param maxConnections int >= 1, the maximum # of clients served at once
+     * @param queueLength int >= 0, the maximum # of clients waiting for a served client
+     *                    to leave. Clients beyond that are rejected.
+     * @param tickMillis int >= 1, the # of milliseconds between two pushes of changes to a
+     *                   subscribed client
+     * @throws UnsupportedOperationException if virtualThreads is true, but this
+     *                                       Java runtime has no virtual threads
+     */
+    public MinesweeperServer(int port, boolean debug, Board b, boolean virtualThreads,
+            int maxConnections, int queueLength, int tickMillis) throws IOException {
+        this(port, debug, b, virtualThreads, maxConnections, queueLength, tickMillis, null, null);
+    }
+    
+    /**
+     * Make a MinesweeperServer that listens for connections on port, whose clients can
+     * join rooms, and whose metrics are recorded.
+     * 
+     * @param rooms the rooms clients can join besides b, or null if they can't join any
+     * @param metrics where to record the requests and connections of the clients, or null if
+     *                they aren't recorded
+     * @see #MinesweeperServer(int, boolean, Board, boolean, int, int, int)
+     */
+    MinesweeperServer(int port, boolean debug, Board b, boolean virtualThreads,
+            int maxConnections, int queueLength, int tickMillis, Rooms rooms,
+            Metrics metrics) throws IOException {
+        this(port, debug, b, null, virtualThreads, maxConnections, queueLength, tickMillis, rooms,
+                metrics);
+    }
+    
+    /**
+     * Make a MinesweeperServer whose board is chunked, and can only be looked at in regions.
+     * 
+     * @see #MinesweeperServer(int, boolean, Board, boolean, int, int, int, Rooms, Metrics)
+     */
+    MinesweeperServer(int port, boolean debug, ChunkedBoard b, boolean virtualThreads,
+            int maxConnections, int queueLength, int tickMillis, Rooms rooms,
+            Metrics metrics) throws IOException {
+        this(port, debug, null, b, virtualThreads, maxConnections, queueLength, tickMillis, rooms,
+                metrics);
+    }
+    
+    /**
+     * Exactly one of b and chunked must be null.
+     */
+    private MinesweeperServer(int port, boolean debug, Board b, ChunkedBoard chunked,
+            boolean virtualThreads, int maxConnections, int queueLength, int tickMillis,
+            Rooms rooms, Metrics metrics) throws IOException {
+        if (virtualThreads && ! supportsVirtualThreads())
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        if (queueLength < 0)
+            throw new IllegalArgumentException("queueLength can't be negative: " + queueLength);
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        serverSocket= new ServerSocket(port);
         this.debug = debug;
         this.board = b;
+        this.chunkedBoard = chunked;
+        this.maxConnections = maxConnections;
+        this.queueLength = queueLength;
+        this.tickMillis = tickMillis;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        
+        // serve() admits at most maxConnections + queueLength clients, so the
+        // queue is bounded by them. It must hold more than the clients told
+        // to wait: one that arrives as another leaves is queued until the
+        // thread of the one leaving comes back to the pool.
+        LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(
+                (int) Math.min(Integer.MAX_VALUE, (long) maxConnections + queueLength));
+        ThreadFactory threads = virtualThreads ? VIRTUAL_THREAD_FACTORY : Executors.defaultThreadFactory();
+        this.executor = new ThreadPoolExecutor(maxConnections, maxConnections,
+                IDLE_THREAD_SECONDS, TimeUnit.SECONDS, queue, threads);
+        executor.allowCoreThreadTimeOut(true);
+        if (metrics != null)
+            metrics.setServer(this);
+    }
+    
+    /**
+     * @return true if this Java runtime can run clients on virtual threads
+     */
+    public static boolean supportsVirtualThreads() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+    
+    /**
+     * @return Thread.ofVirtual().factory(), or null if this Java runtime has no
+     *  virtual threads
+     */
+    private static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
     /**
@@ -42,8 +211,82 @@ public class MinesweeperServer {
         while (true) {
             // block until a client connects
             final Socket socket = serverSocket.accept();
-            // Make a new thread for him
-            new Thread(new ConnectionHandler(socket, debug, board)).start();
+            // Only this thread adds connections, so they can't exceed the limits
+            int others = connections.get();
+            if (others >= maxConnections + queueLength) {
+                reject(socket);
+                continue;
+            }
+            if (others >= maxConnections)
+                tell(socket, "Server busy. You are in line, and will be welcomed once a player leaves.");
+            connections.incrementAndGet();
+            // Hand him to a thread of the pool, or to its queue, which has
+            // room for every admitted client
+            executor.execute(new Client(socket));
+        }
+    }
+    
+    /**
+     * @return int >= 0, the # of clients waiting in line to be served
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+    
+    /**
+     * @return long >= 0, the # of clients disconnected so far because the server was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+    
+    /**
+     * Tells the client the server is full, and disconnects it.
+     */
+    private void reject(Socket socket) {
+        rejected.incrementAndGet();
+        tell(socket, "Server full. Try again later.");
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // do nothing, the socket is closed anyway
+        }
+    }
+    
+    /**
+     * Sends a line to a client that isn't being served yet. A failure is
+     * ignored: the client is then dropped once it is served.
+     */
+    private static void tell(Socket socket, String message) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write((message + System.lineSeparator()).getBytes("US-ASCII"));
+            out.flush();
+        } catch (IOException e) {
+            // do nothing
+        }
+    }
+    
+    /**
+     * A client waiting in line for a thread of the pool. It only joins the
+     * board once it is served.
+     */
+    private class Client implements Runnable {
+        private final Socket socket;
+        
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+        
+        public void run() {
+            try {
+                if (chunkedBoard != null)
+                    new ConnectionHandler(socket, debug, chunkedBoard, tickMillis, rooms, metrics).run();
+                else
+                    new ConnectionHandler(socket, debug, board, tickMillis, rooms, metrics).run();
+            } finally {
+                connections.decrementAndGet();
+            }
         }
     }
 
@@ -51,6 +294,12 @@ public class MinesweeperServer {
      * Start a MinesweeperServer using the given arguments.
      * 
      * Usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE]
+     *                          [--seed SEED] [--density DENSITY] [--chunked] [--stripe-rows ROWS]
+     *                          [--nio THREADS | --virtual-threads]
+     *                          [--max-connections MAX] [--queue QUEUE] [--tick MILLIS]
+     *                          [--rooms DIR] [--room-workers WORKERS] [--room-idle SECONDS]
+     *                          [--log LOG] [--snapshot-moves MOVES] [--keep-history]
+     *                          [--metrics INTERVAL]
      * 
      * The --debug argument means the server should run in debug mode. The server should disconnect
      * a client after a BOOM message if and only if the debug flag argument was NOT given. E.g.
@@ -82,13 +331,94 @@ public class MinesweeperServer {
      * If neither FILE nor SIZE is given, generate a random board of size 10x10.
      * 
      * Note that FILE and SIZE may not be specified simultaneously.
+     * 
+     * SEED is an optional integer, and DENSITY an optional number between 0 and 1, the probability
+     * of a square of a random board having a bomb (0.25 by default). A random board is the same
+     * every time it is generated with the same SIZE, SEED and DENSITY. Without SEED, the server
+     * picks one, and prints it. E.g. "MinesweeperServer --size 100 --seed 42 --density 0.1"
+     * always starts with the same sparse board. They can't be combined with FILE.
+     * 
+     * The --chunked argument makes the random board generated in chunks as players explore it
+     * (see ChunkedBoard), so that it takes memory in the explored area rather than in SIZE*SIZE,
+     * and SIZE can be up to 2147483647 instead of 46340. Clients then look at regions of the board, with "look X Y
+     * WIDTH HEIGHT" or "viewport X Y WIDTH HEIGHT", but not at the whole of it, and can neither
+     * subscribe nor switch to the binary protocol. E.g. "MinesweeperServer --size 1000000
+     * --chunked" serves a board of a million squares per edge. It can't be combined with FILE,
+     * ROWS or LOG.
+     * 
+     * ROWS is an optional positive integer making the board lock every ROWS rows separately, so
+     * players working in different parts of the board don't wait for each other. E.g.
+     * "MinesweeperServer --size 1000 --stripe-rows 32" locks the board in stripes of 32 rows. By
+     * default the whole board is a single stripe.
+     * 
+     * THREADS is an optional positive integer making the server handle every client from THREADS
+     * event loop threads using non-blocking IO, instead of starting a thread per client. E.g.
+     * "MinesweeperServer --nio 4" serves all clients from 4 threads.
+     * 
+     * The --virtual-threads argument makes the server handle each client on a virtual thread
+     * instead of a platform thread, which needs Java 21 or later. It can't be combined with --nio.
+     * 
+     * MAX is an optional positive integer, the maximum # of clients served at once (1000 by
+     * default). QUEUE is an optional non-negative integer, the maximum # of further clients told
+     * that the server is busy and waiting for a served client to leave (100 by default). Clients
+     * beyond that are told the server is full, and disconnected. E.g. "MinesweeperServer
+     * --max-connections 200 --queue 0" serves up to 200 clients, and rejects any more right away.
+     * They can't be combined with --nio.
+     * 
+     * MILLIS is an optional positive integer, the # of milliseconds between two pushes of the
+     * changes of the board to the clients that subscribed to them (100 by default). E.g.
+     * "MinesweeperServer --tick 50" pushes changes up to 20 times per second.
+     * 
+     * Clients can leave the board of the server for a room of their own with "join ROOM", or with
+     * "join ROOM SIZE" to ask for a random board of size SIZE*SIZE (at most 1000*1000) if the room
+     * doesn't exist yet. DIR is an optional directory of board files: the board of room ROOM is
+     * then loaded from DIR/ROOM if that file exists, instead of being random. WORKERS is an
+     * optional positive integer, the # of threads creating and removing rooms (the # of
+     * processors by default). SECONDS is an optional positive integer, the # of seconds after
+     * which a room nobody is in is removed (300 by default). E.g. "MinesweeperServer --rooms
+     * boards --room-idle 60" loads rooms from the boards directory, and removes them after a
+     * minute without players.
+     * 
+     * LOG is an optional directory where the moves made on the board are logged, so the game
+     * survives a crash of the server: if LOG already holds a game, the server resumes it, and
+     * SIZE, FILE, SEED and DENSITY are ignored. MOVES is an optional positive integer, the # of
+     * moves between two snapshots of the board in LOG (100000 by default); resuming a game
+     * replays the moves made since the last one. E.g. "MinesweeperServer --size 1000 --log game"
+     * starts a new game in the game directory, or resumes the one already in it.
+     * 
+     * The --keep-history argument makes the log keep every move and snapshot of the game, instead
+     * of only those needed to resume it, so that Replay can rebuild the board at any move. It
+     * needs --log.
+     * 
+     * The server keeps metrics of the requests, the locks of the boards, the recursive digs and
+     * the connections, which clients read with the "stats" request. INTERVAL is an optional
+     * positive integer making the server also print them every INTERVAL seconds. E.g.
+     * "MinesweeperServer --metrics 60" prints them every minute.
      */
     public static void main(String[] args) {
-        // Command-line argument parsing is provided. Do not change this method.
+        // Command-line argument parsing is provided. --debug, --port, --size and --file must keep
+        // the meaning they were provided with; the other options only add to them, and leave the
+        // server as provided when absent.
         boolean debug = false;
         int port = 4443; // default port
         Integer size = 10; // default size
         File file = null;
+        Long seed = null;
+        Double density = null;
+        int stripeRows = Board.WHOLE_BOARD;
+        int nioThreads = 0;
+        boolean virtualThreads = false;
+        Integer maxConnections = null;
+        Integer queueLength = null;
+        int tickMillis = DEFAULT_TICK_MILLIS;
+        File roomsDirectory = null;
+        int roomWorkers = Runtime.getRuntime().availableProcessors();
+        int roomIdleSeconds = DEFAULT_ROOM_IDLE_SECONDS;
+        File logDirectory = null;
+        long snapshotMoves = DEFAULT_SNAPSHOT_MOVES;
+        boolean keepHistory = false;
+        int metricsSeconds = 0;
+        boolean chunked = false;
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -107,12 +437,86 @@ public class MinesweeperServer {
                     } else if (flag.equals("--size")) {
                         size = Integer.parseInt(arguments.remove());
                         file = null;
+                        if (size < 0) {
+                            throw new IllegalArgumentException("size " + size + " can't be negative");
+                        }
                     } else if (flag.equals("--file")) {
                         size = null;
                         file = new File(arguments.remove());
                         if ( ! file.isFile()) {
                             throw new IllegalArgumentException("file not found: \"" + file + "\"");
                         }
+                    } else if (flag.equals("--seed")) {
+                        seed = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--density")) {
+                        density = Double.parseDouble(arguments.remove());
+                        if ( ! (density >= 0 && density <= 1)) {
+                            throw new IllegalArgumentException("density " + density + " must be between 0 and 1");
+                        }
+                    } else if (flag.equals("--chunked")) {
+                        chunked = true;
+                    } else if (flag.equals("--stripe-rows")) {
+                        stripeRows = Integer.parseInt(arguments.remove());
+                        if (stripeRows < 1) {
+                            throw new IllegalArgumentException("stripe rows " + stripeRows + " must be positive");
+                        }
+                    } else if (flag.equals("--nio")) {
+                        nioThreads = Integer.parseInt(arguments.remove());
+                        if (nioThreads < 1) {
+                            throw new IllegalArgumentException("nio threads " + nioThreads + " must be positive");
+                        }
+                    } else if (flag.equals("--virtual-threads")) {
+                        if ( ! supportsVirtualThreads()) {
+                            throw new IllegalArgumentException("--virtual-threads requires Java 21 or later");
+                        }
+                        virtualThreads = true;
+                    } else if (flag.equals("--max-connections")) {
+                        maxConnections = Integer.parseInt(arguments.remove());
+                        if (maxConnections < 1) {
+                            throw new IllegalArgumentException("max connections " + maxConnections + " must be positive");
+                        }
+                    } else if (flag.equals("--queue")) {
+                        queueLength = Integer.parseInt(arguments.remove());
+                        if (queueLength < 0) {
+                            throw new IllegalArgumentException("queue " + queueLength + " can't be negative");
+                        }
+                    } else if (flag.equals("--tick")) {
+                        tickMillis = Integer.parseInt(arguments.remove());
+                        if (tickMillis < 1) {
+                            throw new IllegalArgumentException("tick " + tickMillis + " must be positive");
+                        }
+                    } else if (flag.equals("--rooms")) {
+                        roomsDirectory = new File(arguments.remove());
+                        if ( ! roomsDirectory.isDirectory()) {
+                            throw new IllegalArgumentException("directory not found: \"" + roomsDirectory + "\"");
+                        }
+                    } else if (flag.equals("--room-workers")) {
+                        roomWorkers = Integer.parseInt(arguments.remove());
+                        if (roomWorkers < 1) {
+                            throw new IllegalArgumentException("room workers " + roomWorkers + " must be positive");
+                        }
+                    } else if (flag.equals("--room-idle")) {
+                        roomIdleSeconds = Integer.parseInt(arguments.remove());
+                        if (roomIdleSeconds < 1) {
+                            throw new IllegalArgumentException("room idle " + roomIdleSeconds + " must be positive");
+                        }
+                    } else if (flag.equals("--log")) {
+                        logDirectory = new File(arguments.remove());
+                        if ( ! logDirectory.isDirectory()) {
+                            throw new IllegalArgumentException("directory not found: \"" + logDirectory + "\"");
+                        }
+                    } else if (flag.equals("--snapshot-moves")) {
+                        snapshotMoves = Long.parseLong(arguments.remove());
+                        if (snapshotMoves < 1) {
+                            throw new IllegalArgumentException("snapshot moves " + snapshotMoves + " must be positive");
+                        }
+                    } else if (flag.equals("--keep-history")) {
+                        keepHistory = true;
+                    } else if (flag.equals("--metrics")) {
+                        metricsSeconds = Integer.parseInt(arguments.remove());
+                        if (metricsSeconds < 1) {
+                            throw new IllegalArgumentException("metrics interval " + metricsSeconds + " must be positive");
+                        }
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -122,14 +526,45 @@ public class MinesweeperServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 }
             }
+            if (file != null && (seed != null || density != null)) {
+                throw new IllegalArgumentException("--file and --seed or --density can't be combined");
+            }
+            if (chunked && (file != null || stripeRows != Board.WHOLE_BOARD || logDirectory != null)) {
+                throw new IllegalArgumentException("--chunked and --file, --stripe-rows or --log can't be combined");
+            }
+            if ( ! chunked && size != null && size > Board.MAX_SIZE) {
+                throw new IllegalArgumentException("size " + size + " can't exceed " + Board.MAX_SIZE
+                        + " without --chunked");
+            }
+            if (keepHistory && logDirectory == null) {
+                throw new IllegalArgumentException("--keep-history needs --log");
+            }
+            if (nioThreads > 0 && virtualThreads) {
+                throw new IllegalArgumentException("--nio and --virtual-threads can't be combined");
+            }
+            if (nioThreads > 0 && (maxConnections != null || queueLength != null)) {
+                throw new IllegalArgumentException("--nio and --max-connections or --queue can't be combined");
+            }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug] [--port PORT] [--size SIZE | --file FILE]"
+                    + " [--seed SEED] [--density DENSITY] [--chunked] [--stripe-rows ROWS]"
+                    + " [--nio THREADS | --virtual-threads]"
+                    + " [--max-connections MAX] [--queue QUEUE] [--tick MILLIS]"
+                    + " [--rooms DIR] [--room-workers WORKERS] [--room-idle SECONDS]"
+                    + " [--log LOG] [--snapshot-moves MOVES] [--keep-history]"
+                    + " [--metrics INTERVAL]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, size, port);
+            runMinesweeperServer(debug, file, size, seed,
+                    density == null ? Board.DEFAULT_DENSITY : density, port, stripeRows, nioThreads,
+                    virtualThreads,
+                    maxConnections == null ? DEFAULT_MAX_CONNECTIONS : maxConnections,
+                    queueLength == null ? DEFAULT_QUEUE_LENGTH : queueLength, tickMillis,
+                    roomsDirectory, roomWorkers, roomIdleSeconds, logDirectory, snapshotMoves,
+                    keepHistory, metricsSeconds, chunked);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -142,21 +577,115 @@ public class MinesweeperServer {
      * @param debug The server should disconnect a client after a BOOM message if and only if this
      *              argument is false.
      * @param size If this argument is not null, start with a random board of size size * size.
+     * @param seed If this argument is not null, the seed of the random board, otherwise a seed is
+     *             picked and printed.
+     * @param density The probability of a square of the random board having a bomb.
      * @param file If this argument is not null, start with a board loaded from the specified file,
      *             according to the input file format defined in the JavaDoc for main().
      * @param port The network port on which the server should listen.
+     * @param stripeRows The # of rows of the board guarded by each of its locks, or 
+     *                   Board.WHOLE_BOARD for a single lock.
+     * @param nioThreads If this argument is positive, serve the clients from that many event loop
+     *                   threads with a NioServer, instead of a thread per client.
+     * @param virtualThreads If this argument is true, and nioThreads isn't positive, run each
+     *                       client on a virtual thread instead of a platform thread.
+     * @param maxConnections The maximum # of clients served at once, unless nioThreads is positive.
+     * @param queueLength The maximum # of clients waiting for a served client to leave, unless
+     *                    nioThreads is positive.
+     * @param tickMillis The # of milliseconds between two pushes of changes to a subscribed client.
+     * @param roomsDirectory If this argument is not null, the directory of the board files of the
+     *                       rooms clients can join.
+     * @param roomWorkers The # of threads creating and removing rooms.
+     * @param roomIdleSeconds The # of seconds after which a room nobody is in is removed.
+     * @param logDirectory If this argument is not null, log the moves made on the board in this
+     *                     directory, and resume the game it holds, if any, instead of starting
+     *                     with a new board.
+     * @param snapshotMoves The # of moves between two snapshots of the board in logDirectory.
+     * @param keepHistory If this argument is true, keep every move and snapshot in logDirectory,
+     *                    for Replay.
+     * @param metricsSeconds If this argument is positive, print the metrics of the server every
+     *                       metricsSeconds seconds.
+     * @param chunked If this argument is true, the random board is a ChunkedBoard, generated as it
+     *                is explored. file and logDirectory must then be null, and stripeRows
+     *                Board.WHOLE_BOARD.
      */
-    public static void runMinesweeperServer(boolean debug, File file, Integer size, int port) throws IOException {
-        Board b; 
-        if (file != null)
-            b = new Board(file);
-        else if (size != null)
-            b = new Board(size);
-        // both options are not provided. create a 10x10 board
-        else
-            b = new Board(10);
+    public static void runMinesweeperServer(boolean debug, File file, Integer size, Long seed,
+            double density, int port,
+            int stripeRows, int nioThreads, boolean virtualThreads, int maxConnections,
+            int queueLength, int tickMillis, File roomsDirectory, int roomWorkers,
+            int roomIdleSeconds, File logDirectory, long snapshotMoves, boolean keepHistory,
+            int metricsSeconds, boolean chunked) throws IOException {
+        if (chunked && (file != null || logDirectory != null || stripeRows != Board.WHOLE_BOARD))
+            throw new IllegalArgumentException("a chunked board can't be loaded, logged or striped");
+        Board b = null;
+        ChunkedBoard chunkedBoard = null;
+        final MoveLog log = logDirectory == null ? null : new MoveLog(logDirectory, snapshotMoves,
+                keepHistory);
+        if (log != null) {
+            b = log.recover(stripeRows);
+        }
+        if (b != null) {
+            System.out.println("Resumed the game in " + logDirectory + " after " + log.moves()
+                    + " moves");
+        } else if (file != null) {
+            b = new Board(file, stripeRows, Runtime.getRuntime().availableProcessors());
+        } else {
+            if (seed == null) {
+                seed = ThreadLocalRandom.current().nextLong();
+                System.out.println("Board seed: " + seed);
+            }
+            // both options are not provided. create a 10x10 board
+            if (chunked)
+                chunkedBoard = new ChunkedBoard(size != null ? size : 10, seed, density,
+                        ChunkedBoard.DEFAULT_CACHED_CHUNKS);
+            else
+                b = new Board(size != null ? size : 10, stripeRows, seed, density);
+        }
+        if (log != null) {
+            log.start(b);
+            // on a normal exit, write the moves still buffered
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        log.close();
+                    } catch (IOException e) {
+                        System.err.println("Move log failed: " + e);
+                    }
+                }
+            });
+        }
+        final Metrics metrics = new Metrics();
+        if (b != null)
+            b.setMetrics(metrics);
+        if (metricsSeconds > 0) {
+            ScheduledExecutorService printer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            printer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    System.out.print(metrics.report());
+                }
+            }, metricsSeconds, metricsSeconds, TimeUnit.SECONDS);
+        }
+        Rooms rooms = new Rooms(roomWorkers, roomsDirectory, DEFAULT_ROOM_SIZE, MAX_ROOM_SIZE,
+                TimeUnit.SECONDS.toMillis(roomIdleSeconds), stripeRows, metrics);
         
-        MinesweeperServer server = new MinesweeperServer(port, debug, b);
-        server.serve();
+        if (nioThreads > 0) {
+            NioServer server = chunkedBoard != null
+                    ? new NioServer(port, debug, chunkedBoard, nioThreads, tickMillis, rooms, metrics)
+                    : new NioServer(port, debug, b, nioThreads, tickMillis, rooms, metrics);
+            server.serve();
+        } else {
+            MinesweeperServer server = chunkedBoard != null
+                    ? new MinesweeperServer(port, debug, chunkedBoard, virtualThreads,
+                            maxConnections, queueLength, tickMillis, rooms, metrics)
+                    : new MinesweeperServer(port, debug, b, virtualThreads,
+                            maxConnections, queueLength, tickMillis, rooms, metrics);
+            server.serve();
+        }
     }
 }
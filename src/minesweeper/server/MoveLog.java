@@ -0,0 +1,646 @@
+package minesweeper.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A write-ahead log of the moves of a board, kept in a directory, so that
+ * the game survives the death of the server process.
+ *
+ * Moves are numbered from 1, in the order the board journals them. The
+ * directory holds:
+ *   snapshot-N.snap  the board right after move N, see Board.Checkpoint:
+ *                    SNAPSHOT_MAGIC, FORMAT_VERSION, size, N, then the
+ *                    squares packed two per byte (the first in the high
+ *                    4 bits), then the CRC32 of all that
+ *   moves-N.log      a segment of the log, starting with move N: frames
+ *                    made of the # of moves, the number of the first one,
+ *                    the moves (RECORD_BYTES each), and the CRC32 of all that
+ *
+ * Moves are group committed: a move only adds a record to a buffer in
+ * memory, and never waits for the disk. A single committer thread writes
+ * everything buffered since its last write as one frame, and forces it to
+ * disk, while the next moves fill the other buffer. So the disk is forced
+ * once per group, however many moves are made meanwhile, and a crash loses
+ * at most the moves of the last group.
+ *
+ * Every snapshotMoves moves, a snapshot thread copies the board (see
+ * Board.checkpoint()) and writes it out. The committer then starts a new
+ * segment, and deletes the snapshots and segments the new snapshot makes
+ * useless. Recovery reads the newest snapshot and replays the moves after
+ * it, which are never many more than snapshotMoves, so recovering takes
+ * about as long however long the game has been going on.
+ *
+ * A log that keeps its history deletes nothing: it holds every move of the
+ * game, and the snapshots are checkpoints Replay can seek from.
+ *
+ * A frame torn by a crash fails its CRC, and the log is recovered up to
+ * the frame before it. A snapshot is written to a temporary file, which is
+ * only renamed once forced to disk.
+ *
+ * Replaying the moves in the order they were journaled rebuilds exactly the
+ * same board, even on a board locked in stripes: a move is journaled while
+ * it holds the stripes it changed, and while the board has a journal a
+ * recursive dig never lets other moves into its stripes before it is done
+ * (see Board).
+ *
+ * Thread Safety:
+ *  - moved() is called by the threads of the players, while they hold
+ *      stripes of the board. pending, the count of moves and the requests
+ *      to the committer are guarded by lock, which is only held to copy a
+ *      record, or to swap the buffers.
+ *  - The files of the log are only written by the committer thread, and
+ *      snapshots by the snapshot thread. recover() and start() run before
+ *      either thread is started.
+ * @author jains
+ *
+ */
+class MoveLog implements Board.Journal {
+
+    static final int SNAPSHOT_MAGIC = 0x4d53534e; // "MSSN"
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Bytes of the record of a move: its Board.Move ordinal, x and y.
+     */
+    static final int RECORD_BYTES = 9;
+
+    // # of moves buffered at most; moves wait for the committer beyond that
+    private static final int BUFFER_MOVES = 1 << 16;
+    // Bytes of the header of a frame (# of moves, first move) and its CRC
+    private static final int FRAME_HEADER_BYTES = 12;
+    private static final int FRAME_CRC_BYTES = 4;
+    // # of moves replayed by each operation of recover()
+    private static final int REPLAY_MOVES = 1 << 16;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String SEGMENT_PREFIX = "moves-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final Board.Move[] MOVES = Board.Move.values();
+
+    private final File directory;
+    private final long snapshotMoves;
+    private final boolean keepHistory;
+    private Board board = null;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signaled when a move is buffered, or the log closed
+    private final Condition appended = lock.newCondition();
+    // Signaled when the committer takes the buffered moves
+    private final Condition drained = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_MOVES * RECORD_BYTES);
+    // # of moves journaled so far, and number of the first one in pending
+    private long moves = 0;
+    private long pendingFirst = 1;
+    // Number of the move of the newest snapshot not yet used to delete
+    // files, or -1
+    private long obsoleteBefore = -1;
+    private boolean closed = false;
+    private volatile IOException failure = null;
+
+    // Owned by the committer thread
+    private ByteBuffer writing = ByteBuffer.allocate(BUFFER_MOVES * RECORD_BYTES);
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+    private final ByteBuffer frameCrc = ByteBuffer.allocate(FRAME_CRC_BYTES);
+    private final CRC32 crc = new CRC32();
+    private FileChannel segment = null;
+    private volatile long snapshotted = 0;
+    private volatile boolean snapshotting = false;
+
+    private Thread committer = null;
+    private ExecutorService snapshotter = null;
+
+    /**
+     * Makes a log of the game kept in directory. recover() must then be
+     * called, and start() once the board is ready.
+     * @param directory directory of the log, which must exist
+     * @param snapshotMoves long >= 1, the # of moves between two snapshots
+     */
+    MoveLog(File directory, long snapshotMoves) {
+        this(directory, snapshotMoves, false);
+    }
+
+    /**
+     * Makes a log of the game kept in directory. recover() must then be
+     * called, and start() once the board is ready.
+     * @param directory directory of the log, which must exist
+     * @param snapshotMoves long >= 1, the # of moves between two snapshots
+     * @param keepHistory true to keep every move and snapshot, false to
+     *  delete those the newest snapshot makes useless
+     */
+    MoveLog(File directory, long snapshotMoves, boolean keepHistory) {
+        if (snapshotMoves < 1)
+            throw new IllegalArgumentException("snapshotMoves must be positive: " + snapshotMoves);
+        this.directory = directory;
+        this.snapshotMoves = snapshotMoves;
+        this.keepHistory = keepHistory;
+    }
+
+    /**
+     * Recovers the board of the game in the directory: the newest snapshot
+     * that can be read, with the moves logged after it replayed. A torn
+     * frame at the end of a segment is cut off.
+     * @param stripeRows int >= 1, the # of rows guarded by each lock of the
+     *  board, or Board.WHOLE_BOARD
+     * @return Board recovered, or null if the directory holds no game
+     * @throws IOException if the directory can't be read, or holds a game
+     *  that can't be recovered
+     */
+    Board recover(int stripeRows) throws IOException {
+        List<Long> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        List<Long> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        if (snapshots.isEmpty()) {
+            if ( ! segments.isEmpty())
+                throw new IOException("Move log " + directory + " has moves but no snapshot");
+            return null;
+        }
+
+        Board recovered = null;
+        IOException invalid = null;
+        for (int i = snapshots.size() - 1; i >= 0 && recovered == null; i--) {
+            try {
+                recovered = readSnapshot(snapshots.get(i), stripeRows);
+                snapshotted = snapshots.get(i);
+            } catch (IOException e) {
+                invalid = e;
+            }
+        }
+        if (recovered == null)
+            throw invalid;
+        moves = replay(recovered, snapshotted, Long.MAX_VALUE, true);
+        pendingFirst = moves + 1;
+        return recovered;
+    }
+
+    /**
+     * Replays the logged moves after move from, up to move to, onto board.
+     * Segments and frames only holding earlier moves are skipped without
+     * reading their moves, and the moves are replayed REPLAY_MOVES at a
+     * time (see Board.replay()).
+     * @param board Board right after move from
+     * @param from long >= 0, number of the last move already on board
+     * @param to long >= from, number of the last move to replay
+     * @param truncate true to cut off a torn frame at the end of a segment,
+     *  false to only stop reading there
+     * @return long number of the last move replayed, from if there was none,
+     *  which is less than to if the log ends before
+     * @throws IOException if a segment can't be read, or moves are missing
+     */
+    long replay(Board board, long from, long to, boolean truncate) throws IOException {
+        List<Long> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        Board.Move[] kinds = new Board.Move[REPLAY_MOVES];
+        int[] xs = new int[REPLAY_MOVES];
+        int[] ys = new int[REPLAY_MOVES];
+        int replaying = 0;
+        byte[] records = new byte[BUFFER_MOVES * RECORD_BYTES];
+        ByteBuffer fields = ByteBuffer.wrap(records);
+        CRC32 checksum = new CRC32();
+        long last = from;
+        for (int s = 0; s < segments.size() && last < to; s++) {
+            // the next segment starts at most right after from
+            if (s + 1 < segments.size() && segments.get(s + 1) <= from + 1)
+                continue;
+            File file = segmentFile(segments.get(s));
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 1 << 16), checksum));
+            long valid = 0;
+            try {
+                while (last < to) {
+                    checksum.reset();
+                    int count;
+                    long first;
+                    try {
+                        count = in.readInt();
+                        first = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (count < 1 || count > BUFFER_MOVES)
+                        break;
+                    int frameBytes = count * RECORD_BYTES;
+                    if (first + count - 1 <= last) {
+                        if (in.skipBytes(frameBytes + FRAME_CRC_BYTES) < frameBytes + FRAME_CRC_BYTES)
+                            break;
+                        valid += FRAME_HEADER_BYTES + frameBytes + FRAME_CRC_BYTES;
+                        continue;
+                    }
+                    if (first > last + 1)
+                        throw new IOException("Move log " + directory + " is missing moves "
+                                + (last + 1) + " to " + (first - 1));
+                    try {
+                        in.readFully(records, 0, frameBytes);
+                        long expected = checksum.getValue();
+                        if (in.readInt() != (int) expected)
+                            break;
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    for (int i = (int) (last + 1 - first); i < count && last < to; i++) {
+                        int kind = records[i * RECORD_BYTES];
+                        if (kind < 0 || kind >= MOVES.length)
+                            throw new IOException("Move log " + directory + " has an invalid move "
+                                    + (first + i));
+                        kinds[replaying] = MOVES[kind];
+                        xs[replaying] = fields.getInt(i * RECORD_BYTES + 1);
+                        ys[replaying] = fields.getInt(i * RECORD_BYTES + 5);
+                        if (++replaying == REPLAY_MOVES) {
+                            board.replay(kinds, xs, ys, replaying);
+                            replaying = 0;
+                        }
+                        last++;
+                    }
+                    valid += FRAME_HEADER_BYTES + frameBytes + FRAME_CRC_BYTES;
+                }
+            } finally {
+                in.close();
+            }
+            if (truncate && last < to && valid < file.length())
+                truncate(file, valid);
+        }
+        board.replay(kinds, xs, ys, replaying);
+        return last;
+    }
+
+    /**
+     * Starts logging the moves of board. Must be called before any move is
+     * made on it. Writes a snapshot of board first, unless the newest one
+     * already holds every move, so that the log only ever needs the
+     * segments started from now on.
+     * @param board Board recovered by recover(), or a new board if it
+     *  returned null
+     * @throws IOException if the first segment or snapshot can't be written
+     */
+    void start(Board board) throws IOException {
+        this.board = board;
+        board.setJournal(this);
+        if (list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).isEmpty() || snapshotted < moves)
+            writeSnapshot(board.checkpoint());
+        snapshotted = moves;
+        deleteObsolete(moves);
+        segment = new RandomAccessFile(segmentFile(moves + 1), "rw").getChannel();
+        segment.truncate(0);
+
+        snapshotter = Executors.newSingleThreadExecutor(daemon("move-log-snapshot"));
+        committer = daemon("move-log-committer").newThread(new Runnable() {
+            public void run() {
+                commit();
+            }
+        });
+        committer.start();
+    }
+
+    /**
+     * Stops logging: writes the moves still buffered, and waits for the
+     * snapshot being written, if any. The moves made from then on aren't
+     * logged, and no snapshot holds them.
+     * @throws IOException if the log failed to write some moves
+     */
+    void close() throws IOException {
+        // a snapshot copying the board from now on has no journal, and is
+        // dropped
+        board.setJournal(null);
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            committer.join();
+            snapshotter.shutdown();
+            snapshotter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the move log", e);
+        } finally {
+            if (segment != null)
+                segment.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    public void moved(Board.Move move, int x, int y) {
+        lock.lock();
+        try {
+            while (pending.remaining() < RECORD_BYTES && failure == null && ! closed)
+                drained.awaitUninterruptibly();
+            if (failure != null || closed)
+                return;
+            pending.put((byte) move.ordinal()).putInt(x).putInt(y);
+            moves++;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long moves() {
+        lock.lock();
+        try {
+            return moves;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Body of the committer thread: writes the buffered moves in groups,
+     * until the log is closed and every move is written.
+     */
+    private void commit() {
+        try {
+            while (true) {
+                long first;
+                long obsolete;
+                lock.lock();
+                try {
+                    while (pending.position() == 0 && ! closed)
+                        appended.awaitUninterruptibly();
+                    if (pending.position() == 0)
+                        return;
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                    first = pendingFirst;
+                    pendingFirst = moves + 1;
+                    obsolete = obsoleteBefore;
+                    obsoleteBefore = -1;
+                    drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (obsolete >= 0) {
+                    // start a new segment, so the old ones can be deleted
+                    segment.close();
+                    segment = new RandomAccessFile(segmentFile(first), "rw").getChannel();
+                    segment.truncate(0);
+                    deleteObsolete(obsolete);
+                }
+                long last = writeFrame(first);
+                if (last - snapshotted >= snapshotMoves && ! snapshotting) {
+                    snapshotting = true;
+                    snapshotter.execute(new Runnable() {
+                        public void run() {
+                            snapshot();
+                        }
+                    });
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Move log failed, moves are no longer logged: " + e);
+            lock.lock();
+            try {
+                failure = e;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the moves in writing as a frame, and forces it to disk.
+     * @param first number of the first of the moves
+     * @return long number of the last of the moves
+     */
+    private long writeFrame(long first) throws IOException {
+        writing.flip();
+        int count = writing.remaining() / RECORD_BYTES;
+        frameHeader.clear();
+        frameHeader.putInt(count).putLong(first).flip();
+        crc.reset();
+        crc.update(frameHeader.array(), 0, FRAME_HEADER_BYTES);
+        crc.update(writing.array(), 0, writing.limit());
+        frameCrc.clear();
+        frameCrc.putInt((int) crc.getValue()).flip();
+        ByteBuffer[] frame = { frameHeader, writing, frameCrc };
+        while (frameCrc.hasRemaining())
+            segment.write(frame);
+        segment.force(false);
+        writing.clear();
+        return first + count - 1;
+    }
+
+    /**
+     * Body of the snapshot thread: writes a snapshot of the board, and has
+     * the committer delete what it makes obsolete.
+     */
+    private void snapshot() {
+        try {
+            Board.Checkpoint checkpoint = board.checkpoint();
+            if (checkpoint.getMoves() < 0)
+                return; // closed
+            writeSnapshot(checkpoint);
+            snapshotted = checkpoint.getMoves();
+            lock.lock();
+            try {
+                obsoleteBefore = checkpoint.getMoves();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Move log failed to write a snapshot: " + e);
+        } finally {
+            snapshotting = false;
+        }
+    }
+
+    /**
+     * Writes checkpoint to a temporary file, forces it to disk, and renames
+     * it to the snapshot of its move.
+     */
+    private void writeSnapshot(Board.Checkpoint checkpoint) throws IOException {
+        File file = snapshotFile(checkpoint.getMoves());
+        File temporary = new File(directory, file.getName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            CRC32 checksum = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(stream, 1 << 16), checksum));
+            int size = checkpoint.getSize();
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(size);
+            out.writeLong(checkpoint.getMoves());
+            int squares = size * size;
+            for (int i = 0; i < squares; i += 2)
+                out.write(checkpoint.square(i) << 4 | (i + 1 < squares ? checkpoint.square(i + 1) : 0));
+            out.writeInt((int) checksum.getValue());
+            out.flush();
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * Forces the names of the files of the directory to disk, so a renamed
+     * snapshot is never lost while the segments it made obsolete are
+     * deleted. Not every platform can open a directory; the rename is then
+     * left to the file system.
+     */
+    private void syncDirectory() {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // can't be forced on this platform
+        }
+    }
+
+    /**
+     * @return the numbers of the moves the snapshots in the directory were
+     *  taken after, in ascending order
+     */
+    List<Long> snapshots() {
+        return list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Reads the snapshot taken after move.
+     * @param move number of the move of one of the snapshots()
+     * @param stripeRows int >= 1, the # of rows guarded by each lock of the
+     *  board, or Board.WHOLE_BOARD
+     * @return Board as it was right after move
+     * @throws IOException if the snapshot can't be read, or isn't valid
+     */
+    Board readSnapshot(long move, int stripeRows) throws IOException {
+        File file = snapshotFile(move);
+        CRC32 checksum = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16), checksum));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("Snapshot " + file + " isn't a snapshot of this version");
+            int size = in.readInt();
+            if (size < 0 || size > 46340 || in.readLong() != move)
+                throw new IOException("Snapshot " + file + " is corrupt");
+            byte[] squares = new byte[size * size];
+            byte[] packed = new byte[1 << 16];
+            for (int i = 0; i < squares.length; ) {
+                int length = Math.min(packed.length, (squares.length - i + 1) / 2);
+                in.readFully(packed, 0, length);
+                for (int j = 0; j < length; j++, i += 2) {
+                    squares[i] = (byte) ((packed[j] >> 4) & 0x0f);
+                    if (i + 1 < squares.length)
+                        squares[i + 1] = (byte) (packed[j] & 0x0f);
+                }
+            }
+            long expected = checksum.getValue();
+            if (in.readInt() != (int) expected)
+                throw new IOException("Snapshot " + file + " is corrupt");
+            try {
+                return new Board(size, squares, stripeRows);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Snapshot " + file + " is corrupt: " + e.getMessage());
+            }
+        } catch (EOFException e) {
+            throw new IOException("Snapshot " + file + " is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the snapshots before the one of move, and the segments only
+     * holding moves up to move, unless the history is kept.
+     */
+    private void deleteObsolete(long move) {
+        if (keepHistory)
+            return;
+        for (long snapshot : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (snapshot < move)
+                snapshotFile(snapshot).delete();
+        }
+        List<Long> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (segments.get(i + 1) <= move + 1)
+                segmentFile(segments.get(i)).delete();
+        }
+    }
+
+    /**
+     * @return the numbers of the files named prefix + number + suffix in
+     *  the directory, in ascending order
+     */
+    private List<Long> list(String prefix, String suffix) {
+        List<Long> numbers = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names == null)
+            return numbers;
+        for (String name : names) {
+            if ( ! name.startsWith(prefix) || ! name.endsWith(suffix))
+                continue;
+            try {
+                numbers.add(Long.parseLong(name.substring(prefix.length(),
+                        name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+                // not a file of the log
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private File snapshotFile(long move) {
+        return new File(directory, SNAPSHOT_PREFIX + move + SNAPSHOT_SUFFIX);
+    }
+
+    private File segmentFile(long first) {
+        return new File(directory, SEGMENT_PREFIX + first + SEGMENT_SUFFIX);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
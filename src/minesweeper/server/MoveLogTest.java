@@ -0,0 +1,216 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MoveLogTest {
+
+    /**
+     * Testing Strategy:
+     *  - an empty directory holds no game
+     *  - recover a board from the first snapshot and the log, then resume
+     *      logging it, and recover it again
+     *  - snapshots taken every few moves, which delete the older ones
+     *  - a torn frame at the end of the log is cut off
+     *  - boards locked in stripes, and restored from a Checkpoint
+ *  - a recursive dig and deflags on a board locked in stripes at once,
+ *      recovered square for square
+     */
+
+    private static File directory() throws IOException {
+        File directory = File.createTempFile("moves", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Makes count random moves on board, mostly digs.
+     */
+    private static void play(Board board, Random random, int count) {
+        int size = board.getSnapshot().getSize();
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(size);
+            int y = random.nextInt(size);
+            switch (random.nextInt(4)) {
+            case 0:
+                board.flag(x, y);
+                break;
+            case 1:
+                board.deflag(x, y);
+                break;
+            default:
+                board.dig(x, y, true);
+                break;
+            }
+        }
+    }
+
+    private static int count(File directory, String suffix) {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(suffix))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void recoverTest() throws IOException {
+        File directory = directory();
+        MoveLog log = new MoveLog(directory, 1000000);
+        assertNull(log.recover(Board.WHOLE_BOARD));
+        Board board = new Board(30, Board.WHOLE_BOARD, 1, 0.1);
+        log.start(board);
+        Random random = new Random(2);
+        play(board, random, 200);
+        log.close();
+
+        log = new MoveLog(directory, 1000000);
+        Board recovered = log.recover(Board.WHOLE_BOARD);
+        assertEquals(board.look(), recovered.look());
+        long moves = log.moves();
+        assertTrue(moves > 0);
+
+        log.start(recovered);
+        play(recovered, random, 200);
+        log.close();
+        assertTrue(log.moves() > moves);
+
+        log = new MoveLog(directory, 1000000);
+        Board again = log.recover(4);
+        assertEquals(recovered.look(), again.look());
+        play(recovered, new Random(3), 100);
+        play(again, new Random(3), 100);
+        assertEquals(recovered.look(), again.look());
+    }
+
+    @Test
+    public void snapshotTest() throws IOException, InterruptedException {
+        File directory = directory();
+        MoveLog log = new MoveLog(directory, 20);
+        Board board = new Board(40, 8, 5, 0.05);
+        log.start(board);
+        Random random = new Random(6);
+        for (int i = 0; i < 40; i++) {
+            play(board, random, 50);
+            Thread.sleep(2);
+        }
+        log.close();
+        assertTrue(count(directory, ".snap") <= 2);
+        assertFalse(new File(directory, "snapshot-0.snap").exists());
+
+        log = new MoveLog(directory, 20);
+        assertEquals(board.look(), log.recover(8).look());
+    }
+
+    @Test
+    public void tornFrameTest() throws IOException {
+        File directory = directory();
+        MoveLog log = new MoveLog(directory, 1000000);
+        Board board = new Board(20, Board.WHOLE_BOARD, 7, 0.1);
+        log.start(board);
+        play(board, new Random(8), 100);
+        log.close();
+
+        File segment = new File(directory, "moves-1.log");
+        long length = segment.length();
+        FileOutputStream out = new FileOutputStream(segment, true);
+        try {
+            out.write(new byte[] { 0, 0, 0, 3, 0, 0, 0, 0 });
+        } finally {
+            out.close();
+        }
+        log = new MoveLog(directory, 1000000);
+        assertEquals(board.look(), log.recover(Board.WHOLE_BOARD).look());
+        assertEquals(length, segment.length());
+    }
+
+    /**
+     * @return true if the squares of a and b are the same, bombs included
+     */
+    private static boolean same(Board a, Board b) {
+        Board.Checkpoint first = a.checkpoint();
+        Board.Checkpoint second = b.checkpoint();
+        if (first.getSize() != second.getSize())
+            return false;
+        for (int i = 0; i < first.getSize() * first.getSize(); i++) {
+            if (first.square(i) != second.square(i))
+                return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void concurrentTest() throws IOException, InterruptedException {
+        // One dig at the bottom of a board without bombs opens all of it,
+        // row by row upwards, while each other player flags and deflags
+        // squares of one row. A dig backing off from a row being played
+        // would let the players of the rows it already opened play before
+        // it is journaled.
+        final int size = 300;
+        for (int round = 0; round < 20; round++) {
+            File directory = directory();
+            MoveLog log = new MoveLog(directory, 1000000);
+            final Board board = new Board(size, new byte[size * size], 1);
+            log.start(board);
+            Thread digger = new Thread() {
+                @Override
+                public void run() {
+                    board.dig(0, size - 1, true);
+                }
+            };
+            final Thread dig = digger;
+            Thread[] players = new Thread[12];
+            for (int p = 0; p < players.length; p++) {
+                final int y = (p + 1) * size / (players.length + 1);
+                for (int x = 3; x < size; x += 7)
+                    board.flag(x, y, true);
+                final Random random = new Random(round * players.length + p);
+                players[p] = new Thread() {
+                    @Override
+                    public void run() {
+                        while (dig.isAlive()) {
+                            int x = 3 + 7 * random.nextInt(size / 7);
+                            if (random.nextBoolean())
+                                board.flag(x, y, true);
+                            else
+                                board.deflag(x, y, true);
+                        }
+                    }
+                };
+                players[p].start();
+            }
+            digger.start();
+            digger.join();
+            for (Thread player : players)
+                player.join();
+            log.close();
+
+            log = new MoveLog(directory, 1000000);
+            assertTrue("round " + round, same(board, log.recover(1)));
+        }
+    }
+
+    @Test
+    public void checkpointTest() {
+        Board board = new Board(17, 3, 9, 0.2);
+        play(board, new Random(10), 50);
+        Board.Checkpoint checkpoint = board.checkpoint();
+        assertEquals(-1, checkpoint.getMoves());
+        byte[] squares = new byte[17 * 17];
+        for (int i = 0; i < squares.length; i++)
+            squares[i] = (byte) checkpoint.square(i);
+        Board restored = new Board(17, squares, Board.WHOLE_BOARD);
+        assertEquals(board.look(), restored.look());
+        play(board, new Random(11), 50);
+        play(restored, new Random(11), 50);
+        assertEquals(board.look(), restored.look());
+    }
+}
@@ -0,0 +1,451 @@
+package minesweeper.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Alternative to MinesweeperServer.serve() that handles every client from a
+ * small fixed set of event loop threads, using java.nio selectors, instead of
+ * a thread per client. Idle clients then only cost a socket and a few small
+ * buffers. The text protocol is the same: each client still gets its own
+ * ConnectionHandler, which answers its lines.
+ *
+ * serve() accepts clients on the calling thread, and hands them out to the
+ * event loops in turn. Each client is then only touched by its event loop,
+ * which also pushes the changes of the board to its subscribed clients once
+ * per tick. A subscribed client still busy receiving earlier answers is
+ * skipped, so it gets the whole board instead once it catches up. A client
+ * whose request throws an exception is dropped, and the exception printed,
+ * so its event loop keeps serving the others. A client joining a room whose
+ * board isn't ready yet isn't waited for either: it stops being read from,
+ * and the worker of the room hands it back to its event loop once the
+ * board is ready, to answer it and the requests it sent meanwhile.
+ *
+ * Thread Safety:
+ *  - An event loop is the only thread using its selector, its read buffer
+ *      and its Connections. Other threads only hand it new clients through
+ *      its pending queue, and clients whose room is ready through its
+ *      joined queue, which are concurrent queues.
+ *  - ConnectionHandlers run on their event loop, and share the Board,
+ *      which is threadsafe.
+ * @author jains
+ *
+ */
+public class NioServer {
+
+    // Bytes read from the network at once by an event loop
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocketChannel serverChannel;
+    private final boolean debug;
+    private final Board board;
+    // The board of the server if it is chunked, in which case board is null
+    private final ChunkedBoard chunkedBoard;
+    private final int tickMillis;
+    private final Rooms rooms;
+    private final Metrics metrics;
+    private final EventLoop[] loops;
+
+    /**
+     * Make a NioServer that listens for connections on port.
+     *
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug true if clients should _not_ be disconnected after a BOOM message
+     * @param b Board shared by every client
+     * @param threads int >= 1, the # of event loop threads
+     * @param tickMillis int >= 1, the # of milliseconds between two pushes of
+     *                   changes to a subscribed client
+     * @throws IOException if the port can't be listened on
+     */
+    public NioServer(int port, boolean debug, Board b, int threads, int tickMillis) throws IOException {
+        this(port, debug, b, threads, tickMillis, null, null);
+    }
+    
+    /**
+     * Make a NioServer that listens for connections on port, whose clients
+     * can join rooms, and whose metrics are recorded.
+     * 
+     * @param rooms the rooms clients can join besides b, or null if they
+     *              can't join any
+     * @param metrics where to record the requests and connections of the
+     *                clients, or null if they aren't recorded
+     * @see #NioServer(int, boolean, Board, int, int)
+     */
+    NioServer(int port, boolean debug, Board b, int threads, int tickMillis, Rooms rooms,
+            Metrics metrics) throws IOException {
+        this(port, debug, b, null, threads, tickMillis, rooms, metrics);
+    }
+    
+    /**
+     * Make a NioServer whose board is chunked, and can only be looked at in
+     * regions.
+     * 
+     * @see #NioServer(int, boolean, Board, int, int, Rooms, Metrics)
+     */
+    NioServer(int port, boolean debug, ChunkedBoard b, int threads, int tickMillis, Rooms rooms,
+            Metrics metrics) throws IOException {
+        this(port, debug, null, b, threads, tickMillis, rooms, metrics);
+    }
+    
+    /**
+     * Exactly one of b and chunked must be null.
+     */
+    private NioServer(int port, boolean debug, Board b, ChunkedBoard chunked, int threads,
+            int tickMillis, Rooms rooms, Metrics metrics) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        this.debug = debug;
+        this.board = b;
+        this.chunkedBoard = chunked;
+        this.tickMillis = tickMillis;
+        this.rooms = rooms;
+        this.metrics = metrics;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new EventLoop();
+    }
+
+    /**
+     * Run the server, listening for client connections and handling them on
+     * the event loops. Never returns unless an exception is thrown.
+     *
+     * @throws IOException if the main server socket is broken
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++){
+            Thread thread = new Thread(loops[i], "nio-event-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int next = 0;
+        while (true) {
+            // block until a client connects
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            loops[next].add(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    /**
+     * A thread serving many clients with one selector.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        // the clients whose room is ready, to answer
+        private final Queue<Connection> joined = new ConcurrentLinkedQueue<Connection>();
+        // a heap buffer, whose array is handed to the ConnectionHandlers
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // the clients that subscribed to the changes of the board
+        private final Set<Connection> subscribers = new HashSet<Connection>();
+        private long nextTick = 0;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Hands a newly accepted client to this event loop. Can be called
+         * from any thread.
+         * @param channel SocketChannel of the client, in non-blocking mode
+         */
+        void add(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Hands back a client whose room is ready. Can be called from any
+         * thread.
+         */
+        void joined(Connection connection) {
+            joined.add(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    if (subscribers.isEmpty())
+                        selector.select();
+                    else
+                        selector.select(Math.max(1, nextTick - System.currentTimeMillis()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                for (SocketChannel channel = pending.poll(); channel != null; channel = pending.poll()){
+                    try {
+                        new Connection(channel, this);
+                    } catch (ClosedChannelException e) {
+                        // the client left before it was served
+                    }
+                }
+                for (Connection connection = joined.poll(); connection != null; connection = joined.poll())
+                    connection.joined();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                        if (key.isValid() && key.isReadable())
+                            connection.read(readBuffer);
+                    } catch (IOException e) {
+                        // only this client is dropped
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // a bug serving this client: drop it, but keep
+                        // serving the others on this loop
+                        e.printStackTrace();
+                        connection.close();
+                    }
+                }
+                
+                long now = System.currentTimeMillis();
+                if ( ! subscribers.isEmpty() && now >= nextTick) {
+                    // a copy, since a client may leave while pushing to it
+                    for (Connection connection : subscribers.toArray(new Connection[subscribers.size()]))
+                        connection.tick();
+                    nextTick = now + tickMillis;
+                }
+            }
+        }
+    }
+
+    /**
+     * A client of an event loop: its ConnectionHandler, the part of a line
+     * received so far, and the answers not yet sent.
+     *
+     * The answers to all the requests received by one read are sent together.
+     * While answers are waiting to be sent, the connection stops reading,
+     * so a client that doesn't read its answers can't make them pile up.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ConnectionHandler handler;
+        // the subscribed clients of the event loop
+        private final Set<Connection> subscribers;
+
+        // answers not yet sent
+        private final Output out = new Output();
+        // the bytes received after a join waiting for its room, or null
+        private byte[] unread = null;
+        // true once the client has sent everything
+        private boolean ended = false;
+        private boolean closed = false;
+
+        /**
+         * Registers channel with the selector of loop, and greets the client.
+         */
+        Connection(SocketChannel channel, final EventLoop loop) throws ClosedChannelException {
+            this.channel = channel;
+            this.subscribers = loop.subscribers;
+            this.key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            if (chunkedBoard != null)
+                this.handler = new ConnectionHandler(debug, chunkedBoard, rooms, metrics);
+            else
+                this.handler = new ConnectionHandler(debug, board, rooms, metrics);
+            handler.setRoomListener(new Runnable() {
+                public void run() {
+                    loop.joined(Connection.this);
+                }
+            });
+            try {
+                handler.welcome(out);
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Reads what the client sent, and answers every complete request in it.
+         * @param buffer ByteBuffer to read into, shared by the event loop
+         * @throws IOException if the connection is broken
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0){
+                ended = true;
+                handler.endOfInput(out);
+            } else {
+                receive(buffer.array(), n);
+            }
+            answered();
+        }
+        
+        /**
+         * Answers the requests in the first length bytes of bytes, keeping
+         * those after a join waiting for its room.
+         */
+        private void receive(byte[] bytes, int length) throws IOException {
+            int n = handler.receive(bytes, 0, length, out);
+            unread = handler.isJoining() && n < length ? Arrays.copyOfRange(bytes, n, length) : null;
+        }
+        
+        /**
+         * Answers the join that was waiting for its room, then the requests
+         * received after it.
+         */
+        void joined() {
+            if (closed)
+                return;
+            try {
+                handler.joined(out);
+                if (unread != null)
+                    receive(unread, unread.length);
+                answered();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+        
+        /**
+         * Sends the answers written, once requests were received.
+         */
+        private void answered() throws IOException {
+            if (handler.isSubscribed())
+                subscribers.add(this);
+            else
+                subscribers.remove(this);
+            flush();
+        }
+        
+        /**
+         * Pushes the changes of the board since the last tick, unless
+         * earlier answers are still waiting to be sent, or a join is
+         * waiting for its room.
+         */
+        void tick() {
+            if (closed || out.buffer.position() > 0 || handler.isJoining())
+                return;
+            try {
+                handler.tick(out);
+                flush();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        /**
+         * Sends as many buffered answers as the network takes without blocking.
+         * Waits for the channel to be writable again if some are left;
+         * otherwise releases the room they took, and goes back to reading,
+         * or closes the connection if the client is done. Neither happens
+         * while a join is waiting for its room.
+         * @throws IOException if the connection is broken
+         */
+        void flush() throws IOException {
+            out.buffer.flip();
+            channel.write(out.buffer);
+            out.buffer.compact();
+            if (out.buffer.position() > 0){
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            out.drained();
+            if (handler.isJoining())
+                key.interestOps(0);
+            else if (handler.isClosing() || ended)
+                close();
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Closes the connection and removes the client from the board.
+         */
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            subscribers.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // do nothing, the channel is closed anyway
+            }
+            handler.disconnect();
+        }
+    }
+    
+    /**
+     * The answers not yet sent to a client, between position 0 and the
+     * position of buffer, which grows as needed. Once they are all sent, a
+     * grown buffer is replaced by a small one again, so a client that once
+     * got a large answer, e.g. the whole of a large board, doesn't keep
+     * that room while idle.
+     */
+    private static class Output extends OutputStream {
+        // Bytes of the buffer while no large answer is waiting
+        private static final int INITIAL_SIZE = 256;
+        
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+        
+        @Override
+        public void write(int b) {
+            reserve(1);
+            buffer.put((byte) b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            reserve(len);
+            buffer.put(b, off, len);
+        }
+        
+        /**
+         * Makes room for length more bytes.
+         */
+        private void reserve(int length) {
+            if (buffer.remaining() >= length)
+                return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + length));
+            buffer.flip();
+            buffer = bigger.put(buffer);
+        }
+        
+        /**
+         * Called once every answer was sent: shrinks a grown buffer back to
+         * INITIAL_SIZE.
+         */
+        void drained() {
+            if (buffer.capacity() > INITIAL_SIZE)
+                buffer = ByteBuffer.allocate(INITIAL_SIZE);
+        }
+    }
+}
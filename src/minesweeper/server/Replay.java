@@ -0,0 +1,225 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * Replays a game logged by a MoveLog that keeps its history (see the
+ * --keep-history option of MinesweeperServer), e.g. to look into a dispute
+ * between players, or to check that a change of Board still plays the moves
+ * of real games the same way.
+ *
+ * The game is the first snapshot of the log, i.e. the seeded or loaded
+ * board the server started with, followed by every move that changed it.
+ * Every later snapshot is a checkpoint: seek() rebuilds the board at any
+ * move from the newest checkpoint at or before it, and only replays the
+ * moves after that checkpoint, so it takes about as long wherever the move
+ * is in the game.
+ *
+ * Thread Safety: a Replay is mutable, and must only be used by one thread
+ * at a time. The log must not be written meanwhile, except by appending.
+ * @author jains
+ *
+ */
+public class Replay {
+
+    private final MoveLog log;
+    private final int stripeRows;
+    // Checkpoint the last seek started from, and last move it replayed
+    private long checkpoint = -1;
+    private long reached = -1;
+
+    /**
+     * Makes a replay of the game logged in directory.
+     * @param directory directory of the log
+     * @param stripeRows int >= 1, the # of rows guarded by each lock of the
+     *  boards rebuilt, or Board.WHOLE_BOARD
+     */
+    Replay(File directory, int stripeRows) {
+        this.log = new MoveLog(directory, MinesweeperServer.DEFAULT_SNAPSHOT_MOVES, true);
+        this.stripeRows = stripeRows;
+    }
+
+    /**
+     * Rebuilds the board right after a move.
+     * @param move long >= 0, the number of the move, or 0 for the board the
+     *  game started with. Moves after the end of the log are ignored.
+     * @return Board as it was right after move, or after the last move of
+     *  the log if move is after it (see getReached())
+     * @throws IOException if the log can't be read, or has no checkpoint
+     *  at or before move
+     */
+    Board seek(long move) throws IOException {
+        IOException invalid = null;
+        List<Long> checkpoints = log.snapshots();
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            long candidate = checkpoints.get(i);
+            if (candidate > move)
+                continue;
+            Board board;
+            try {
+                board = log.readSnapshot(candidate, stripeRows);
+            } catch (IOException e) {
+                invalid = e;
+                continue;
+            }
+            checkpoint = candidate;
+            reached = log.replay(board, candidate, move, false);
+            return board;
+        }
+        if (invalid != null)
+            throw invalid;
+        throw new IOException("The log has no checkpoint at or before move " + move);
+    }
+
+    /**
+     * @return long the checkpoint the last seek() started from, or -1
+     */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return long the move the last seek() rebuilt the board at, or -1
+     */
+    long getReached() {
+        return reached;
+    }
+
+    /**
+     * Replays the moves from each checkpoint to the next, and compares the
+     * board with the next checkpoint.
+     * @return long the first checkpoint the replayed board doesn't match,
+     *  or -1 if they all match
+     * @throws IOException if the log can't be read, or some moves between
+     *  two checkpoints are missing
+     */
+    long check() throws IOException {
+        List<Long> checkpoints = log.snapshots();
+        for (int i = 0; i + 1 < checkpoints.size(); i++) {
+            long from = checkpoints.get(i);
+            long to = checkpoints.get(i + 1);
+            Board board = log.readSnapshot(from, stripeRows);
+            if (log.replay(board, from, to, false) < to)
+                throw new IOException("The log ends before the checkpoint of move " + to);
+            if ( ! same(board, log.readSnapshot(to, stripeRows)))
+                return to;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if a and b have the same squares, including their bombs
+     */
+    private static boolean same(Board a, Board b) {
+        Board.Checkpoint first = a.checkpoint();
+        Board.Checkpoint second = b.checkpoint();
+        if (first.getSize() != second.getSize())
+            return false;
+        int squares = first.getSize() * first.getSize();
+        for (int i = 0; i < squares; i++) {
+            if (first.square(i) != second.square(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replays a logged game.
+     *
+     * Usage: Replay LOG [--move MOVE | --check] [--stripe-rows ROWS]
+     *
+     * LOG is the directory of the log of the game, written by a server started with --log LOG
+     * --keep-history.
+     *
+     * MOVE is an optional non-negative integer. The board right after move MOVE is printed, as
+     * the look request shows it, or the board after the last move if MOVE isn't given. E.g.
+     * "Replay game --move 0" prints the board the game started with.
+     *
+     * The --check argument replays the moves from each checkpoint of the log to the next one,
+     * and checks that they lead to the same board, bombs included. It fails with the first
+     * checkpoint that differs, e.g. after a change of the way the board digs.
+     *
+     * ROWS is an optional positive integer, the # of rows locked separately on the boards
+     * rebuilt, as with MinesweeperServer.
+     */
+    public static void main(String[] args) {
+        File directory = null;
+        long move = Long.MAX_VALUE;
+        boolean check = false;
+        int stripeRows = Board.WHOLE_BOARD;
+
+        Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
+        try {
+            while ( ! arguments.isEmpty()) {
+                String flag = arguments.remove();
+                try {
+                    if (flag.equals("--move")) {
+                        move = Long.parseLong(arguments.remove());
+                        if (move < 0) {
+                            throw new IllegalArgumentException("move " + move + " can't be negative");
+                        }
+                    } else if (flag.equals("--check")) {
+                        check = true;
+                    } else if (flag.equals("--stripe-rows")) {
+                        stripeRows = Integer.parseInt(arguments.remove());
+                        if (stripeRows < 1) {
+                            throw new IllegalArgumentException("stripe rows " + stripeRows + " must be positive");
+                        }
+                    } else if (directory == null && ! flag.startsWith("--")) {
+                        directory = new File(flag);
+                        if ( ! directory.isDirectory()) {
+                            throw new IllegalArgumentException("directory not found: \"" + directory + "\"");
+                        }
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (directory == null) {
+                throw new IllegalArgumentException("missing log directory");
+            }
+            if (check && move != Long.MAX_VALUE) {
+                throw new IllegalArgumentException("--move and --check can't be combined");
+            }
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: Replay LOG [--move MOVE | --check] [--stripe-rows ROWS]");
+            return;
+        }
+
+        Replay replay = new Replay(directory, stripeRows);
+        try {
+            long start = System.nanoTime();
+            if (check) {
+                long differs = replay.check();
+                if (differs >= 0) {
+                    System.out.println("The replayed board differs from the checkpoint of move " + differs);
+                    System.exit(1);
+                }
+                System.out.println("Every checkpoint matches (" + (System.nanoTime() - start) / 1000000
+                        + " ms)");
+                return;
+            }
+            Board board = replay.seek(move);
+            System.err.println("Move " + replay.getReached() + ", replayed from the checkpoint of move "
+                    + replay.getCheckpoint() + " (" + (System.nanoTime() - start) / 1000000 + " ms)");
+            if (move != Long.MAX_VALUE && replay.getReached() < move) {
+                System.err.println("The log ends at move " + replay.getReached());
+            }
+            System.out.print(board.look());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
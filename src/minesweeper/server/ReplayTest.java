@@ -0,0 +1,182 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.junit.Test;
+
+public class ReplayTest {
+
+    private static final int SIZE = 30;
+
+    /**
+     * Testing Strategy:
+     *  - seek to the start of the game, to checkpoints, between them, to
+     *      the last move, and past it
+     *  - check a log whose checkpoints all match, and one with a
+     *      checkpoint that doesn't
+     *  - a log that didn't keep its history
+     *  - check a game played by several players at once on a board locked
+     *      in stripes
+     */
+
+    /**
+     * Logs a game of moves moves in directory, with a checkpoint every few
+     * moves.
+     * @return the look() of the board after each move, by number
+     */
+    private static Map<Long, String> play(File directory, int moves, boolean keepHistory)
+            throws IOException, InterruptedException {
+        MoveLog log = new MoveLog(directory, 25, keepHistory);
+        Board board = new Board(SIZE, Board.WHOLE_BOARD, 12, 0.2);
+        log.start(board);
+        Map<Long, String> looks = new HashMap<Long, String>();
+        looks.put(0L, board.look());
+        Random random = new Random(13);
+        for (int i = 0; log.moves() < moves; i++) {
+            int x = random.nextInt(SIZE);
+            int y = random.nextInt(SIZE);
+            switch (random.nextInt(3)) {
+            case 0:
+                board.flag(x, y);
+                break;
+            case 1:
+                board.deflag(x, y);
+                break;
+            default:
+                board.dig(x, y, true);
+                break;
+            }
+            looks.put(log.moves(), board.look());
+            if (i % 20 == 0)
+                Thread.sleep(2);
+        }
+        log.close();
+        return looks;
+    }
+
+    private static File directory() throws IOException {
+        File directory = File.createTempFile("replay", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void seekTest() throws IOException, InterruptedException {
+        File directory = directory();
+        Map<Long, String> looks = play(directory, 300, true);
+        long last = 300;
+        Replay replay = new Replay(directory, Board.WHOLE_BOARD);
+        for (long move = 0; move <= last; move += 7) {
+            assertEquals(looks.get(move), replay.seek(move).look());
+            assertEquals(move, replay.getReached());
+            assertTrue(replay.getCheckpoint() <= move);
+        }
+        assertTrue(replay.getCheckpoint() > 0);
+        assertEquals(looks.get(last), replay.seek(last + 100).look());
+        assertEquals(last, replay.getReached());
+        assertEquals(-1, replay.check());
+    }
+
+    /**
+     * Overwrites the snapshot of move in directory with board.
+     */
+    private static void writeSnapshot(File directory, long move, Board board) throws IOException {
+        Board.Checkpoint checkpoint = board.checkpoint();
+        int size = checkpoint.getSize();
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new FileOutputStream(new File(directory, "snapshot-" + move + ".snap")), crc));
+        try {
+            out.writeInt(MoveLog.SNAPSHOT_MAGIC);
+            out.writeInt(MoveLog.FORMAT_VERSION);
+            out.writeInt(size);
+            out.writeLong(move);
+            for (int i = 0; i < size * size; i += 2)
+                out.write(checkpoint.square(i) << 4 | (i + 1 < size * size ? checkpoint.square(i + 1) : 0));
+            out.writeInt((int) crc.getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void checkTest() throws IOException, InterruptedException {
+        File directory = directory();
+        Map<Long, String> looks = play(directory, 200, true);
+        MoveLog log = new MoveLog(directory, 25, true);
+        long move = log.snapshots().get(2);
+        Replay replay = new Replay(directory, Board.WHOLE_BOARD);
+        assertEquals(-1, replay.check());
+
+        // the same squares, but one more bomb
+        Board board = replay.seek(move);
+        Board.Checkpoint checkpoint = board.checkpoint();
+        byte[] squares = new byte[SIZE * SIZE];
+        for (int i = 0; i < squares.length; i++)
+            squares[i] = (byte) checkpoint.square(i);
+        for (int i = 0; i < squares.length; i++) {
+            if (squares[i] == 0) {
+                squares[i] = 4;
+                break;
+            }
+        }
+        writeSnapshot(directory, move, new Board(SIZE, squares, Board.WHOLE_BOARD));
+        assertEquals(move, replay.check());
+        // the moves before it are replayed from the checkpoint before
+        assertEquals(looks.get(move - 1), replay.seek(move - 1).look());
+        assertTrue(replay.getCheckpoint() < move);
+    }
+
+    @Test
+    public void stripedCheckTest() throws IOException, InterruptedException {
+        File directory = directory();
+        MoveLog log = new MoveLog(directory, 25, true);
+        final Board board = new Board(SIZE, 1, 14, 0.05);
+        log.start(board);
+        Thread[] players = new Thread[4];
+        for (int p = 0; p < players.length; p++) {
+            final Random random = new Random(15 + p);
+            players[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 300; i++) {
+                        int x = random.nextInt(SIZE);
+                        int y = random.nextInt(SIZE);
+                        if (i % 3 == 0)
+                            board.dig(x, y, true);
+                        else if (i % 3 == 1)
+                            board.flag(x, y, true);
+                        else
+                            board.deflag(x, y, true);
+                    }
+                }
+            };
+            players[p].start();
+        }
+        for (Thread player : players)
+            player.join();
+        log.close();
+
+        Replay replay = new Replay(directory, 1);
+        assertEquals(-1, replay.check());
+        assertEquals(board.look(), replay.seek(Long.MAX_VALUE).look());
+    }
+
+    @Test(expected=IOException.class)
+    public void noHistoryTest() throws IOException, InterruptedException {
+        File directory = directory();
+        play(directory, 200, false);
+        new Replay(directory, Board.WHOLE_BOARD).seek(1);
+    }
+}
@@ -0,0 +1,323 @@
+package minesweeper.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The rooms of a server: independent boards that clients join by name,
+ * each with its own players, so one server can host many games.
+ *
+ * A room is created by the first client joining it. Its board is loaded
+ * from the file of the same name in the rooms directory if there is one,
+ * and is otherwise a random board of the size asked for by that client.
+ * A room nobody is in for idleMillis is removed, and its board reclaimed;
+ * joining it again creates a new one.
+ *
+ * Every room belongs to one of a fixed set of worker threads, chosen by its
+ * name. Its worker loads or generates its board, and reclaims it once idle,
+ * so that a burst of new rooms can't start more work at once than there are
+ * workers. Moves are still made by the threads of the clients: boards are
+ * threadsafe and rooms share nothing, so players in different rooms never
+ * wait for each other. Only the metrics the boards record in, if any, are
+ * shared by every room.
+ *
+ * Thread Safety:
+ *  - rooms is a concurrent map. A Room is put in it once, by the client
+ *      creating it, and removed once, by its worker, when it is reclaimed.
+ *  - The players of a room are an AtomicInteger, which becomes -1 once the
+ *      room is reclaimed, so that a client can't join a room being
+ *      removed: it creates a new one instead.
+ *  - The board of a room is a FutureTask, run once by its worker, which
+ *      then runs the listeners waiting for it. They are a list guarded by
+ *      the lock of the room, which becomes null once the board is done.
+ * @author jains
+ *
+ */
+class Rooms {
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+    private final ScheduledExecutorService[] workers;
+    private final File directory;
+    private final int defaultSize;
+    private final int maxSize;
+    private final long idleMillis;
+    private final int stripeRows;
+    private final Metrics metrics;
+
+    /**
+     * @param workers int >= 1, the # of worker threads
+     * @param directory directory of the board files of the rooms, or null
+     *  if every room gets a random board
+     * @param defaultSize int >= 1, the size of the random board of a room
+     *  whose first client didn't ask for one
+     * @param maxSize int >= defaultSize, the largest size a client can ask for
+     * @param idleMillis long >= 1, the # of milliseconds after which a room
+     *  nobody is in is removed
+     * @param stripeRows int >= 1, the # of rows guarded by each lock of the
+     *  boards, or Board.WHOLE_BOARD
+     */
+    Rooms(int workers, File directory, int defaultSize, int maxSize, long idleMillis, int stripeRows) {
+        this(workers, directory, defaultSize, maxSize, idleMillis, stripeRows, null);
+    }
+
+    /**
+     * @param metrics where the boards of the rooms record their locks and
+     *  recursive digs, or null if they don't
+     * @see #Rooms(int, File, int, int, long, int)
+     */
+    Rooms(int workers, File directory, int defaultSize, int maxSize, long idleMillis, int stripeRows,
+            Metrics metrics) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        if (defaultSize < 1 || maxSize < defaultSize)
+            throw new IllegalArgumentException("invalid sizes: " + defaultSize + ", " + maxSize);
+        if (idleMillis < 1)
+            throw new IllegalArgumentException("idleMillis must be positive: " + idleMillis);
+        this.directory = directory;
+        this.defaultSize = defaultSize;
+        this.maxSize = maxSize;
+        this.idleMillis = idleMillis;
+        this.stripeRows = stripeRows;
+        this.metrics = metrics;
+        this.workers = new ScheduledExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            final String name = "room-worker-" + i;
+            this.workers[i] = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * A board and the players in it.
+     */
+    class Room {
+        private final String name;
+        private final ScheduledExecutorService worker;
+        // # of players in the room, or -1 once it is reclaimed
+        private final AtomicInteger players = new AtomicInteger(0);
+        private volatile long emptySince = System.currentTimeMillis();
+        // run by the worker once the room is in rooms
+        private final FutureTask<Board> board;
+        // run once the board is done, or null once it is; guarded by this
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        /**
+         * Makes a room whose board is the file of the same name in the rooms
+         * directory if there is one, or else a random board of size size.
+         */
+        private Room(String name, ScheduledExecutorService worker, final int size) {
+            this.name = name;
+            this.worker = worker;
+            final File file = directory == null ? null : new File(directory, name);
+            this.board = new FutureTask<Board>(new Callable<Board>() {
+                public Board call() throws IOException {
+                    Board board;
+                    try {
+                        if (file != null && file.isFile())
+                            board = new Board(file, stripeRows);
+                        else
+                            board = new Board(size, stripeRows, ThreadLocalRandom.current().nextLong(),
+                                    Board.DEFAULT_DENSITY);
+                    } catch (IOException | RuntimeException | Error e) {
+                        // the next client to join tries again
+                        rooms.remove(Room.this.name, Room.this);
+                        throw e;
+                    }
+                    board.setMetrics(metrics);
+                    return board;
+                }
+            }) {
+                @Override
+                protected void done() {
+                    List<Runnable> ready;
+                    synchronized (Room.this) {
+                        ready = listeners;
+                        listeners = null;
+                    }
+                    for (Runnable listener : ready)
+                        listener.run();
+                }
+            };
+        }
+
+        /**
+         * @return the name of the room
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if the board of the room is ready, or couldn't be
+         *  loaded: getBoard() then returns at once
+         */
+        boolean isReady() {
+            return board.isDone();
+        }
+
+        /**
+         * Runs listener once the board of the room is ready, or couldn't be
+         * loaded: at once on the calling thread if it already is, or else
+         * on the worker of the room, which must then not be kept waiting.
+         */
+        void whenReady(Runnable listener) {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Waits for the board of the room to be ready.
+         * @return the Board of the room
+         * @throws IOException if the board couldn't be loaded
+         */
+        Board getBoard() throws IOException {
+            try {
+                return board.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for room " + name, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException("room " + name + " couldn't be created", e.getCause());
+            }
+        }
+
+        /**
+         * Adds a player, unless the room was reclaimed.
+         * @return true if the player was added
+         */
+        private boolean enter() {
+            while (true) {
+                int n = players.get();
+                if (n < 0)
+                    return false;
+                if (players.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Removes a player added by join() or enter().
+         */
+        void leave() {
+            if (players.decrementAndGet() == 0) {
+                emptySince = System.currentTimeMillis();
+                scheduleReclaim(idleMillis);
+            }
+        }
+
+        private void scheduleReclaim(long delayMillis) {
+            worker.schedule(new Runnable() {
+                public void run() {
+                    reclaim();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Removes the room if nobody has been in it for idleMillis.
+         * Runs on the worker of the room.
+         */
+        private void reclaim() {
+            if (players.get() != 0)
+                return; // the last player to leave schedules another check
+            long idle = System.currentTimeMillis() - emptySince;
+            if (idle < idleMillis) {
+                scheduleReclaim(idleMillis - idle);
+                return;
+            }
+            if (players.compareAndSet(0, -1))
+                rooms.remove(name, this);
+        }
+    }
+
+    /**
+     * Adds a player to a room, creating it if needed, and waits for its
+     * board. The player must leave() the room once done with it.
+     * @param name name of the room, made of the characters allowed by Command
+     * @param size int >= 0, the size of the random board to create if the
+     *  room doesn't exist, or 0 for the default size. Ignored if the room
+     *  exists or has a board file.
+     * @return the Room joined
+     * @throws IllegalArgumentException if size is too large or negative
+     * @throws IOException if the board of the room couldn't be created
+     */
+    Room join(String name, int size) throws IOException {
+        Room room = enter(name, size);
+        try {
+            room.getBoard();
+        } catch (IOException e) {
+            room.leave();
+            throw e;
+        }
+        return room;
+    }
+
+    /**
+     * Adds a player to a room, creating it if needed, without waiting for
+     * its board, which may still be loading. The player must leave() the
+     * room once done with it, even if its board couldn't be loaded.
+     * @see #join(String, int)
+     * @throws IllegalArgumentException if size is too large or negative
+     */
+    Room enter(String name, int size) {
+        if (size < 0 || size > maxSize)
+            throw new IllegalArgumentException("size must be between 1 and " + maxSize + ": " + size);
+        while (true) {
+            Room room = rooms.get(name);
+            if (room == null) {
+                Room created = new Room(name, workers[(name.hashCode() & 0x7fffffff) % workers.length],
+                        size == 0 ? defaultSize : size);
+                room = rooms.putIfAbsent(name, created);
+                if (room == null) {
+                    room = created;
+                    room.worker.execute(room.board);
+                    // a room nobody stays in is reclaimed too
+                    room.scheduleReclaim(idleMillis);
+                }
+            }
+            if ( ! room.enter())
+                continue; // reclaimed meanwhile
+            return room;
+        }
+    }
+
+    /**
+     * @return int the # of rooms
+     */
+    int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Stops the workers. Rooms are then never reclaimed.
+     */
+    void shutdown() {
+        for (ScheduledExecutorService worker : workers)
+            worker.shutdownNow();
+    }
+}
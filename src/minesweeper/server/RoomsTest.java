@@ -0,0 +1,170 @@
+package minesweeper.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RoomsTest {
+
+    /**
+     * Testing Strategy:
+     *  - join a new room, with the default size and a given size
+     *  - join a room twice: same board, size ignored
+     *  - sizes too large or negative
+     *  - a room loaded from a file of the rooms directory, and a file that
+     *      isn't a valid board
+     *  - a room left idle is reclaimed, and joining it again makes a new one;
+     *      a room someone is in isn't
+     *  - enter without waiting: listeners run once the board is ready, or
+     *      couldn't be loaded, and at once if it already is
+     */
+
+    @Test
+    public void joinTest() throws IOException {
+        Rooms rooms = new Rooms(2, null, 5, 20, 60000, Board.WHOLE_BOARD);
+        try {
+            Rooms.Room a = rooms.join("a", 0);
+            assertEquals("a", a.getName());
+            assertEquals(5, a.getBoard().getSnapshot().getSize());
+            Rooms.Room b = rooms.join("b", 20);
+            assertEquals(20, b.getBoard().getSnapshot().getSize());
+            assertEquals(2, rooms.size());
+
+            Rooms.Room again = rooms.join("a", 7);
+            assertSame(a, again);
+            assertSame(a.getBoard(), again.getBoard());
+            assertEquals(2, rooms.size());
+        } finally {
+            rooms.shutdown();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void tooLargeTest() throws IOException {
+        Rooms rooms = new Rooms(1, null, 5, 20, 60000, Board.WHOLE_BOARD);
+        try {
+            rooms.join("a", 21);
+        } finally {
+            rooms.shutdown();
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void negativeSizeTest() throws IOException {
+        Rooms rooms = new Rooms(1, null, 5, 20, 60000, Board.WHOLE_BOARD);
+        try {
+            rooms.join("a", -1);
+        } finally {
+            rooms.shutdown();
+        }
+    }
+
+    @Test
+    public void directoryTest() throws IOException {
+        File directory = File.createTempFile("rooms", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        directory.deleteOnExit();
+        File board = write(new File(directory, "small"), "0 1\n1 0\n");
+        File invalid = write(new File(directory, "invalid"), "0 1\n");
+        Rooms rooms = new Rooms(1, directory, 5, 20, 60000, Board.WHOLE_BOARD);
+        try {
+            Rooms.Room small = rooms.join("small", 10);
+            assertEquals(2, small.getBoard().getSnapshot().getSize());
+            assertEquals("BOOM!\n", small.getBoard().dig(1, 0));
+            try {
+                rooms.join("invalid", 0);
+                fail("expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(1, rooms.size());
+        } finally {
+            rooms.shutdown();
+            board.delete();
+            invalid.delete();
+        }
+    }
+
+    @Test
+    public void reclaimTest() throws IOException, InterruptedException {
+        Rooms rooms = new Rooms(1, null, 5, 20, 50, Board.WHOLE_BOARD);
+        try {
+            Rooms.Room kept = rooms.join("kept", 0);
+            Rooms.Room left = rooms.join("left", 0);
+            Board board = left.getBoard();
+            left.leave();
+            for (int i = 0; i < 100 && rooms.size() > 1; i++)
+                Thread.sleep(20);
+            assertEquals(1, rooms.size());
+
+            Rooms.Room rejoined = rooms.join("left", 0);
+            assertNotSame(left, rejoined);
+            assertNotSame(board, rejoined.getBoard());
+            assertSame(kept, rooms.join("kept", 0));
+        } finally {
+            rooms.shutdown();
+        }
+    }
+
+    @Test
+    public void whenReadyTest() throws IOException, InterruptedException {
+        File directory = File.createTempFile("rooms", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        directory.deleteOnExit();
+        File invalid = write(new File(directory, "invalid"), "0 1\n");
+        Rooms rooms = new Rooms(1, directory, 5, 1000, 60000, Board.WHOLE_BOARD);
+        try {
+            Rooms.Room large = rooms.enter("large", 1000);
+            final CountDownLatch ready = new CountDownLatch(2);
+            Runnable listener = new Runnable() {
+                public void run() {
+                    ready.countDown();
+                }
+            };
+            large.whenReady(listener);
+            Rooms.Room failed = rooms.enter("invalid", 0);
+            failed.whenReady(listener);
+            assertTrue(ready.await(10, TimeUnit.SECONDS));
+
+            assertTrue(large.isReady());
+            assertEquals(1000, large.getBoard().getSnapshot().getSize());
+            final CountDownLatch again = new CountDownLatch(1);
+            large.whenReady(new Runnable() {
+                public void run() {
+                    again.countDown();
+                }
+            });
+            assertEquals(0, again.getCount());
+
+            assertTrue(failed.isReady());
+            try {
+                failed.getBoard();
+                fail("expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            failed.leave();
+            assertEquals(1, rooms.size());
+        } finally {
+            rooms.shutdown();
+            invalid.delete();
+        }
+    }
+
+    private static File write(File file, String contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
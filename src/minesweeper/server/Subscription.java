@@ -0,0 +1,105 @@
+package minesweeper.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The changes of a board not yet pushed to a subscribed client. Every move
+ * of any player adds the squares it changed; poll() then takes all of them
+ * at once, so a client is sent one message per tick however many moves
+ * were made, with the latest state of each square.
+ *
+ * At most MAX_PENDING squares are kept. A client that falls further behind,
+ * for instance because it doesn't read fast enough, gets the whole board
+ * instead of the squares it missed, so its backlog never grows unbounded.
+ *
+ * Thread Safety: changed() is called by the threads of the players making
+ * moves, and poll() by the thread serving the client. pending, count and
+ * overflow are guarded by lock, which is never held while calling out.
+ * @author jains
+ *
+ */
+class Subscription implements Board.Listener {
+
+    /**
+     * Maximum # of changed squares kept for a client between two polls.
+     */
+    static final int MAX_PENDING = 4096;
+
+    private final Board board;
+    private final ReentrantLock lock = new ReentrantLock();
+    // The first count entries are the squares changed since the last poll
+    private int[] pending = new int[64];
+    private int count = 0;
+    // true if more than MAX_PENDING squares changed since the last poll
+    private boolean overflow = false;
+    // Swapped with pending by poll(), so that polling allocates nothing
+    private int[] polled = new int[64];
+
+    /**
+     * Subscribes to the changes of board. unsubscribe() must be called
+     * once the client is gone.
+     * @param board Board to follow
+     */
+    Subscription(Board board) {
+        this.board = board;
+        board.addListener(this);
+    }
+
+    /**
+     * Stops following the board.
+     */
+    void unsubscribe() {
+        board.removeListener(this);
+    }
+
+    public void changed(int[] squares, int count) {
+        lock.lock();
+        try {
+            if (overflow)
+                return;
+            if (this.count + count > MAX_PENDING) {
+                overflow = true;
+                this.count = 0;
+                return;
+            }
+            if (this.count + count > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(2 * pending.length, this.count + count));
+            System.arraycopy(squares, 0, pending, this.count, count);
+            this.count += count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the changes since the last poll.
+     * @return Board.Delta listing the squares changed since the last poll,
+     *  or drawing the whole board if too many squares changed, or null if
+     *  nothing changed.
+     */
+    Board.Delta poll() {
+        int n;
+        boolean resend;
+        lock.lock();
+        try {
+            n = count;
+            resend = overflow;
+            if (n == 0 && ! resend)
+                return null;
+            if (polled.length < pending.length)
+                polled = new int[pending.length];
+            int[] squares = pending;
+            pending = polled;
+            polled = squares;
+            count = 0;
+            overflow = false;
+        } finally {
+            lock.unlock();
+        }
+        Board.Snapshot snapshot = board.getSnapshot();
+        if (resend)
+            return new Board.Delta(snapshot);
+        return board.delta(snapshot, polled, n);
+    }
+}